@@ -1,11 +1,21 @@
 package jwp.agent;
 
+import jwp.fuzz.AutoDictionary;
+import jwp.fuzz.BranchRegistry;
 import jwp.fuzz.ClassBranchAdapter;
-import org.objectweb.asm.Type;
+import jwp.fuzz.MethodBranchAdapter;
+import jwp.fuzz.ReachableMethods;
+import jwp.fuzz.SaturatedProbes;
+import jwp.fuzz.TransformCache;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.ProtectionDomain;
 import java.util.*;
 
@@ -20,31 +30,105 @@ public class Agent implements ClassFileTransformer, jwp.fuzz.Agent {
   /** Entry point delegated to from {@link AgentBootstrap#premain(String, Instrumentation)} */
   public static void premain(String agentArgs, Instrumentation inst) {
     Args args = Args.fromString(agentArgs);
+    BranchRegistry branchRegistry = null;
+    if (args.branchRegistryFile != null) {
+      // Load the existing registry so IDs are stable across runs and save it back on shutdown
+      Path branchRegistryPath = Paths.get(args.branchRegistryFile);
+      BranchRegistry registry = Files.exists(branchRegistryPath) ?
+          BranchRegistry.load(branchRegistryPath) : new BranchRegistry();
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> registry.save(branchRegistryPath)));
+      branchRegistry = registry;
+    }
     Agent agent = new Agent(inst, args.classPrefixesToInclude,
-        args.classPrefixesToExclude == null ? CLASS_PREFIXES_TO_EXCLUDE_DEFAULT : args.classPrefixesToExclude);
+        args.classPrefixesToExclude == null ? CLASS_PREFIXES_TO_EXCLUDE_DEFAULT : args.classPrefixesToExclude,
+        ClassBranchAdapter.Config.builder().
+            probeStrategy(args.probeStrategy).
+            branchRegistry(branchRegistry).
+            dualVersionMethods(args.dualVersionMethods).
+            comparisonLogging(args.comparisonLogging).
+            tokenHooks(args.tokenHooks).
+            autoDictionary(args.autoDictionary ? new AutoDictionary(AutoDictionary.MAX_ENTRIES_DEFAULT,
+                AutoDictionary.MIN_LENGTH_DEFAULT, AutoDictionary.MAX_LENGTH_DEFAULT,
+                args.autoDictionaryClassPrefixes) : null).
+            saturatedProbes(args.stripSaturatedProbes ? new SaturatedProbes() : null).
+            executionBudget(args.executionBudget).
+            build(),
+        args.transformCacheDir == null ? null : new TransformCache(Paths.get(args.transformCacheDir), agentJarPath()));
+    if (args.reachableFrom != null) {
+      // Only the class files are read, so this doesn't load anything before the agent is set up
+      int methodIndex = args.reachableFrom.lastIndexOf('.');
+      agent.setReachableMethods(ReachableMethods.from(ClassLoader.getSystemClassLoader(),
+          args.reachableFrom.substring(0, methodIndex), args.reachableFrom.substring(methodIndex + 1),
+          agent::isClassIgnored));
+    }
+    if (args.preTransform) agent.preTransformer = new PreTransformer(agent, agent.transformCache);
     agent.init(args.retransformBoostrapped == null ? RETRANSFORM_BOOTSTRAPPED_DEFAULT : args.retransformBoostrapped);
     Controller.setAgent(agent);
   }
 
+  /**
+   * The path of the jar the agent was started from or null if it can't be found. This is found via the system loader
+   * since the agent's classes are on the bootstrap loader which doesn't give them a code source.
+   */
+  public static Path agentJarPath() {
+    try {
+      URL url = ClassLoader.getSystemResource("jwp/agent");
+      if (url == null || !"jar".equals(url.getProtocol())) return null;
+      return Paths.get(((JarURLConnection) url.openConnection()).getJarFileURL().toURI());
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
   protected final Instrumentation inst;
   private volatile String[] classPrefixesToInclude;
   private volatile String[] classPrefixesToExclude;
+  private volatile ReachableMethods reachableMethods;
+  protected final ClassBranchAdapter.Config transformConfig;
+  protected final TransformCache transformCache;
+  // Set before init if classes should be transformed ahead of use
+  protected PreTransformer preTransformer;
+  // Set while the pre-transformer captures the bytes of loaded classes, which must not be transformed
+  protected volatile boolean skipRetransforms;
+  // Keyed by loader then class name, the configs of classes that were given dual version methods when first loaded
+  private final Map<ClassLoader, Map<String, ClassBranchAdapter.Config>> dualVersionedClasses = new WeakHashMap<>();
 
   protected Agent(Instrumentation inst, String[] classPrefixesToInclude, String[] classPrefixesToExclude) {
+    this(inst, classPrefixesToInclude, classPrefixesToExclude, ClassBranchAdapter.Config.builder().build());
+  }
+
+  protected Agent(Instrumentation inst, String[] classPrefixesToInclude, String[] classPrefixesToExclude,
+      ClassBranchAdapter.Config transformConfig) {
+    this(inst, classPrefixesToInclude, classPrefixesToExclude, transformConfig, null);
+  }
+
+  protected Agent(Instrumentation inst, String[] classPrefixesToInclude, String[] classPrefixesToExclude,
+      ClassBranchAdapter.Config transformConfig, TransformCache transformCache) {
     this.inst = inst;
     this.classPrefixesToInclude = classPrefixesToInclude;
     this.classPrefixesToExclude = classPrefixesToExclude;
+    this.transformConfig = transformConfig;
+    this.transformCache = transformCache;
   }
 
   protected void init(boolean retransformBootstrapped) {
     // Add self as transfomer
     inst.addTransformer(this, inst.isRetransformClassesSupported());
 
-    // Retransform all non-ignored classes
+    // Retransform all non-ignored classes, skipping ones with nothing reachable to instrument
     if (retransformBootstrapped && inst.isRetransformClassesSupported()) {
       List<Class<?>> classesToRetransform = new ArrayList<>();
       for (Class<?> cls : inst.getAllLoadedClasses()) {
-        if (inst.isModifiableClass(cls) && !isClassIgnored(cls)) classesToRetransform.add(cls);
+        if (inst.isModifiableClass(cls) && configForNewClass(cls.getName().replace('.', '/')) != null)
+          classesToRetransform.add(cls);
+      }
+      if (preTransformer != null && !classesToRetransform.isEmpty()) {
+        skipRetransforms = true;
+        try {
+          preTransformer.transformLoaded(inst, classesToRetransform);
+        } finally {
+          skipRetransforms = false;
+        }
       }
       if (!classesToRetransform.isEmpty()) {
         try {
@@ -54,15 +138,14 @@ public class Agent implements ClassFileTransformer, jwp.fuzz.Agent {
         }
       }
     }
+    if (preTransformer != null) preTransformer.startClasspath(System.getProperty("java.class.path", ""));
   }
 
   protected boolean isClassIgnored(Class<?> cls) { return isClassIgnored(cls.getName()); }
-  protected boolean isClassIgnored(String className) {
-    if (classPrefixesToInclude != null) {
-      for (String classPrefixToInclude : classPrefixesToInclude) {
-        if (className.startsWith(classPrefixToInclude)) return false;
-      }
-    }
+
+  @Override
+  public boolean isClassIgnored(String className) {
+    if (isClassIncluded(className)) return false;
     if (classPrefixesToExclude != null) {
       for (String classPrefixToExclude : classPrefixesToExclude) {
         if (className.startsWith(classPrefixToExclude)) return true;
@@ -71,18 +154,66 @@ public class Agent implements ClassFileTransformer, jwp.fuzz.Agent {
     return false;
   }
 
+  protected boolean isClassIncluded(String className) {
+    if (classPrefixesToInclude != null) {
+      for (String classPrefixToInclude : classPrefixesToInclude) {
+        if (className.startsWith(classPrefixToInclude)) return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
       ProtectionDomain protectionDomain, byte[] classfileBuffer) {
-    if (className == null || isClassIgnored(Type.getObjectType(className).getClassName())) return null;
+    if (className == null || (classBeingRedefined != null && skipRetransforms)) return null;
     try {
-      return ClassBranchAdapter.transform(classfileBuffer);
+      // Returning null on retransform also strips a previous instrumentation
+      ClassBranchAdapter.Config config = configFor(loader, className, classBeingRedefined);
+      if (config == null) return null;
+      if (transformCache != null) return transformCache.transform(className, classfileBuffer, config);
+      return ClassBranchAdapter.transform(classfileBuffer, config);
     } catch (Throwable e) {
       System.err.println("Failed to transform " + className + ": " + e);
       return null;
     }
   }
 
+  /**
+   * The config to transform the given class with or null to leave it alone. Retransformation cannot add or remove
+   * methods, so dual version methods are only used on retransform if they were also used when the class was first
+   * loaded, and then with the same reachable methods so the same methods get clones.
+   */
+  protected ClassBranchAdapter.Config configFor(ClassLoader loader, String className, Class<?> classBeingRedefined) {
+    ClassBranchAdapter.Config config = configForNewClass(className);
+    if (!transformConfig.dualVersionMethods) return config;
+    synchronized (dualVersionedClasses) {
+      if (classBeingRedefined == null) {
+        if (config != null) dualVersionedClasses.computeIfAbsent(loader, k -> new HashMap<>()).put(className, config);
+        return config;
+      }
+      Map<String, ClassBranchAdapter.Config> configs = dualVersionedClasses.get(loader);
+      ClassBranchAdapter.Config firstConfig = configs == null ? null : configs.get(className);
+      if (firstConfig == null) return config == null ? null : config.withDualVersionMethods(false);
+      // The clones added when first loaded can't be removed, even if nothing is reachable anymore
+      if (config == null && isClassIgnored(className.replace('/', '.'))) return null;
+      return firstConfig;
+    }
+  }
+
+  /**
+   * The config for the given class, by internal name, when first loaded or null to leave it alone. Unless the class is
+   * included by prefix, only the reachable methods are instrumented if set and classes without any are left alone.
+   */
+  protected ClassBranchAdapter.Config configForNewClass(String className) {
+    String name = className.replace('/', '.');
+    if (isClassIgnored(name)) return null;
+    ReachableMethods reachableMethods = this.reachableMethods;
+    if (reachableMethods == null || isClassIncluded(name)) return transformConfig;
+    if (!reachableMethods.containsClass(className)) return null;
+    return transformConfig.withReachableMethods(reachableMethods);
+  }
+
   @Override
   public String[] getClassPrefixesToInclude() {
     return Arrays.copyOf(classPrefixesToInclude, classPrefixesToInclude.length);
@@ -103,6 +234,31 @@ public class Agent implements ClassFileTransformer, jwp.fuzz.Agent {
     this.classPrefixesToExclude = Arrays.copyOf(classPrefixesToExclude, classPrefixesToExclude.length);
   }
 
+  @Override
+  public ReachableMethods getReachableMethods() {
+    return reachableMethods;
+  }
+
+  @Override
+  public void setReachableMethods(ReachableMethods reachableMethods) {
+    this.reachableMethods = reachableMethods;
+  }
+
+  @Override
+  public BranchRegistry getBranchRegistry() {
+    return transformConfig.branchRegistry;
+  }
+
+  @Override
+  public AutoDictionary getAutoDictionary() {
+    return transformConfig.autoDictionary;
+  }
+
+  @Override
+  public SaturatedProbes getSaturatedProbes() {
+    return transformConfig.saturatedProbes;
+  }
+
   @Override
   public Class[] getAllLoadedClasses() {
     return inst.getAllLoadedClasses();
@@ -113,35 +269,93 @@ public class Agent implements ClassFileTransformer, jwp.fuzz.Agent {
     inst.retransformClasses(classes);
   }
 
+  @Override
+  public void retransformLoadedClasses() throws UnmodifiableClassException {
+    if (!inst.isRetransformClassesSupported()) return;
+    List<Class<?>> classesToRetransform = new ArrayList<>();
+    for (Class<?> cls : inst.getAllLoadedClasses()) {
+      if (inst.isModifiableClass(cls) && !isClassIgnored(cls)) classesToRetransform.add(cls);
+    }
+    if (!classesToRetransform.isEmpty()) {
+      inst.retransformClasses(classesToRetransform.toArray(new Class<?>[classesToRetransform.size()]));
+    }
+  }
+
   /** Arguments passed in to the agent, parsed via {@link #fromString(String)} */
   public static class Args {
+    /** Create a {@link Builder} for easy building */
+    public static Builder builder() { return new Builder(); }
 
     /** Parse the given string into args or throw an exception on failure */
     public static Args fromString(String str) {
-      Boolean retransformBoostrapped = null;
-      String[] classPrefixesToInclude = null;
-      String[] classPrefixesToExclude = null;
+      Builder builder = builder();
       if (str != null && !str.isEmpty()) {
         for (String arg : str.split(";")) {
           if ("noAutoRetransform".equals(arg)) {
-            retransformBoostrapped = false;
+            builder.retransformBoostrapped(false);
+            continue;
+          }
+          if ("dualVersionMethods".equals(arg)) {
+            builder.dualVersionMethods(true);
+            continue;
+          }
+          if ("comparisonLogging".equals(arg)) {
+            builder.comparisonLogging(true);
+            continue;
+          }
+          if ("tokenHooks".equals(arg)) {
+            builder.tokenHooks(true);
+            continue;
+          }
+          if ("autoDictionary".equals(arg)) {
+            builder.autoDictionary(true);
+            continue;
+          }
+          if ("stripSaturatedProbes".equals(arg)) {
+            builder.stripSaturatedProbes(true);
+            continue;
+          }
+          if ("preTransform".equals(arg)) {
+            builder.preTransform(true);
+            continue;
+          }
+          if ("executionBudget".equals(arg)) {
+            builder.executionBudget(true);
             continue;
           }
           String[] nameAndPieces = arg.split("=", 2);
           if (nameAndPieces.length != 2) throw new IllegalArgumentException("Unknown arg: " + arg);
           switch (nameAndPieces[0]) {
             case "classPrefixesToInclude":
-              classPrefixesToInclude = stringArrayArg(nameAndPieces[1]);
+              builder.classPrefixesToInclude(stringArrayArg(nameAndPieces[1]));
+              break;
+            case "autoDictionary":
+              builder.autoDictionary(true).autoDictionaryClassPrefixes(stringArrayArg(nameAndPieces[1]));
               break;
             case "classPrefixesToExclude":
-              classPrefixesToExclude = stringArrayArg(nameAndPieces[1]);
+              builder.classPrefixesToExclude(stringArrayArg(nameAndPieces[1]));
+              break;
+            case "probeStrategy":
+              builder.probeStrategy(MethodBranchAdapter.ProbeStrategy.valueOf(nameAndPieces[1]));
+              break;
+            case "branchRegistryFile":
+              builder.branchRegistryFile(nameAndPieces[1]);
+              break;
+            case "reachableFrom":
+              if (nameAndPieces[1].lastIndexOf('.') <= 0) throw new IllegalArgumentException("Invalid method: " + arg);
+              builder.reachableFrom(nameAndPieces[1]);
+              break;
+            case "transformCacheDir":
+              builder.transformCacheDir(nameAndPieces[1]);
               break;
             default:
               throw new IllegalArgumentException("Unknown arg: " + arg);
           }
         }
       }
-      return new Args(retransformBoostrapped, classPrefixesToInclude, classPrefixesToExclude);
+      if (builder.preTransform && builder.transformCacheDir == null)
+        throw new IllegalArgumentException("preTransform requires transformCacheDir");
+      return builder.build();
     }
 
     protected static String[] stringArrayArg(String str) {
@@ -153,11 +367,179 @@ public class Agent implements ClassFileTransformer, jwp.fuzz.Agent {
     public final Boolean retransformBoostrapped;
     public final String[] classPrefixesToInclude;
     public final String[] classPrefixesToExclude;
+    public final MethodBranchAdapter.ProbeStrategy probeStrategy;
+    public final String branchRegistryFile;
+    public final boolean dualVersionMethods;
+    public final boolean comparisonLogging;
+    public final boolean tokenHooks;
+    public final boolean autoDictionary;
+    public final String[] autoDictionaryClassPrefixes;
+    public final boolean stripSaturatedProbes;
+    public final String reachableFrom;
+    public final String transformCacheDir;
+    public final boolean preTransform;
+    public final boolean executionBudget;
 
     public Args(Boolean retransformBoostrapped, String[] classPrefixesToInclude, String[] classPrefixesToExclude) {
+      this(retransformBoostrapped, classPrefixesToInclude, classPrefixesToExclude, null, null, false, false, false,
+          false, null, false, null, null, false, false);
+    }
+
+    public Args(Boolean retransformBoostrapped, String[] classPrefixesToInclude, String[] classPrefixesToExclude,
+        MethodBranchAdapter.ProbeStrategy probeStrategy, String branchRegistryFile, boolean dualVersionMethods,
+        boolean comparisonLogging, boolean tokenHooks, boolean autoDictionary, String[] autoDictionaryClassPrefixes,
+        boolean stripSaturatedProbes, String reachableFrom, String transformCacheDir, boolean preTransform,
+        boolean executionBudget) {
       this.retransformBoostrapped = retransformBoostrapped;
       this.classPrefixesToInclude = classPrefixesToInclude;
       this.classPrefixesToExclude = classPrefixesToExclude;
+      this.probeStrategy = probeStrategy;
+      this.branchRegistryFile = branchRegistryFile;
+      this.dualVersionMethods = dualVersionMethods;
+      this.comparisonLogging = comparisonLogging;
+      this.tokenHooks = tokenHooks;
+      this.autoDictionary = autoDictionary;
+      this.autoDictionaryClassPrefixes = autoDictionaryClassPrefixes;
+      this.stripSaturatedProbes = stripSaturatedProbes;
+      this.reachableFrom = reachableFrom;
+      this.transformCacheDir = transformCacheDir;
+      this.preTransform = preTransform;
+      this.executionBudget = executionBudget;
+    }
+
+    /**
+     * Builder to make creating {@link Args} easier. Nothing is required and anything not set is left null or false,
+     * the same as when the arg isn't given.
+     */
+    public static class Builder {
+      /** See {@link #retransformBoostrapped(Boolean)} */
+      public Boolean retransformBoostrapped;
+      /** See {@link #classPrefixesToInclude(String...)} */
+      public String[] classPrefixesToInclude;
+      /** See {@link #classPrefixesToExclude(String...)} */
+      public String[] classPrefixesToExclude;
+      /** See {@link #probeStrategy(MethodBranchAdapter.ProbeStrategy)} */
+      public MethodBranchAdapter.ProbeStrategy probeStrategy;
+      /** See {@link #branchRegistryFile(String)} */
+      public String branchRegistryFile;
+      /** See {@link #dualVersionMethods(boolean)} */
+      public boolean dualVersionMethods;
+      /** See {@link #comparisonLogging(boolean)} */
+      public boolean comparisonLogging;
+      /** See {@link #tokenHooks(boolean)} */
+      public boolean tokenHooks;
+      /** See {@link #autoDictionary(boolean)} */
+      public boolean autoDictionary;
+      /** See {@link #autoDictionaryClassPrefixes(String...)} */
+      public String[] autoDictionaryClassPrefixes;
+      /** See {@link #stripSaturatedProbes(boolean)} */
+      public boolean stripSaturatedProbes;
+      /** See {@link #reachableFrom(String)} */
+      public String reachableFrom;
+      /** See {@link #transformCacheDir(String)} */
+      public String transformCacheDir;
+      /** See {@link #preTransform(boolean)} */
+      public boolean preTransform;
+      /** See {@link #executionBudget(boolean)} */
+      public boolean executionBudget;
+
+      /** Whether already loaded classes are retransformed at startup, false for the noAutoRetransform arg */
+      public Builder retransformBoostrapped(Boolean retransformBoostrapped) {
+        this.retransformBoostrapped = retransformBoostrapped;
+        return this;
+      }
+
+      /** The classPrefixesToInclude arg */
+      public Builder classPrefixesToInclude(String... classPrefixesToInclude) {
+        this.classPrefixesToInclude = classPrefixesToInclude;
+        return this;
+      }
+
+      /** The classPrefixesToExclude arg */
+      public Builder classPrefixesToExclude(String... classPrefixesToExclude) {
+        this.classPrefixesToExclude = classPrefixesToExclude;
+        return this;
+      }
+
+      /** The probeStrategy arg */
+      public Builder probeStrategy(MethodBranchAdapter.ProbeStrategy probeStrategy) {
+        this.probeStrategy = probeStrategy;
+        return this;
+      }
+
+      /** The branchRegistryFile arg */
+      public Builder branchRegistryFile(String branchRegistryFile) {
+        this.branchRegistryFile = branchRegistryFile;
+        return this;
+      }
+
+      /** The dualVersionMethods arg */
+      public Builder dualVersionMethods(boolean dualVersionMethods) {
+        this.dualVersionMethods = dualVersionMethods;
+        return this;
+      }
+
+      /** The comparisonLogging arg */
+      public Builder comparisonLogging(boolean comparisonLogging) {
+        this.comparisonLogging = comparisonLogging;
+        return this;
+      }
+
+      /** The tokenHooks arg */
+      public Builder tokenHooks(boolean tokenHooks) {
+        this.tokenHooks = tokenHooks;
+        return this;
+      }
+
+      /** The autoDictionary arg */
+      public Builder autoDictionary(boolean autoDictionary) {
+        this.autoDictionary = autoDictionary;
+        return this;
+      }
+
+      /** The class prefixes given to the autoDictionary arg, null for all classes */
+      public Builder autoDictionaryClassPrefixes(String... autoDictionaryClassPrefixes) {
+        this.autoDictionaryClassPrefixes = autoDictionaryClassPrefixes;
+        return this;
+      }
+
+      /** The stripSaturatedProbes arg */
+      public Builder stripSaturatedProbes(boolean stripSaturatedProbes) {
+        this.stripSaturatedProbes = stripSaturatedProbes;
+        return this;
+      }
+
+      /** The reachableFrom arg */
+      public Builder reachableFrom(String reachableFrom) {
+        this.reachableFrom = reachableFrom;
+        return this;
+      }
+
+      /** The transformCacheDir arg */
+      public Builder transformCacheDir(String transformCacheDir) {
+        this.transformCacheDir = transformCacheDir;
+        return this;
+      }
+
+      /** The preTransform arg */
+      public Builder preTransform(boolean preTransform) {
+        this.preTransform = preTransform;
+        return this;
+      }
+
+      /** The executionBudget arg */
+      public Builder executionBudget(boolean executionBudget) {
+        this.executionBudget = executionBudget;
+        return this;
+      }
+
+      /** Build the args */
+      public Args build() {
+        return new Args(retransformBoostrapped, classPrefixesToInclude, classPrefixesToExclude, probeStrategy,
+            branchRegistryFile, dualVersionMethods, comparisonLogging, tokenHooks, autoDictionary,
+            autoDictionaryClassPrefixes, stripSaturatedProbes, reachableFrom, transformCacheDir, preTransform,
+            executionBudget);
+      }
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+package jwp.agent;
+
+import jwp.fuzz.ClassBranchAdapter;
+import jwp.fuzz.TransformCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.JarEntry;
+import java.util.function.Function;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Fills the agent's {@link TransformCache} in parallel ahead of use, so classes loaded later are read from the cache
+ * instead of being transformed on the loading thread. Work is done on daemon threads, one per available core.
+ */
+public class PreTransformer {
+
+  protected final Agent agent;
+  protected final TransformCache cache;
+  protected final ExecutorService executor;
+
+  public PreTransformer(Agent agent, TransformCache cache) {
+    this(agent, cache, Runtime.getRuntime().availableProcessors());
+  }
+
+  public PreTransformer(Agent agent, TransformCache cache, int threads) {
+    this.agent = agent;
+    this.cache = cache;
+    executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "jwp-pre-transform");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Transform the given already loaded classes ahead of them being retransformed, waiting until done. On retransform,
+   * the transformer is given bytes the JVM reconstitutes from the loaded class instead of the class file, and they
+   * usually differ, so these are first captured by retransforming the classes with a transformer that changes nothing.
+   * The agent must not transform the classes meanwhile. Classes from the JVM's shared archive can be reconstituted
+   * differently the first time, so those are usually still transformed on retransform.
+   */
+  public void transformLoaded(Instrumentation inst, List<Class<?>> classes) {
+    Map<Class<?>, byte[]> loadedBytes = new ConcurrentHashMap<>();
+    ClassFileTransformer capturer = new ClassFileTransformer() {
+      @Override
+      public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+          ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (classBeingRedefined != null) loadedBytes.put(classBeingRedefined, classfileBuffer);
+        return null;
+      }
+    };
+    inst.addTransformer(capturer, true);
+    try {
+      inst.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+    } catch (UnmodifiableClassException e) {
+      System.err.println("Failed pre-transforming loaded classes: " + e);
+      return;
+    } finally {
+      inst.removeTransformer(capturer);
+    }
+    List<Callable<Void>> tasks = new ArrayList<>(loadedBytes.size());
+    for (Map.Entry<Class<?>, byte[]> entry : loadedBytes.entrySet()) {
+      String className = entry.getKey().getName().replace('.', '/');
+      // Classes loaded before the agent don't have dual version methods
+      tasks.add(() -> {
+        warm(className, entry.getValue(), config -> config.withDualVersionMethods(false));
+        return null;
+      });
+    }
+    try {
+      executor.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Start transforming all classes in the jars and directories of the given classpath in the background, one task per
+   * entry. No more work can be submitted after this.
+   */
+  public void startClasspath(String classPath) {
+    for (String entry : classPath.split(File.pathSeparator)) {
+      if (entry.isEmpty()) continue;
+      Path path = Paths.get(entry);
+      if (Files.isDirectory(path)) executor.execute(() -> transformDirectory(path));
+      else if (Files.isRegularFile(path)) executor.execute(() -> transformJar(path));
+    }
+    executor.shutdown();
+  }
+
+  protected void transformJar(Path path) {
+    try (JarFile jar = new JarFile(path.toFile())) {
+      Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        JarEntry entry = entries.nextElement();
+        if (!isClassFile(entry.getName())) continue;
+        try (InputStream in = jar.getInputStream(entry)) {
+          warm(className(entry.getName()), readAll(in), config -> config);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Failed pre-transforming " + path + ": " + e);
+    }
+  }
+
+  protected void transformDirectory(Path dir) {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.forEach(path -> {
+        String name = dir.relativize(path).toString().replace(File.separatorChar, '/');
+        if (!isClassFile(name) || !Files.isRegularFile(path)) return;
+        try {
+          warm(className(name), Files.readAllBytes(path), config -> config);
+        } catch (IOException e) {
+          System.err.println("Failed pre-transforming " + path + ": " + e);
+        }
+      });
+    } catch (IOException e) {
+      System.err.println("Failed pre-transforming " + dir + ": " + e);
+    }
+  }
+
+  protected static boolean isClassFile(String name) {
+    // Versioned and module classes aren't loaded by name
+    return name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class");
+  }
+
+  protected static String className(String fileName) {
+    return fileName.substring(0, fileName.length() - ".class".length());
+  }
+
+  /**
+   * Warm the cache with the given class using the config it would get when loaded, after applying the given function.
+   * Failures are reported and otherwise ignored, the class is just transformed when loaded if ever.
+   */
+  protected void warm(String className, byte[] bytes,
+      Function<ClassBranchAdapter.Config, ClassBranchAdapter.Config> configFn) {
+    try {
+      ClassBranchAdapter.Config config = agent.configForNewClass(className);
+      if (config != null) cache.warm(className, bytes, configFn.apply(config));
+    } catch (Exception e) {
+      System.err.println("Failed pre-transforming " + className + ": " + e);
+    }
+  }
+
+  protected static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int read;
+    while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+    return out.toByteArray();
+  }
+}
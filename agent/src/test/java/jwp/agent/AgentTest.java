@@ -1,8 +1,20 @@
 package jwp.agent;
 
+import jwp.fuzz.ClassBranchAdapter;
+import jwp.fuzz.MethodBranchAdapter;
+import jwp.fuzz.TransformCache;
+import jwptest.TestMethods;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
 public class AgentTest {
 
   @Test
@@ -19,6 +31,30 @@ public class AgentTest {
         Agent.Args.fromString("classPrefixesToInclude=foo,bar;classPrefixesToExclude=baz,qux;noAutoRetransform"));
     assertEquals(new Agent.Args(false, new String[0], new String[0]),
         Agent.Args.fromString("classPrefixesToExclude=;classPrefixesToInclude=;noAutoRetransform"));
+    assertEquals(Agent.Args.builder().probeStrategy(MethodBranchAdapter.ProbeStrategy.PROBE_ON_EDGES).build(),
+        Agent.Args.fromString("probeStrategy=PROBE_ON_EDGES"));
+    assertEquals(Agent.Args.builder().retransformBoostrapped(false).branchRegistryFile("branches.tsv").build(),
+        Agent.Args.fromString("branchRegistryFile=branches.tsv;noAutoRetransform"));
+    assertEquals(Agent.Args.builder().dualVersionMethods(true).build(),
+        Agent.Args.fromString("dualVersionMethods"));
+    assertEquals(Agent.Args.builder().comparisonLogging(true).build(),
+        Agent.Args.fromString("comparisonLogging"));
+    assertEquals(Agent.Args.builder().comparisonLogging(true).tokenHooks(true).build(),
+        Agent.Args.fromString("comparisonLogging;tokenHooks"));
+    assertEquals(Agent.Args.builder().autoDictionary(true).build(),
+        Agent.Args.fromString("autoDictionary"));
+    assertEquals(Agent.Args.builder().autoDictionary(true).autoDictionaryClassPrefixes("foo.", "bar.").build(),
+        Agent.Args.fromString("autoDictionary=foo.,bar."));
+    assertEquals(Agent.Args.builder().stripSaturatedProbes(true).build(),
+        Agent.Args.fromString("stripSaturatedProbes"));
+    assertEquals(Agent.Args.builder().reachableFrom("foo.Bar.baz").build(),
+        Agent.Args.fromString("reachableFrom=foo.Bar.baz"));
+    assertEquals(Agent.Args.builder().transformCacheDir("jwp-cache").build(),
+        Agent.Args.fromString("transformCacheDir=jwp-cache"));
+    assertEquals(Agent.Args.builder().transformCacheDir("jwp-cache").preTransform(true).build(),
+        Agent.Args.fromString("transformCacheDir=jwp-cache;preTransform"));
+    assertEquals(Agent.Args.builder().executionBudget(true).build(),
+        Agent.Args.fromString("executionBudget"));
   }
 
   @Test
@@ -31,11 +67,68 @@ public class AgentTest {
       Agent.Args.fromString("classPrefixesToIgnore;noAutoRetransform");
       Assert.fail();
     } catch (Exception ignored) { }
+    try {
+      Agent.Args.fromString("probeStrategy=BLAH");
+      Assert.fail();
+    } catch (Exception ignored) { }
+    try {
+      Agent.Args.fromString("reachableFrom=foo");
+      Assert.fail();
+    } catch (Exception ignored) { }
+    try {
+      Agent.Args.fromString("preTransform");
+      Assert.fail();
+    } catch (Exception ignored) { }
+  }
+
+  @Test
+  public void testTransformCacheVersionedByAgentJar() throws Exception {
+    // Under the agent, the fuzz classes are on the bootstrap loader and have no code source to version the cache by
+    Assert.assertNull(TransformCache.class.getClassLoader());
+    Path jar = Agent.agentJarPath();
+    Assert.assertNotNull(jar);
+    Assert.assertNotEquals(TransformCache.version(null), TransformCache.version(jar));
+    Path dir = Files.createTempDirectory("jwp-cache");
+    Path rebuiltJar = Files.createTempFile("jwp-agent", ".jar");
+    try {
+      byte[] orig = Files.readAllBytes(Paths.get(TestMethods.class.getResource("TestMethods.class").toURI()));
+      String className = "jwptest/TestMethods";
+      ClassBranchAdapter.Config config = ClassBranchAdapter.Config.builder().build();
+      new TransformCache(dir, jar).transform(className, orig, config);
+      // The same jar reuses the entry
+      TransformCache sameJar = new TransformCache(dir, jar);
+      sameJar.transform(className, orig, config);
+      Assert.assertEquals(1, sameJar.hits());
+      // A rebuilt jar with the same version doesn't
+      Files.copy(jar, rebuiltJar, StandardCopyOption.REPLACE_EXISTING);
+      Files.setLastModifiedTime(rebuiltJar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 1000));
+      TransformCache rebuilt = new TransformCache(dir, rebuiltJar);
+      rebuilt.transform(className, orig, config);
+      Assert.assertEquals(0, rebuilt.hits());
+      Assert.assertEquals(1, rebuilt.misses());
+    } finally {
+      Files.delete(rebuiltJar);
+      try (Stream<Path> paths = Files.walk(dir)) {
+        for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(path);
+      }
+    }
   }
 
   private void assertEquals(Agent.Args expected, Agent.Args actual) {
     Assert.assertEquals(expected.retransformBoostrapped, actual.retransformBoostrapped);
     Assert.assertArrayEquals(expected.classPrefixesToInclude, actual.classPrefixesToInclude);
     Assert.assertArrayEquals(expected.classPrefixesToExclude, actual.classPrefixesToExclude);
+    Assert.assertEquals(expected.probeStrategy, actual.probeStrategy);
+    Assert.assertEquals(expected.branchRegistryFile, actual.branchRegistryFile);
+    Assert.assertEquals(expected.dualVersionMethods, actual.dualVersionMethods);
+    Assert.assertEquals(expected.comparisonLogging, actual.comparisonLogging);
+    Assert.assertEquals(expected.tokenHooks, actual.tokenHooks);
+    Assert.assertEquals(expected.autoDictionary, actual.autoDictionary);
+    Assert.assertArrayEquals(expected.autoDictionaryClassPrefixes, actual.autoDictionaryClassPrefixes);
+    Assert.assertEquals(expected.stripSaturatedProbes, actual.stripSaturatedProbes);
+    Assert.assertEquals(expected.reachableFrom, actual.reachableFrom);
+    Assert.assertEquals(expected.transformCacheDir, actual.transformCacheDir);
+    Assert.assertEquals(expected.preTransform, actual.preTransform);
+    Assert.assertEquals(expected.executionBudget, actual.executionBudget);
   }
 }
@@ -4,8 +4,15 @@ import jwptest.TestMethods;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.function.Predicate;
 
 public class FuzzerTest {
@@ -18,8 +25,76 @@ public class FuzzerTest {
     ).fuzz();
   }
 
+  @Test(expected = Fuzzer.FuzzException.FirstRunFailed.class)
+  public void testWrongArgsDirect() throws Throwable {
+    new Fuzzer(Fuzzer.Config.builder().
+        method(TestMethods.class.getDeclaredMethod("simpleMethod", Integer.TYPE, Boolean.TYPE)).
+        params(new ParamProvider.Suggested(ParamGenerator.suggestedFinite(Boolean.TYPE))).directWorkers(2).build()
+    ).fuzz();
+  }
+
   @Test
   public void testSimpleFunction() throws Throwable {
+    assertSimpleFunctionPaths(null);
+  }
+
+  @Test
+  public void testSimpleFunctionDirect() throws Throwable {
+    assertSimpleFunctionPaths(null, 4);
+  }
+
+  @Test
+  public void testSimpleFunctionPipelined() throws Throwable {
+    assertSimpleFunctionPaths(null, 0, 8);
+  }
+
+  @Test
+  public void testSimpleFunctionBitmap() throws Throwable {
+    assertSimpleFunctionPaths(new Tracer.Instrumenting(BranchTracker.BranchHits.Bitmap::new));
+  }
+
+  @Test
+  public void testSimpleFunctionEdgeCoverage() throws Throwable {
+    assertSimpleFunctionPaths(new Tracer.Instrumenting(
+        Tracer.Instrumenting.Config.builder().edgeCoverage(true).build()));
+  }
+
+  @Test
+  public void testDirectFiniteParamsRunOnce() throws Throwable {
+    List<String> expected = new ArrayList<>();
+    Iterator<Object[]> iter = simpleFunctionParams().iterator();
+    while (iter.hasNext()) expected.add(Arrays.toString(iter.next()));
+    ConcurrentLinkedQueue<String> executed = new ConcurrentLinkedQueue<>();
+    new Fuzzer(Fuzzer.Config.builder().
+        method(TestMethods.class.getDeclaredMethod("simpleMethod", Integer.TYPE, Boolean.TYPE)).
+        params(simpleFunctionParams()).onSubmit((config, fut) -> fut.thenApply(res -> {
+          executed.add(Arrays.toString(res.params));
+          return res;
+        })).directWorkers(4).build()
+    ).fuzz();
+    // Every worker takes from the same params, so each set is run exactly once between them
+    List<String> actual = new ArrayList<>(executed);
+    Collections.sort(expected);
+    Collections.sort(actual);
+    Assert.assertEquals(expected, actual);
+  }
+
+  private static ParamProvider simpleFunctionParams() {
+    return new ParamProvider.Suggested(
+        ParamGenerator.suggestedFinite(Integer.TYPE),
+        ParamGenerator.suggestedFinite(Boolean.TYPE)
+    );
+  }
+
+  private void assertSimpleFunctionPaths(Tracer tracer) throws Throwable {
+    assertSimpleFunctionPaths(tracer, 0);
+  }
+
+  private void assertSimpleFunctionPaths(Tracer tracer, int directWorkers) throws Throwable {
+    assertSimpleFunctionPaths(tracer, directWorkers, 0);
+  }
+
+  private void assertSimpleFunctionPaths(Tracer tracer, int directWorkers, int maxInFlight) throws Throwable {
     // Let's store the unique paths. Keyed by hash path, value is param set.
     ConcurrentMap<Integer, ExecutionResult> uniquePaths = new ConcurrentHashMap<>();
 
@@ -30,9 +105,10 @@ public class FuzzerTest {
             ParamGenerator.suggestedFinite(Integer.TYPE),
             ParamGenerator.suggestedFinite(Boolean.TYPE)
         )).onSubmit((config, fut) ->  fut.thenApply(res -> {
-          uniquePaths.putIfAbsent(BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(res.branchHits), res);
+          uniquePaths.putIfAbsent(BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(res.trace), res);
           return res;
-        })).build()
+        })).tracer(tracer).directWorkers(directWorkers).maxInFlight(maxInFlight).
+        invoker(maxInFlight == 0 ? null : new Invoker.WithExecutorService(Executors.newFixedThreadPool(4))).build()
     );
     // This terminates on its own
     fuzzer.fuzz();
@@ -0,0 +1,91 @@
+package jwp.fuzz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Rough benchmark comparing the {@link MethodBranchAdapter.ProbeStrategy}s on a tight loop. It is run manually via
+ * {@link #main(String[])} since timings don't belong in the test suite. This is in the jwp.fuzz package so the agent
+ * leaves it alone and each strategy can be applied manually.
+ */
+public class ProbeStrategyBenchmark {
+
+  private static final int ROUNDS = 5;
+  private static final int ITERATIONS = 2000;
+
+  public static void main(String[] args) throws Exception {
+    MethodBranchAdapter.ProbeStrategy[] strategies = MethodBranchAdapter.ProbeStrategy.values();
+    Method[] methods = new Method[strategies.length];
+    for (int i = 0; i < strategies.length; i++)
+      methods[i] = transformedLoopMethod(ClassBranchAdapter.Config.builder().probeStrategy(strategies[i]).build());
+    BranchTracker.BranchHits hits = new BranchTracker.BranchHits.Bitmap();
+    // Alternate the strategies each round and take the best time so JIT ordering effects even out
+    long[] bestNanosPerCall = new long[strategies.length];
+    Arrays.fill(bestNanosPerCall, Long.MAX_VALUE);
+    for (int round = 0; round < ROUNDS; round++) {
+      for (int i = 0; i < strategies.length; i++) {
+        Object result = null;
+        long start = System.nanoTime();
+        for (int j = 0; j < ITERATIONS; j++) result = trace(methods[i], hits);
+        bestNanosPerCall[i] = Math.min(bestNanosPerCall[i], (System.nanoTime() - start) / ITERATIONS);
+        // Must not change behavior and must still see branches
+        if (!Integer.valueOf(Loop.run(1000)).equals(result) || hits.toBranchHits().length == 0)
+          throw new IllegalStateException("Probe strategy " + strategies[i] + " broke the loop");
+      }
+    }
+    for (int i = 0; i < strategies.length; i++) {
+      System.out.printf("Probe strategy %s: %d ns per call (%.2fx of %s)%n", strategies[i], bestNanosPerCall[i],
+          (double) bestNanosPerCall[i] / bestNanosPerCall[0], strategies[0]);
+    }
+  }
+
+  private static Object trace(Method method, BranchTracker.BranchHits hits) throws Exception {
+    hits.reset();
+    BranchTracker.beginTrackingForThread(Thread.currentThread(), hits);
+    try {
+      return method.invoke(null, 1000);
+    } finally {
+      BranchTracker.endTrackingForThread(Thread.currentThread());
+    }
+  }
+
+  private static Method transformedLoopMethod(ClassBranchAdapter.Config config) throws Exception {
+    String name = Loop.class.getName();
+    byte[] bytes = ClassBranchAdapter.transform(classBytes(Loop.class), config);
+    ClassLoader loader = new ClassLoader(ProbeStrategyBenchmark.class.getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className)) return super.loadClass(className, resolve);
+        Class<?> cls = findLoadedClass(className);
+        return cls != null ? cls : defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return loader.loadClass(name).getMethod("run", int.class);
+  }
+
+  private static byte[] classBytes(Class<?> cls) throws IOException {
+    String resource = cls.getName().substring(cls.getName().lastIndexOf('.') + 1) + ".class";
+    try (InputStream in = cls.getResourceAsStream(resource)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int read;
+      while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+      return out.toByteArray();
+    }
+  }
+
+  public static class Loop {
+    public static int run(int count) {
+      int acc = 0;
+      for (int i = 0; i < count; i++) {
+        if ((i & 1) == 0) acc += i;
+        else if (i % 3 == 0) acc -= i;
+        if (acc > 100000) acc = 0;
+      }
+      return acc;
+    }
+  }
+}
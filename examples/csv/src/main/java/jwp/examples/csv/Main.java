@@ -14,9 +14,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -50,7 +49,7 @@ public class Main {
 
         // Add unique paths to the test writer
         onSubmit((config, fut) -> fut.thenApply(res -> {
-          if (seenHashes.add(BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(res.branchHits))) {
+          if (seenHashes.add(BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(res.trace))) {
             if (seenHashes.size() % 500 == 0) System.out.println("Added test number " + seenHashes.size());
             testWriter.append(res);
 
@@ -58,11 +57,10 @@ public class Main {
           return res;
         })).
 
-        // Multithreaded instead of default
-        invoker(new Invoker.WithExecutorService(
-            new ThreadPoolExecutor(5, 10, 30, TimeUnit.SECONDS,
-                new ArrayBlockingQueue<>(500), new ThreadPoolExecutor.CallerRunsPolicy())
-        )).
+        // Multithreaded instead of default, the fuzzer bounds the executions in flight so the pool's queue can be
+        // unbounded and the fuzzing thread never runs executions itself
+        invoker(new Invoker.WithExecutorService(Executors.newFixedThreadPool(10))).
+        maxInFlight(500).
         build()
     );
 
@@ -96,7 +96,7 @@ public class Main {
         // Handler to print out unique paths
         onSubmit((config, fut) -> fut.thenApply(res -> {
           long count = completeCounter.incrementAndGet();
-          int hash = BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(res.branchHits);
+          int hash = BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(res.trace);
           // Only print output of failures (synchronized to prevent stdout overwrite)
           if (seenHashes.checkUniqueAndStore(hash)) {
             lastNewHashAtCounter.set(count);
@@ -38,7 +38,7 @@ public class Main {
         // Handler to print out unique paths
         onEachResult(res -> {
           completeCounter.incrementAndGet();
-          int hash = hasher.hash(res.branchHits);
+          int hash = hasher.hash(res.trace);
           // Print output if the execution path hasn't been seen before. (synchronized to prevent stdout overwrite)
           if (seenHashes.add(hash)) synchronized (Main.class) {
             System.out.println("New path for param '" + res.params[0] + "', result: " +
@@ -28,6 +28,28 @@ public interface Agent {
    */
   void setClassPrefixesToExclude(String... classPrefixesToExclude);
 
+  /** Whether the given fully qualified class name is left alone based on the include and exclude prefixes */
+  boolean isClassIgnored(String className);
+
+  /** The methods instrumentation is limited to or null if not limited */
+  ReachableMethods getReachableMethods();
+
+  /**
+   * Limit instrumentation to the given methods, or lift the limit if null. Classes with no reachable methods are not
+   * transformed at all. Classes matching {@link #getClassPrefixesToInclude()} are always fully instrumented. Like the
+   * prefixes, this applies to classes loaded going forward, see {@link #retransformLoadedClasses()}.
+   */
+  void setReachableMethods(ReachableMethods reachableMethods);
+
+  /** The registry of dense branch IDs if the agent was started with one, null otherwise */
+  BranchRegistry getBranchRegistry();
+
+  /** The dictionary constants of instrumented classes are added to if the agent was started with one, null otherwise */
+  AutoDictionary getAutoDictionary();
+
+  /** The probe hit counts used to strip saturated probes if the agent was started with them, null otherwise */
+  SaturatedProbes getSaturatedProbes();
+
   /**
    * Get a list of all loaded classes by the agent. This can be used to know what classes to retransform if necessary.
    * @see java.lang.instrument.Instrumentation#getAllLoadedClasses()
@@ -40,6 +62,9 @@ public interface Agent {
    */
   void retransformClasses(Class<?>... classes) throws UnmodifiableClassException;
 
+  /** Retransform all loaded classes that can be retransformed and are not ignored, e.g. after changing settings */
+  void retransformLoadedClasses() throws UnmodifiableClassException;
+
   /** Controller to manually control the agent at runtime */
   class Controller implements Agent {
 
@@ -80,6 +105,24 @@ public interface Agent {
       agent.setClassPrefixesToExclude(classPrefixesToExclude);
     }
 
+    @Override
+    public boolean isClassIgnored(String className) { return agent.isClassIgnored(className); }
+
+    @Override
+    public ReachableMethods getReachableMethods() { return agent.getReachableMethods(); }
+
+    @Override
+    public void setReachableMethods(ReachableMethods reachableMethods) { agent.setReachableMethods(reachableMethods); }
+
+    @Override
+    public BranchRegistry getBranchRegistry() { return agent.getBranchRegistry(); }
+
+    @Override
+    public AutoDictionary getAutoDictionary() { return agent.getAutoDictionary(); }
+
+    @Override
+    public SaturatedProbes getSaturatedProbes() { return agent.getSaturatedProbes(); }
+
     @Override
     public Class[] getAllLoadedClasses() { return agent.getAllLoadedClasses(); }
 
@@ -87,5 +130,8 @@ public interface Agent {
     public void retransformClasses(Class<?>... classes) throws UnmodifiableClassException {
       agent.retransformClasses(classes);
     }
+
+    @Override
+    public void retransformLoadedClasses() throws UnmodifiableClassException { agent.retransformLoadedClasses(); }
   }
 }
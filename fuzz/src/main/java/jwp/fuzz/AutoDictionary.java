@@ -0,0 +1,127 @@
+package jwp.fuzz;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A live, thread-safe dictionary of tokens found while fuzzing, like the "auto extras" of
+ * <a href="http://lcamtuf.coredump.cx/afl/">AFL</a>. Tokens are deduplicated, limited in length, and capped in count.
+ * {@link ByteArrayParamGenerator} merges the entries with its configured dictionary, see
+ * {@link ByteArrayParamGenerator.Config.Builder#autoDictionary(AutoDictionary)}. Tokens can come from constants in
+ * instrumented classes, see {@link ClassBranchAdapter.Config.Builder#autoDictionary(AutoDictionary)}, and from values
+ * the target compares against while traced, see {@link ClassBranchAdapter.Config.Builder#tokenHooks(boolean)}. Reading
+ * {@link #entries()} is cheap, adding a new token copies the entries.
+ */
+public class AutoDictionary {
+  /** The default max number of tokens */
+  public static final int MAX_ENTRIES_DEFAULT = 1024;
+  /** The default min byte length of a token */
+  public static final int MIN_LENGTH_DEFAULT = 2;
+  /** The default max byte length of a token */
+  public static final int MAX_LENGTH_DEFAULT = 64;
+
+  protected final int maxEntries;
+  protected final int minLength;
+  protected final int maxLength;
+  // Internal name prefixes, null for all classes
+  protected final String[] classPrefixes;
+  protected final Set<ByteBuffer> seen = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  protected volatile List<byte[]> entries = Collections.emptyList();
+
+  /** Create a dictionary with the default limits */
+  public AutoDictionary() { this(MAX_ENTRIES_DEFAULT, MIN_LENGTH_DEFAULT, MAX_LENGTH_DEFAULT); }
+
+  /** Create a dictionary with the given max tokens and min and max token byte lengths */
+  public AutoDictionary(int maxEntries, int minLength, int maxLength) {
+    this(maxEntries, minLength, maxLength, null);
+  }
+
+  /**
+   * Same as {@link #AutoDictionary(int, int, int)} but constants are only collected from the classes whose
+   * fully-qualified names start with one of the given prefixes, see {@link #collectsConstantsFrom(String)}. If the
+   * prefixes are null, constants are collected from all instrumented classes.
+   */
+  public AutoDictionary(int maxEntries, int minLength, int maxLength, String[] classPrefixes) {
+    this.maxEntries = maxEntries;
+    this.minLength = minLength;
+    this.maxLength = maxLength;
+    if (classPrefixes == null) {
+      this.classPrefixes = null;
+    } else {
+      this.classPrefixes = new String[classPrefixes.length];
+      for (int i = 0; i < classPrefixes.length; i++) this.classPrefixes[i] = classPrefixes[i].replace('.', '/');
+    }
+  }
+
+  /** Add the UTF-8 bytes of the given token. Returns true if it was added. */
+  public boolean add(String token) {
+    // Avoid encoding strings that are too long to ever fit
+    if (token.length() > maxLength) return false;
+    return add(token.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Add a copy of the given token. Returns true if it was added. */
+  public boolean add(byte[] token) {
+    if (!fitsLength(token) || seen.size() >= maxEntries) return false;
+    // Check before copying since most tokens have been seen before
+    if (seen.contains(ByteBuffer.wrap(token))) return false;
+    byte[] copy = Arrays.copyOf(token, token.length);
+    synchronized (this) {
+      if (seen.size() >= maxEntries || !seen.add(ByteBuffer.wrap(copy))) return false;
+      List<byte[]> newEntries = new ArrayList<>(entries.size() + 1);
+      newEntries.addAll(entries);
+      newEntries.add(copy);
+      // Smallest first like the configured dictionary
+      newEntries.sort(Comparator.comparingInt(b -> b.length));
+      entries = Collections.unmodifiableList(newEntries);
+    }
+    return true;
+  }
+
+  /**
+   * Add the given number as a token. It is added little and big endian at the smallest of 2, 4, or 8 bytes that holds
+   * it, and as ASCII decimal. Values that fit in a byte are skipped since random havoc already tries them, as are
+   * forms below the min length.
+   */
+  public void addNumber(long value) {
+    if (value >= Byte.MIN_VALUE && value <= 0xFF) return;
+    int width = value == (short) value || value == (value & 0xFFFF) ? 2 :
+        value == (int) value || value == (value & 0xFFFFFFFFL) ? 4 : 8;
+    byte[] littleEndian = new byte[width];
+    byte[] bigEndian = new byte[width];
+    for (int i = 0; i < width; i++) {
+      littleEndian[i] = (byte) (value >>> (8 * i));
+      bigEndian[width - 1 - i] = littleEndian[i];
+    }
+    add(littleEndian);
+    add(bigEndian);
+    add(Long.toString(value));
+  }
+
+  /**
+   * Whether the instrumentation collects the constants of the class with the given internal name. Since the tokens
+   * are capped and kept first come, the many constants of libraries such as logging can otherwise take up the room
+   * before the target's classes are even loaded.
+   */
+  public boolean collectsConstantsFrom(String className) {
+    if (classPrefixes == null) return true;
+    for (String classPrefix : classPrefixes) {
+      if (className.startsWith(classPrefix)) return true;
+    }
+    return false;
+  }
+
+  /** Whether the given token is within the min and max length, i.e. could be added if it hasn't been */
+  public boolean fitsLength(byte[] token) { return token.length >= minLength && token.length <= maxLength; }
+
+  /** Whether the given token has been added */
+  public boolean contains(byte[] token) { return seen.contains(ByteBuffer.wrap(token)); }
+
+  /** The current tokens, smallest first. The list and arrays must not be changed. */
+  public List<byte[]> entries() { return entries; }
+
+  /** The number of tokens */
+  public int size() { return entries.size(); }
+}
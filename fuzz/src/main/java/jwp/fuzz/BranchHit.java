@@ -19,11 +19,20 @@ public class BranchHit implements Comparable<BranchHit> {
   public BranchHit(int branchHash, int hitCount) {
     this.branchHash = branchHash;
     this.hitCount = hitCount;
-    withHitCountHash = Objects.hash(branchHash, hitBucket());
+    withHitCountHash = withHitCountHash(branchHash, hitCount);
   }
 
   /** Returns the number of hits bucketed into a value of 1, 2, 3, 4, 8, 16, 32, or 128 */
-  public int hitBucket() {
+  public int hitBucket() { return hitBucket(hitCount); }
+
+  /** Same as {@link #withHitCountHash} for the given hash and count without creating a hit */
+  public static int withHitCountHash(int branchHash, int hitCount) {
+    // Same as Objects.hash(branchHash, hitBucket(hitCount)) without boxing
+    return (31 * (31 + branchHash)) + hitBucket(hitCount);
+  }
+
+  /** Same as {@link #hitBucket()} for the given count */
+  public static int hitBucket(int hitCount) {
     if (hitCount < 4) return hitCount;
     if (hitCount < 8) return 4;
     if (hitCount < 16) return 8;
@@ -58,13 +67,47 @@ public class BranchHit implements Comparable<BranchHit> {
   @FunctionalInterface
   public interface Hasher {
     /** Uses {@link BranchHit#withHitCountHash} */
-    Hasher WITH_HIT_COUNTS = hit -> hit.withHitCountHash;
+    Hasher WITH_HIT_COUNTS = new Hasher() {
+      @Override
+      public int hash(BranchHit hit) { return hit.withHitCountHash; }
+
+      @Override
+      public int hash(int branchHash, int hitCount) { return withHitCountHash(branchHash, hitCount); }
+    };
     /** Uses {@link BranchHit#branchHash} */
-    Hasher WITHOUT_HIT_COUNTS = hit -> hit.branchHash;
+    Hasher WITHOUT_HIT_COUNTS = new Hasher() {
+      @Override
+      public int hash(BranchHit hit) { return hit.branchHash; }
+
+      @Override
+      public int hash(int branchHash, int hitCount) { return branchHash; }
+    };
+    /** {@link RollingHasher} that includes hit count buckets */
+    Hasher ROLLING_WITH_HIT_COUNTS = new RollingHasher(true);
+    /** {@link RollingHasher} that does not include hit counts */
+    Hasher ROLLING_WITHOUT_HIT_COUNTS = new RollingHasher(false);
 
     /** Create unique hash for the given branch */
     int hash(BranchHit hit);
 
+    /**
+     * Same as {@link #hash(BranchHit)} for the given branch hash and hit count. The default implementation creates a
+     * {@link BranchHit}, implementations should override this to avoid it.
+     */
+    default int hash(int branchHash, int hitCount) { return hash(new BranchHit(branchHash, hitCount)); }
+
+    /**
+     * Create single hash for all branches in the given trace. This gives the same result as
+     * {@link #hash(BranchHit...)} with {@link TraceResult#branchHits()} but uses {@link #hash(int, int)} so no
+     * objects are created.
+     */
+    default int hash(TraceResult trace) {
+      // Same as Arrays.hashCode(int[]) without the array
+      int result = 1;
+      for (int i = 0; i < trace.size(); i++) result = 31 * result + hash(trace.branchHash(i), trace.hitCount(i));
+      return result;
+    }
+
     /**
      * Create single hash for all given branches together. The parameter is expected to be sorted by the caller before
      * invoking.
@@ -77,4 +120,52 @@ public class BranchHit implements Comparable<BranchHit> {
       return Arrays.hashCode(hashes);
     }
   }
+
+  /**
+   * {@link Hasher} whose hash for all branches is the sum of a mixed hash of each branch, so it does not depend on
+   * order. {@link BranchTracker.BranchHits} maintain these sums as hits are recorded, so for traces from
+   * {@link Tracer.Instrumenting}, {@link #hash(TraceResult)} is constant time and doesn't walk the hits. Other traces
+   * or hit arrays are summed the same way so the result is always the same.
+   */
+  public static class RollingHasher implements Hasher {
+    /** Finalization step of MurmurHash3 to spread the bits of a hash before summing */
+    public static int mix(int hash) {
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+      hash *= 0xc2b2ae35;
+      hash ^= hash >>> 16;
+      return hash;
+    }
+
+    /** Whether hit count buckets are included */
+    public final boolean withHitCounts;
+
+    public RollingHasher(boolean withHitCounts) {
+      this.withHitCounts = withHitCounts;
+    }
+
+    @Override
+    public int hash(BranchHit hit) { return hash(hit.branchHash, hit.hitCount); }
+
+    @Override
+    public int hash(int branchHash, int hitCount) {
+      return mix(withHitCounts ? withHitCountHash(branchHash, hitCount) : branchHash);
+    }
+
+    @Override
+    public int hash(BranchHit... hits) {
+      int result = 0;
+      for (BranchHit hit : hits) result += hash(hit);
+      return result;
+    }
+
+    @Override
+    public int hash(TraceResult trace) {
+      if (trace.hasSignatures()) return withHitCounts ? trace.bucketedSignature() : trace.signature();
+      int result = 0;
+      for (int i = 0; i < trace.size(); i++) result += hash(trace.branchHash(i), trace.hitCount(i));
+      return result;
+    }
+  }
 }
@@ -0,0 +1,170 @@
+package jwp.fuzz;
+
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Registry handing out dense, sequential branch IDs as methods are instrumented. When set on
+ * {@link ClassBranchAdapter.Config.Builder#branchRegistry(BranchRegistry)}, the IDs are used as the branch hashes
+ * instead of hashing the class, method, and instruction index. This means hits can be stored in flat arrays (e.g.
+ * {@link BranchTracker.BranchHits.Bitmap} sized to at least {@link #size()} has no collisions) and each ID can be
+ * mapped back to its {@link Branch} metadata. The registry can be saved and loaded so the same branch keeps the same
+ * ID across runs. All methods are thread safe.
+ * <p>
+ * Switch cases and the fall-through edges of jumps are only registered by
+ * {@link MethodBranchAdapter.ProbeStrategy#PROBE_ON_EDGES}. With
+ * {@link MethodBranchAdapter.ProbeStrategy#CHECK_BEFORE_BRANCH}, fall-through edges aren't recorded and the switch
+ * itself is registered, with the recorded hash still a combination of its ID and the value, so it is not dense.
+ */
+public class BranchRegistry {
+
+  /** Load a registry previously saved with {@link #save(Path)} */
+  public static BranchRegistry load(Path path) {
+    BranchRegistry registry = new BranchRegistry();
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) continue;
+        Branch branch = Branch.fromLine(line);
+        if (branch.id != registry.branches.size())
+          throw new IllegalArgumentException("Expected ID " + registry.branches.size() + ", got " + branch.id);
+        registry.branches.add(branch);
+        registry.branchesByKey.put(branch.key(), branch);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return registry;
+  }
+
+  protected final List<Branch> branches = new ArrayList<>();
+  protected final Map<String, Branch> branchesByKey = new HashMap<>();
+
+  /**
+   * Get the ID for the given branch, registering it if it has not been seen before. The switch key is null unless this
+   * is a single case of a switch. For catch handlers, the opcode is ATHROW and the instruction index is the handler
+   * label's. For the fall-through edge of a conditional jump, the opcode is GOTO and the instruction index is the
+   * jump's.
+   */
+  public synchronized int register(String className, String methodName, String methodDesc, int insnIndex,
+      Integer switchKey, int line, int opcode) {
+    Branch branch = new Branch(branches.size(), className, methodName, methodDesc, insnIndex, switchKey, line, opcode);
+    Branch existing = branchesByKey.putIfAbsent(branch.key(), branch);
+    if (existing != null) return existing.id;
+    branches.add(branch);
+    return branch.id;
+  }
+
+  /** Get the branch for the given ID or null if there isn't one */
+  public synchronized Branch get(int id) {
+    return id < 0 || id >= branches.size() ? null : branches.get(id);
+  }
+
+  /** The number of registered branches. All IDs are less than this. */
+  public synchronized int size() { return branches.size(); }
+
+  /** Copy of all registered branches, indexed by ID */
+  public synchronized List<Branch> branches() { return new ArrayList<>(branches); }
+
+  /** Save this registry to the given path. Writes to a temporary file first then moves it over the path. */
+  public void save(Path path) {
+    List<Branch> branches = branches();
+    try {
+      Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+        for (Branch branch : branches) {
+          writer.write(branch.toLine());
+          writer.newLine();
+        }
+      }
+      Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Metadata for a single registered branch */
+  public static class Branch {
+    /** The dense ID of this branch */
+    public final int id;
+    /** The internal JVM name of the class */
+    public final String className;
+    /** The name of the method */
+    public final String methodName;
+    /** The JVM descriptor of the method */
+    public final String methodDesc;
+    /** The index of the branching instruction in the original, non-instrumented method */
+    public final int insnIndex;
+    /** The case key if this branch is a single case of a switch, null otherwise */
+    public final Integer switchKey;
+    /** The source line number or -1 if unknown */
+    public final int line;
+    /** The opcode of the branching instruction, ATHROW for catch handlers, or GOTO for a jump's fall-through edge */
+    public final int opcode;
+
+    public Branch(int id, String className, String methodName, String methodDesc, int insnIndex,
+        Integer switchKey, int line, int opcode) {
+      this.id = id;
+      this.className = className;
+      this.methodName = methodName;
+      this.methodDesc = methodDesc;
+      this.insnIndex = insnIndex;
+      this.switchKey = switchKey;
+      this.line = line;
+      this.opcode = opcode;
+    }
+
+    /** The string that uniquely identifies the branch regardless of ID */
+    protected String key() {
+      return className + '.' + methodName + methodDesc + '@' + insnIndex + (switchKey == null ? "" : ":" + switchKey) +
+          (opcode == Opcodes.GOTO ? ":fallthrough" : "");
+    }
+
+    protected String toLine() {
+      return id + "\t" + className + "\t" + methodName + "\t" + methodDesc + "\t" + insnIndex + "\t" +
+          (switchKey == null ? "-" : switchKey) + "\t" + line + "\t" + opcode;
+    }
+
+    protected static Branch fromLine(String line) {
+      String[] pieces = line.split("\t");
+      if (pieces.length != 8) throw new IllegalArgumentException("Invalid branch line: " + line);
+      return new Branch(Integer.parseInt(pieces[0]), pieces[1], pieces[2], pieces[3], Integer.parseInt(pieces[4]),
+          "-".equals(pieces[5]) ? null : Integer.valueOf(pieces[5]), Integer.parseInt(pieces[6]),
+          Integer.parseInt(pieces[7]));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Branch branch = (Branch) o;
+      return id == branch.id &&
+          insnIndex == branch.insnIndex &&
+          line == branch.line &&
+          opcode == branch.opcode &&
+          Objects.equals(className, branch.className) &&
+          Objects.equals(methodName, branch.methodName) &&
+          Objects.equals(methodDesc, branch.methodDesc) &&
+          Objects.equals(switchKey, branch.switchKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(id, className, methodName, methodDesc, insnIndex, switchKey, line, opcode);
+    }
+
+    @Override
+    public String toString() {
+      return "Branch " + id + " at " + key() + " (line " + line + ", opcode " + opcode + ")";
+    }
+  }
+}
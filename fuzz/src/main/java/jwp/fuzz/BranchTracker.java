@@ -2,19 +2,31 @@ package jwp.fuzz;
 
 import org.objectweb.asm.Opcodes;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.SwitchPoint;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /** Internally used class that is called by branch tracking operations */
 public class BranchTracker {
 
-  /** Map storing all hits by thread */
-  public static final ConcurrentMap<Thread, BranchHits> branchHits = new ConcurrentHashMap<>();
+  /**
+   * Invalidated the first time any thread is tracked. Until then, {@link #trackingStarted()} folds to a constant in
+   * compiled code, so probes in code loaded before fuzzing starts cost nothing. It is never switched back since traces
+   * begin and end on every execution and each switch deoptimizes all of the code inlining the check.
+   */
+  private static final SwitchPoint untracked = new SwitchPoint();
+  private static final MethodHandle trackingStartedCheck = untracked.guardWithTest(
+      MethodHandles.constant(boolean.class, false), MethodHandles.constant(boolean.class, true));
+  /**
+   * Tracking state for each thread. Probes reach their thread's state with a single thread local lookup instead of
+   * hashing the thread into a shared map on every branch.
+   */
+  private static final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
 
   /** The set of method refs for the tracker */
   public static final MethodBranchAdapter.MethodRefs refs;
@@ -41,30 +53,165 @@ public class BranchTracker {
     methodNamesToOpcodes.put("tableSwitchCheck", Opcodes.TABLESWITCH);
     methodNamesToOpcodes.put("lookupSwitchCheck", Opcodes.LOOKUPSWITCH);
     methodNamesToOpcodes.put("catchCheck", Opcodes.ATHROW);
+    // Token hooks and the owner, name, and desc of the calls they replace
+    Map<String, String[]> methodNamesToHookedCalls = new HashMap<>();
+    methodNamesToHookedCalls.put("stringEqualsHook",
+        new String[] { "java/lang/String.equals(Ljava/lang/Object;)Z" });
+    methodNamesToHookedCalls.put("stringEqualsIgnoreCaseHook",
+        new String[] { "java/lang/String.equalsIgnoreCase(Ljava/lang/String;)Z" });
+    methodNamesToHookedCalls.put("stringStartsWithHook",
+        new String[] { "java/lang/String.startsWith(Ljava/lang/String;)Z" });
+    methodNamesToHookedCalls.put("stringEndsWithHook",
+        new String[] { "java/lang/String.endsWith(Ljava/lang/String;)Z" });
+    methodNamesToHookedCalls.put("stringContainsHook",
+        new String[] { "java/lang/String.contains(Ljava/lang/CharSequence;)Z" });
+    methodNamesToHookedCalls.put("bytesEqualsHook", new String[] { "java/util/Arrays.equals([B[B)Z" });
+    methodNamesToHookedCalls.put("charsEqualsHook", new String[] { "java/util/Arrays.equals([C[C)Z" });
+    methodNamesToHookedCalls.put("mapGetHook", new String[] {
+        "java/util/Map.get(Ljava/lang/Object;)Ljava/lang/Object;",
+        "java/util/HashMap.get(Ljava/lang/Object;)Ljava/lang/Object;",
+        "java/util/LinkedHashMap.get(Ljava/lang/Object;)Ljava/lang/Object;",
+        "java/util/TreeMap.get(Ljava/lang/Object;)Ljava/lang/Object;",
+        "java/util/concurrent/ConcurrentHashMap.get(Ljava/lang/Object;)Ljava/lang/Object;"
+    });
     MethodBranchAdapter.MethodRefs.Builder builder = MethodBranchAdapter.MethodRefs.builder();
     for (Method method : BranchTracker.class.getDeclaredMethods()) {
       Integer opcode = methodNamesToOpcodes.get(method.getName());
       if (opcode != null) builder.set(opcode, new MethodBranchAdapter.MethodRef(method));
+      else if (method.getName().equals("addBranchHash")) builder.probe(new MethodBranchAdapter.MethodRef(method));
+      else if (method.getName().equals("isTracking")) builder.isTracking(new MethodBranchAdapter.MethodRef(method));
+      else if (method.getName().equals("intComparison"))
+        builder.intComparison(new MethodBranchAdapter.MethodRef(method));
+      else if (method.getName().equals("longComparison"))
+        builder.longComparison(new MethodBranchAdapter.MethodRef(method));
+      else if (method.getName().equals("budgetCheck")) builder.budgetCheck(new MethodBranchAdapter.MethodRef(method));
+      else if (methodNamesToHookedCalls.containsKey(method.getName())) {
+        for (String call : methodNamesToHookedCalls.get(method.getName())) {
+          int nameIndex = call.indexOf('.');
+          int descIndex = call.indexOf('(');
+          builder.callHook(call.substring(0, nameIndex), call.substring(nameIndex + 1, descIndex),
+              call.substring(descIndex), new MethodBranchAdapter.MethodRef(method));
+        }
+      }
     }
     refs = builder.build();
   }
 
-  /** Start tracking the given thread. This will fail if the thread is already being tracked. */
+  /**
+   * Start tracking the given thread. This will fail if the thread is already being tracked or if the thread is not the
+   * current thread.
+   */
   public static void beginTrackingForThread(Thread thread) {
-    if (branchHits.putIfAbsent(thread, new BranchHits(thread.getId())) != null)
-      throw new IllegalArgumentException("Thread already being tracked");
+    beginTrackingForThread(thread, new BranchHits.MapBacked(thread.getId()));
+  }
+
+  /**
+   * Start tracking the given thread, recording into the given hits. This will fail if the thread is already being
+   * tracked or if the thread is not the current thread. The hits are used as is, so callers reusing them across traces
+   * must {@link BranchHits#reset()} them first.
+   */
+  public static void beginTrackingForThread(Thread thread, BranchHits hits) {
+    beginTrackingForThread(thread, hits, false);
   }
 
-  /** Stop tracking the given thread. Returns null if never started. */
+  /**
+   * Same as {@link #beginTrackingForThread(Thread, BranchHits)}, but if edgeCoverage is true, instead of recording
+   * each branch hash, this records the transition from the previous branch to the current one like
+   * <a href="http://lcamtuf.coredump.cx/afl/">AFL</a> does. The recorded value is the current branch hash XOR'd with
+   * the previous branch hash shifted right by one, so A to B differs from B to A and A to A is not zero.
+   */
+  public static void beginTrackingForThread(Thread thread, BranchHits hits, boolean edgeCoverage) {
+    beginTrackingForThread(thread, hits, edgeCoverage, null);
+  }
+
+  /**
+   * Same as {@link #beginTrackingForThread(Thread, BranchHits, boolean)}, but also logs comparison operands into the
+   * given log if it is not null. Like the hits, the log is used as is and must be reset by callers reusing it.
+   */
+  public static void beginTrackingForThread(Thread thread, BranchHits hits, boolean edgeCoverage,
+      ComparisonLog comparisonLog) {
+    beginTrackingForThread(thread, hits, edgeCoverage, comparisonLog, 0);
+  }
+
+  /**
+   * Same as {@link #beginTrackingForThread(Thread, BranchHits, boolean, ComparisonLog)}, but if executionBudget is
+   * positive, that is how many method entries and backward jumps code instrumented with
+   * {@link ClassBranchAdapter.Config#executionBudget} can pass before {@link #budgetCheck()} throws.
+   */
+  public static void beginTrackingForThread(Thread thread, BranchHits hits, boolean edgeCoverage,
+      ComparisonLog comparisonLog, long executionBudget) {
+    if (executionBudget < 0) throw new IllegalArgumentException("Execution budget can't be negative");
+    ThreadState state = stateForThread(thread);
+    if (state.hits != null) throw new IllegalArgumentException("Thread already being tracked");
+    state.edgeCoverage = edgeCoverage;
+    state.comparisonLog = comparisonLog;
+    state.executionBudget = executionBudget;
+    state.budgetRemaining = executionBudget > 0 ? executionBudget : Long.MAX_VALUE;
+    state.prevBranchHash = 0;
+    state.hits = hits;
+    if (!untracked.hasBeenInvalidated()) SwitchPoint.invalidateAll(new SwitchPoint[] { untracked });
+  }
+
+  /** Stop tracking the given thread. Returns null if never started. Fails if the thread is not the current thread. */
   public static BranchHits endTrackingForThread(Thread thread) {
-    return branchHits.remove(thread);
+    ThreadState state = stateForThread(thread);
+    BranchHits hits = state.hits;
+    state.hits = null;
+    state.comparisonLog = null;
+    state.budgetRemaining = Long.MAX_VALUE;
+    return hits;
   }
 
-  /** Internal helper to add a branch hash for the current thread */
+  /**
+   * Whether any thread has ever been tracked. Checked before anything else on every hit. Only a constant check once
+   * compiled, so it stays cheap even when traces constantly begin and end on many threads.
+   */
+  private static boolean trackingStarted() {
+    try {
+      return (boolean) trackingStartedCheck.invokeExact();
+    } catch (Throwable e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static ThreadState stateForThread(Thread thread) {
+    if (thread != Thread.currentThread())
+      throw new IllegalArgumentException("Tracking can only be changed from the thread being tracked");
+    return threadState.get();
+  }
+
+  /** Whether the current thread is being tracked. Called by dual version methods to pick which version to run. */
+  public static boolean isTracking() {
+    return trackingStarted() && threadState.get().hits != null;
+  }
+
+  /** Internal helper to add a branch hash for the current thread. Also the probe for edge-probed methods. */
   public static void addBranchHash(int branchHash) {
-    BranchHits hits = branchHits.get(Thread.currentThread());
-    // Even though hits isn't thread safe, we know we're safe since it's essentially thread local.
-    if (hits != null) hits.addHit(branchHash);
+    // Fast path so untracked code doesn't pay for the thread local lookup before anything is tracked
+    if (!trackingStarted()) return;
+    ThreadState state = threadState.get();
+    BranchHits hits = state.hits;
+    // Even though hits isn't thread safe, we know we're safe since it's thread local.
+    if (hits == null) return;
+    if (state.edgeCoverage) {
+      hits.addHit(branchHash ^ state.prevBranchHash);
+      state.prevBranchHash = branchHash >>> 1;
+    } else {
+      hits.addHit(branchHash);
+    }
+  }
+
+  /**
+   * Called at the start of each method and before each backward jump in code instrumented with
+   * {@link ClassBranchAdapter.Config#executionBudget}. Throws {@link ExecutionTimeoutError} once the tracked thread's
+   * budget is used up, and again on every call after so the target can't catch it and keep looping.
+   */
+  public static void budgetCheck() {
+    if (!trackingStarted()) return;
+    ThreadState state = threadState.get();
+    if (--state.budgetRemaining >= 0) return;
+    state.budgetRemaining = 0;
+    throw new ExecutionTimeoutError("Execution budget of " + state.executionBudget + " exceeded");
   }
 
   /** Called on IFEQ */
@@ -147,53 +294,319 @@ public class BranchTracker {
     if (value != null) addBranchHash(branchHash);
   }
 
+  /** Called before IF_ICMPxx when comparisons are logged */
+  public static void intComparison(int lvalue, int rvalue, int siteHash) {
+    if (lvalue == rvalue || !trackingStarted()) return;
+    ComparisonLog log = threadState.get().comparisonLog;
+    if (log != null) log.add(siteHash, 4, lvalue, rvalue);
+  }
+
+  /** Called instead of LCMP when comparisons are logged, so this must return the LCMP result */
+  public static int longComparison(long lvalue, long rvalue, int siteHash) {
+    if (lvalue != rvalue && trackingStarted()) {
+      ComparisonLog log = threadState.get().comparisonLog;
+      if (log != null) log.add(siteHash, 8, lvalue, rvalue);
+    }
+    return Long.compare(lvalue, rvalue);
+  }
+
+  private static ComparisonLog tokenLog() {
+    return trackingStarted() ? threadState.get().comparisonLog : null;
+  }
+
+  private static void addTokens(String lvalue, String rvalue) {
+    ComparisonLog log = tokenLog();
+    if (log != null) {
+      log.addToken(lvalue);
+      log.addToken(rvalue);
+    }
+  }
+
+  /** Called instead of {@link String#equals(Object)} when token hooks are used */
+  public static boolean stringEqualsHook(String str, Object other) {
+    boolean ret = str.equals(other);
+    if (!ret && other instanceof String) addTokens(str, (String) other);
+    return ret;
+  }
+
+  /** Called instead of {@link String#equalsIgnoreCase(String)} when token hooks are used */
+  public static boolean stringEqualsIgnoreCaseHook(String str, String other) {
+    boolean ret = str.equalsIgnoreCase(other);
+    if (!ret && other != null) addTokens(str, other);
+    return ret;
+  }
+
+  /** Called instead of {@link String#startsWith(String)} when token hooks are used */
+  public static boolean stringStartsWithHook(String str, String prefix) {
+    boolean ret = str.startsWith(prefix);
+    if (!ret) addTokens(str, prefix);
+    return ret;
+  }
+
+  /** Called instead of {@link String#endsWith(String)} when token hooks are used */
+  public static boolean stringEndsWithHook(String str, String suffix) {
+    boolean ret = str.endsWith(suffix);
+    if (!ret) addTokens(str, suffix);
+    return ret;
+  }
+
+  /** Called instead of {@link String#contains(CharSequence)} when token hooks are used */
+  public static boolean stringContainsHook(String str, CharSequence seq) {
+    boolean ret = str.contains(seq);
+    // Only strings, other sequences could be mutable or expensive to stringify
+    if (!ret && seq instanceof String) addTokens(str, (String) seq);
+    return ret;
+  }
+
+  /** Called instead of {@link Arrays#equals(byte[], byte[])} when token hooks are used */
+  public static boolean bytesEqualsHook(byte[] lvalue, byte[] rvalue) {
+    boolean ret = Arrays.equals(lvalue, rvalue);
+    if (!ret && lvalue != null && rvalue != null) {
+      ComparisonLog log = tokenLog();
+      if (log != null) {
+        log.addToken(lvalue);
+        log.addToken(rvalue);
+      }
+    }
+    return ret;
+  }
+
+  /** Called instead of {@link Arrays#equals(char[], char[])} when token hooks are used */
+  public static boolean charsEqualsHook(char[] lvalue, char[] rvalue) {
+    boolean ret = Arrays.equals(lvalue, rvalue);
+    if (!ret && lvalue != null && rvalue != null && lvalue.length <= ComparisonLog.MAX_TOKEN_LENGTH &&
+        rvalue.length <= ComparisonLog.MAX_TOKEN_LENGTH) addTokens(new String(lvalue), new String(rvalue));
+    return ret;
+  }
+
+  /**
+   * Called instead of {@link Map#get(Object)} when token hooks are used. On a miss with a string key, the map's string
+   * keys are added as tokens.
+   */
+  public static Object mapGetHook(Map<?, ?> map, Object key) {
+    Object ret = map.get(key);
+    if (ret == null && key instanceof String) {
+      ComparisonLog log = tokenLog();
+      if (log != null) log.addMapKeyTokens(map);
+    }
+    return ret;
+  }
+
   /** Called on TABLESWITCH */
   public static void tableSwitchCheck(int value, int min, int max, int branchHash) {
     // We have to construct a new hash here w/ the value if it's in there
     // TODO: Should I check same labels since that is technically the same branch?
-    if (value >= min && value <= max) addBranchHash(Arrays.hashCode(new int[] { branchHash, value }));
+    if (value >= min && value <= max) addBranchHash(switchCaseHash(branchHash, value));
   }
 
-  /** Called on LOOKUPSWITCH */
-  public static void lookupSwitchCheck(int value, int[] keys, int branchHash) {
+  /**
+   * Called on LOOKUPSWITCH. The sorted keys are encoded two chars per key as done by
+   * {@link MethodBranchAdapter#encodeSwitchKeys(java.util.List)}.
+   */
+  public static void lookupSwitchCheck(int value, String keys, int branchHash) {
     // We have to construct a new hash here w/ the value if it's in there
     // TODO: Should I check same labels since that is technically the same branch?
-    for (int key : keys) {
-      if (value == key) {
-        addBranchHash(Arrays.hashCode(new int[] { branchHash, value }));
+    int low = 0;
+    int high = (keys.length() / 2) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int key = (keys.charAt(mid * 2) << 16) | keys.charAt((mid * 2) + 1);
+      if (key < value) low = mid + 1;
+      else if (key > value) high = mid - 1;
+      else {
+        addBranchHash(switchCaseHash(branchHash, value));
         return;
       }
     }
   }
 
+  private static int switchCaseHash(int branchHash, int value) {
+    // Same as Arrays.hashCode(new int[] { branchHash, value }) without allocating
+    return (31 * (31 + branchHash)) + value;
+  }
+
   /** Called at beginning of catch handlers */
   public static void catchCheck(Throwable ex, int branchHash) {
     // We don't care what the throwable is TODO: configurable
     addBranchHash(branchHash);
   }
 
+  /** Internal class holding the tracking state of a single thread. Only ever accessed by its own thread. */
+  public static class ThreadState {
+    /** The hits being recorded for the thread or null if the thread is not being tracked */
+    public BranchHits hits;
+    /** Whether edges are recorded instead of branches */
+    public boolean edgeCoverage;
+    /** When recording edges, the previous branch hash already shifted for XOR'ing with the next */
+    public int prevBranchHash;
+    /** The log for comparison operands or null if they are not being logged */
+    public ComparisonLog comparisonLog;
+    /** The execution budget the trace started with or 0 if there is none */
+    public long executionBudget;
+    /** What is left of the execution budget, which is never used up if there is none or the thread isn't tracked */
+    public long budgetRemaining = Long.MAX_VALUE;
+  }
+
   /** Internal helper class to store a mutable integer */
   public static class IntRef {
     public int value;
   }
 
-  /** Internal class for holding and incrementing hit counts */
-  public static class BranchHits {
+  /** Base class for holding and incrementing hit counts of a single thread */
+  public static abstract class BranchHits {
     public final long threadId;
-    public final LinkedHashMap<Integer, IntRef> branchHashHits = new LinkedHashMap<>();
+    /** Order-independent signature of the branches hit so far, see {@link BranchHit.RollingHasher} */
+    protected int signature;
+    /** Same as {@link #signature} but also including the hit count buckets */
+    protected int bucketedSignature;
 
-    public BranchHits(long threadId) {
+    /** Create hits for the current thread */
+    protected BranchHits() { this(Thread.currentThread().getId()); }
+
+    protected BranchHits(long threadId) {
       this.threadId = threadId;
     }
 
-    /** Add a hit for the given branch count */
-    public void addHit(Integer branchHash) {
-      IntRef counter = branchHashHits.get(branchHash);
-      if (counter == null) {
-        counter = new IntRef();
-        branchHashHits.put(branchHash, counter);
+    /** Add a hit for the given branch hash */
+    public abstract void addHit(int branchHash);
+
+    /** Create the recorded hits, which are in {@link BranchHit}'s set ordering when accessed */
+    public abstract TraceResult toTraceResult();
+
+    /** Create the recorded hits as objects, sorted using {@link BranchHit}'s set ordering */
+    public BranchHit[] toBranchHits() { return toTraceResult().branchHits(); }
+
+    /** Clear all recorded hits so this can be reused for another trace */
+    public abstract void reset();
+
+    /** Whether the hits are recorded by the branch hashes added, as opposed to something derived from them */
+    public boolean recordsBranchHashes() { return true; }
+
+    /** Must be called by implementations each time the count for a branch hash changes to keep the signatures */
+    protected void countChanged(int branchHash, int oldCount, int newCount) {
+      if (oldCount == 0) signature += BranchHit.RollingHasher.mix(branchHash);
+      int oldBucket = BranchHit.hitBucket(oldCount);
+      int newBucket = BranchHit.hitBucket(newCount);
+      if (oldBucket != newBucket) {
+        if (oldCount != 0)
+          bucketedSignature -= BranchHit.RollingHasher.mix(BranchHit.withHitCountHash(branchHash, oldCount));
+        bucketedSignature += BranchHit.RollingHasher.mix(BranchHit.withHitCountHash(branchHash, newCount));
+      }
+    }
+
+    /**
+     * Same as {@link #countChanged(int, int, int)} for a count that just went up by one, but only does work when the
+     * count starts a new {@link BranchHit#hitBucket(int)} which most hits don't
+     */
+    protected void countIncremented(int branchHash, int newCount) {
+      if (newCount > 4 && (newCount & (newCount - 1)) != 0 || newCount == 64 || newCount > 128) return;
+      if (newCount == 1) signature += BranchHit.RollingHasher.mix(branchHash);
+      else bucketedSignature -= BranchHit.RollingHasher.mix(BranchHit.withHitCountHash(branchHash, newCount - 1));
+      bucketedSignature += BranchHit.RollingHasher.mix(BranchHit.withHitCountHash(branchHash, newCount));
+    }
+
+    /** Must be called by implementations on {@link #reset()} */
+    protected void resetSignatures() {
+      signature = 0;
+      bucketedSignature = 0;
+    }
+
+    /** Hits counted exactly, by branch hash, in a map */
+    public static class MapBacked extends BranchHits {
+      public final LinkedHashMap<Integer, IntRef> branchHashHits = new LinkedHashMap<>();
+
+      /** Create hits for the current thread */
+      public MapBacked() { }
+
+      public MapBacked(long threadId) { super(threadId); }
+
+      @Override
+      public void addHit(int branchHash) {
+        IntRef counter = branchHashHits.get(branchHash);
+        if (counter == null) {
+          counter = new IntRef();
+          branchHashHits.put(branchHash, counter);
+        }
+        counter.value++;
+        countIncremented(branchHash, counter.value);
+      }
+
+      @Override
+      public TraceResult toTraceResult() {
+        long[] ret = new long[branchHashHits.size()];
+        int index = 0;
+        for (Map.Entry<Integer, IntRef> hit : branchHashHits.entrySet()) {
+          ret[index++] = TraceResult.pack(hit.getKey(), hit.getValue().value);
+        }
+        // Sorted lazily by the result
+        return new TraceResult(ret, ret.length, signature, bucketedSignature);
+      }
+
+      @Override
+      public void reset() {
+        branchHashHits.clear();
+        resetSignatures();
+      }
+    }
+
+    /**
+     * Hits counted <a href="http://lcamtuf.coredump.cx/afl/">AFL</a>-style in a preallocated array of saturating byte
+     * counters indexed by the branch hash modulo the array size. Recording a hit is a single array increment and
+     * never allocates. Branches whose hashes land on the same slot are counted together and reported with the slot
+     * index as their {@link BranchHit#branchHash}. Counters stop at 255, which is still above the highest
+     * {@link BranchHit#hitBucket()}.
+     */
+    public static class Bitmap extends BranchHits {
+      /** The default amount of counters */
+      public static final int SIZE_DEFAULT = 1 << 16;
+
+      protected final byte[] counters;
+      protected final int mask;
+      // Slots hit since last reset, so extraction and clearing don't have to walk the whole array
+      protected final int[] hitSlots;
+      protected int hitSlotCount;
+
+      /** Create hits for the current thread with {@value SIZE_DEFAULT} counters */
+      public Bitmap() { this(SIZE_DEFAULT); }
+
+      /** Create hits for the current thread with the given amount of counters which must be a power of two */
+      public Bitmap(int size) {
+        if (size <= 0 || Integer.bitCount(size) != 1)
+          throw new IllegalArgumentException("Size must be a power of two");
+        counters = new byte[size];
+        mask = size - 1;
+        hitSlots = new int[size];
+      }
+
+      @Override
+      public void addHit(int branchHash) {
+        int slot = branchHash & mask;
+        byte counter = counters[slot];
+        if (counter == 0) hitSlots[hitSlotCount++] = slot;
+        if (counter != (byte) 0xFF) {
+          counters[slot] = (byte) (counter + 1);
+          countIncremented(slot, (counter & 0xFF) + 1);
+        }
+      }
+
+      @Override
+      public TraceResult toTraceResult() {
+        // Sorted lazily by the result
+        long[] ret = new long[hitSlotCount];
+        for (int i = 0; i < hitSlotCount; i++) ret[i] = TraceResult.pack(hitSlots[i], counters[hitSlots[i]] & 0xFF);
+        return new TraceResult(ret, ret.length, signature, bucketedSignature);
+      }
+
+      /** False, the hits are recorded by slot */
+      @Override
+      public boolean recordsBranchHashes() { return false; }
+
+      @Override
+      public void reset() {
+        for (int i = 0; i < hitSlotCount; i++) counters[hitSlots[i]] = 0;
+        hitSlotCount = 0;
+        resetSignatures();
       }
-      counter.value++;
     }
   }
 }
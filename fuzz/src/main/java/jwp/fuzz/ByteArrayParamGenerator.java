@@ -6,6 +6,7 @@ import java.nio.CharBuffer;
 import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -115,6 +116,9 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
   protected BigInteger totalExecNanoTimes = BigInteger.ZERO;
   protected BigInteger totalExecByteSizes = BigInteger.ZERO;
 
+  // The configured dictionary merged with the auto dictionary entries it was built from, replaced when they change
+  private volatile MergedDictionary mergedDictionary;
+
   /** Create a new byte array generator from the given config */
   public ByteArrayParamGenerator(Config config) {
     this.config = config;
@@ -158,18 +162,72 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
   @Override
   public boolean isInfinite() { return true; }
 
-  /** Puts param on input queue if result has never been seen before */
+  /** Puts param on input queue if result has never been seen before. Hangs are ignored. */
   @Override
   public void onResult(ExecutionResult result, int myParamIndex, byte[] myParam) {
-    // If it's a unique path, then our param goes to the input queue if it's not null
-    if (myParam == null) return;
+    // If it's a unique path, then our param goes to the input queue if it's not null. Hangs have a partial trace and
+    // would only slow the queue down.
+    if (myParam == null || result.hang()) return;
     synchronized (totalsMutex) {
       totalExecCount++;
       totalExecNanoTimes = totalExecNanoTimes.add(BigInteger.valueOf(result.nanoTime));
       totalExecByteSizes = totalExecByteSizes.add(BigInteger.valueOf(myParam.length));
     }
-    if (seenBranchesCache.checkUniqueAndStore(config.hasher.hash(result.branchHits))) {
-      inputQueue.enqueue(new TestCase(myParam, result.branchHits, result.nanoTime));
+    boolean unique = seenBranchesCache.checkUniqueAndStore(config.hasher.hash(result.trace));
+    // Distances are always stored, even for unique paths, so later ones are compared against the closest
+    boolean closer = config.valueProfile && result.trace.hasComparisons() &&
+        seenBranchesCache.checkCloserAndStore(result.trace.comparisonDistances());
+    if (unique || closer) {
+      inputQueue.enqueue(new TestCase(myParam, result.branchHits(), result.nanoTime,
+          result.trace.hasComparisons() ? result.trace.comparisons() : null,
+          config.valueProfile && result.trace.hasComparisons() ? result.trace.comparisonDistances() : null));
+    }
+    // Searching the input for every token of every result would cost more than most executions, so tokens are only
+    // learned with new coverage, when they are most likely new too
+    if (config.autoDictionary != null && (unique || closer)) {
+      for (byte[] token : result.trace.tokens()) {
+        // A token in the input is most likely the input side of the comparison and not something to learn
+        if (config.autoDictionary.fitsLength(token) && !config.autoDictionary.contains(token) &&
+            indexOf(myParam, token) < 0) config.autoDictionary.add(token);
+      }
+    }
+  }
+
+  private static int indexOf(byte[] bytes, byte[] sub) {
+    outer:
+    for (int i = 0; i <= bytes.length - sub.length; i++) {
+      for (int j = 0; j < sub.length; j++) if (bytes[i + j] != sub[j]) continue outer;
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * The dictionary for the dictionary stages and tweaks. This is {@link Config#dictionary} followed by the current
+   * entries of {@link Config#autoDictionary}, if any. The list must not be changed.
+   */
+  public List<byte[]> dictionary() {
+    if (config.autoDictionary == null) return config.dictionary;
+    List<byte[]> autoEntries = config.autoDictionary.entries();
+    if (autoEntries.isEmpty()) return config.dictionary;
+    MergedDictionary merged = mergedDictionary;
+    if (merged == null || merged.autoEntries != autoEntries) {
+      List<byte[]> entries = new ArrayList<>(config.dictionary.size() + autoEntries.size());
+      entries.addAll(config.dictionary);
+      entries.addAll(autoEntries);
+      merged = new MergedDictionary(autoEntries, Collections.unmodifiableList(entries));
+      mergedDictionary = merged;
+    }
+    return merged.entries;
+  }
+
+  private static class MergedDictionary {
+    final List<byte[]> autoEntries;
+    final List<byte[]> entries;
+
+    MergedDictionary(List<byte[]> autoEntries, List<byte[]> entries) {
+      this.autoEntries = autoEntries;
+      this.entries = entries;
     }
   }
 
@@ -257,8 +315,12 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
     public final List<byte[]> initialValues;
     /** See {@link Builder#dictionary(List)} */
     public final List<byte[]> dictionary;
+    /** See {@link Builder#autoDictionary(AutoDictionary)} */
+    public final AutoDictionary autoDictionary;
     /** See {@link Builder#hasher(BranchHit.Hasher)} */
     public final BranchHit.Hasher hasher;
+    /** See {@link Builder#valueProfile(boolean)} */
+    public final boolean valueProfile;
     /** See {@link Builder#hashCacheCreator(Function)} */
     public final Function<Config, HashCache> hashCacheCreator;
     /** See {@link Builder#inputQueueCreator} */
@@ -294,8 +356,9 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
     /** See {@link Builder#maxInput} */
     public final int maxInput;
 
-    public Config(List<byte[]> initialValues, List<byte[]> dictionary, BranchHit.Hasher hasher,
-        Function<Config, HashCache> hashCacheCreator, Function<Config, InputQueue> inputQueueCreator,
+    public Config(List<byte[]> initialValues, List<byte[]> dictionary, AutoDictionary autoDictionary,
+        BranchHit.Hasher hasher, boolean valueProfile, Function<Config, HashCache> hashCacheCreator,
+        Function<Config, InputQueue> inputQueueCreator,
         Function<Config, ByteArrayStage[]> stagesCreator, Function<Config, RandomHavocTweak[]> havocTweaksCreator,
         Random random, boolean reuseLastStageAsInfinite, int arithMax, int havocCycles, int havocCyclesInit,
         int havocCyclesMin, int havocMaxMult, int havocStackPower, int havocBlockSmall,
@@ -304,7 +367,9 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       // Copy the dictionary and sort it smallest first
       this.dictionary = new ArrayList<>(Objects.requireNonNull(dictionary));
       this.dictionary.sort(Comparator.comparingInt(b -> b.length));
+      this.autoDictionary = autoDictionary;
       this.hasher = Objects.requireNonNull(hasher);
+      this.valueProfile = valueProfile;
       this.hashCacheCreator = Objects.requireNonNull(hashCacheCreator);
       this.inputQueueCreator = Objects.requireNonNull(inputQueueCreator);
       this.stagesCreator = Objects.requireNonNull(stagesCreator);
@@ -404,11 +469,25 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       /** See {@link #dictionary(List)} */
       public List<byte[]> dictionaryDefault() { return Collections.emptyList(); }
 
+      /** See {@link #autoDictionary(AutoDictionary)} */
+      public AutoDictionary autoDictionary;
+      /**
+       * Dictionary the generator adds tokens to as they are compared against by the target and uses along with
+       * {@link #dictionary(List)}. Tokens only come from traces with comparison logging, see
+       * {@link ClassBranchAdapter.Config.Builder#tokenHooks(boolean)}, and only from executions that found a new path
+       * or a closer comparison. Can be shared between generators. Default is null which means no tokens are learned.
+       */
+      public Builder autoDictionary(AutoDictionary autoDictionary) {
+        this.autoDictionary = autoDictionary;
+        return this;
+      }
+
       /** See {@link #hasher(BranchHit.Hasher)} */
       public BranchHit.Hasher hasher;
       /**
        * Hasher that is used by the byte array generator to determine branch uniqueness. Default is
-       * {@link BranchHit.Hasher#WITH_HIT_COUNTS}.
+       * {@link BranchHit.Hasher#WITH_HIT_COUNTS}. For throughput, {@link BranchHit.Hasher#ROLLING_WITH_HIT_COUNTS}
+       * can be used which gets the signature maintained while tracing instead of walking the hits.
        */
       public Builder hasher(BranchHit.Hasher hasher) {
         this.hasher = hasher;
@@ -417,6 +496,22 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       /** See {@link #hasher(BranchHit.Hasher)} */
       public BranchHit.Hasher hasherDefault() { return BranchHit.Hasher.WITH_HIT_COUNTS; }
 
+      /** See {@link #valueProfile(boolean)} */
+      public Boolean valueProfile;
+      /**
+       * Whether to also keep inputs that get the operands of any comparison closer than before, like the value profile
+       * of libFuzzer. Closeness is the fewest differing bits between the operands at each comparison site, see
+       * {@link ComparisonLog#toDistances()}, stored via {@link HashCache#checkCloserAndStore(long[])}. This turns a
+       * multi-byte equality check from a cliff into a slope the queue can climb. It requires comparison logging in the
+       * tracer and the agent and the queue grows faster with it. Default is false.
+       */
+      public Builder valueProfile(boolean valueProfile) {
+        this.valueProfile = valueProfile;
+        return this;
+      }
+      /** See {@link #valueProfile(boolean)} */
+      public boolean valueProfileDefault() { return false; }
+
       /** See {@link #hashCacheCreator(Function)} */
       public Function<Config, HashCache> hashCacheCreator;
       /**
@@ -459,6 +554,7 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       /** See {@link #stagesCreator(Function)} */
       public Function<Config, ByteArrayStage[]> stagesCreatorDefault() {
         return config -> new ByteArrayStage[] {
+            new ByteArrayStage.InputToState(),
             new ByteArrayStage.FlipBits(1),
             new ByteArrayStage.FlipBits(2),
             new ByteArrayStage.FlipBits(4),
@@ -509,7 +605,7 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
               new RandomHavocTweak.CloneOrInsertBytes(),
               new RandomHavocTweak.OverwriteRandomOrFixedBytes()
           ));
-          if (!config.dictionary.isEmpty()) {
+          if (!config.dictionary.isEmpty() || config.autoDictionary != null) {
             tweaks.add(new RandomHavocTweak.OverwriteWithDictionary());
             tweaks.add(new RandomHavocTweak.InsertWithDictionary());
           }
@@ -548,7 +644,9 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
         return new Config(
             initialValues == null ? initialValuesDefault() : initialValues,
             dictionary == null ? dictionaryDefault() : dictionary,
+            autoDictionary,
             hasher == null ? hasherDefault() : hasher,
+            valueProfile == null ? valueProfileDefault() : valueProfile,
             hashCacheCreator == null ? hashCacheCreatorDefault() : hashCacheCreator,
             inputQueueCreator == null ? inputQueueCreatorDefault() : inputQueueCreator,
             stagesCreator == null ? stagesCreatorDefault() : stagesCreator,
@@ -580,10 +678,19 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
      */
     boolean checkUniqueAndStore(int hash);
 
+    /**
+     * Store the closest of the given comparison distances per site (see {@link TraceResult#comparisonDistances()}) and
+     * return true if any are closer than the ones stored before. Note, this should be thread safe as it can be called
+     * by multiple threads simultaneously. Default is to return false which disables value profile feedback.
+     */
+    default boolean checkCloserAndStore(long[] comparisonDistances) { return false; }
+
     /** A {@link ByteArrayParamGenerator.HashCache} backed by a thread-safe {@link Set} */
     class SetBacked implements HashCache {
       /** The set being used */
       public final Set<Integer> backingSet;
+      /** The closest distance seen per comparison site for {@link #checkCloserAndStore(long[])} */
+      public final ConcurrentMap<Integer, Integer> closestDistances = new ConcurrentHashMap<>();
 
       /** Create a cache backed by a set made from a {@link ConcurrentHashMap} */
       public SetBacked() {
@@ -601,6 +708,28 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       @Override
       public boolean checkUniqueAndStore(int hash) { return backingSet.add(hash); }
 
+      @Override
+      public boolean checkCloserAndStore(long[] comparisonDistances) {
+        boolean closer = false;
+        for (long packed : comparisonDistances) {
+          Integer siteHash = (int) (packed >>> 32);
+          int distance = (int) packed;
+          while (true) {
+            Integer prev = closestDistances.putIfAbsent(siteHash, distance);
+            if (prev == null) {
+              closer = true;
+              break;
+            }
+            if (prev <= distance) break;
+            if (closestDistances.replace(siteHash, prev, distance)) {
+              closer = true;
+              break;
+            }
+          }
+        }
+        return closer;
+      }
+
       @Override
       public void close() { }
     }
@@ -690,7 +819,16 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       protected void cull() {
         // Need test cases sorted by score
         queue.sort(Comparator.comparingLong(t -> t.score));
-        // Now go over each, moving to the front ones that have branches we haven't seen
+        // With value profile entries, the closest distance per site in the queue
+        Map<Integer, Integer> closestDistances = new HashMap<>();
+        for (TestCase entry : queue) {
+          if (entry.comparisonDistances == null) continue;
+          for (long packed : entry.comparisonDistances) {
+            closestDistances.merge((int) (packed >>> 32), (int) packed, Math::min);
+          }
+        }
+        // Now go over each, moving to the front ones that have branches we haven't seen or that are the first with
+        // the closest distance of a site
         Set<Integer> seenBranchHashes = new HashSet<>();
         int indexOfLastMovedForward = 0;
         for (int i = 0; i < queue.size(); i++) {
@@ -700,6 +838,12 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
             // Any new hash means move the item
             if (seenBranchHashes.add(hasher.hash(entry.branchHits[j])) && !foundNewHash) foundNewHash = true;
           }
+          if (entry.comparisonDistances != null) {
+            for (long packed : entry.comparisonDistances) {
+              // Removed once claimed so only the first entry with it is moved
+              if (closestDistances.remove((int) (packed >>> 32), (int) packed)) foundNewHash = true;
+            }
+          }
           if (foundNewHash) {
             // Remove this one and put it earlier
             queue.add(indexOfLastMovedForward, queue.remove(i));
@@ -720,6 +864,13 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
     public final long nanoTime;
     /** The score of the test case which is bytes * nanos. -1 if not result of execution. */
     public final long score;
+    /** The comparisons logged when it was executed. Null if not logged or not result of execution. */
+    public final ComparisonLog.Comparison[] comparisons;
+    /**
+     * The closest comparison distances per site when it was executed, see {@link TraceResult#comparisonDistances()}.
+     * Null if not using {@link Config#valueProfile} or not result of execution.
+     */
+    public final long[] comparisonDistances;
 
     /** Instantiate a test case that is not the result of an execution */
     public TestCase(byte[] bytes) {
@@ -727,13 +878,26 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       branchHits = null;
       nanoTime = -1;
       score = -1;
+      comparisons = null;
+      comparisonDistances = null;
     }
 
     public TestCase(byte[] bytes, BranchHit[] branchHits, long nanoTime) {
+      this(bytes, branchHits, nanoTime, null);
+    }
+
+    public TestCase(byte[] bytes, BranchHit[] branchHits, long nanoTime, ComparisonLog.Comparison[] comparisons) {
+      this(bytes, branchHits, nanoTime, comparisons, null);
+    }
+
+    public TestCase(byte[] bytes, BranchHit[] branchHits, long nanoTime, ComparisonLog.Comparison[] comparisons,
+        long[] comparisonDistances) {
       this.bytes = bytes;
       this.branchHits = branchHits;
       this.nanoTime = nanoTime;
       score = bytes.length * nanoTime;
+      this.comparisons = comparisons;
+      this.comparisonDistances = comparisonDistances;
     }
 
     public boolean isResultOfExecution() { return branchHits == null; }
@@ -746,7 +910,9 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       return nanoTime == testCase.nanoTime &&
           score == testCase.score &&
           Arrays.equals(bytes, testCase.bytes) &&
-          Arrays.equals(branchHits, testCase.branchHits);
+          Arrays.equals(branchHits, testCase.branchHits) &&
+          Arrays.equals(comparisons, testCase.comparisons) &&
+          Arrays.equals(comparisonDistances, testCase.comparisonDistances);
     }
 
     @Override
@@ -754,6 +920,8 @@ public class ByteArrayParamGenerator implements ParamGenerator<byte[]> {
       int result = Objects.hash(nanoTime, score);
       result = 31 * result + Arrays.hashCode(bytes);
       result = 31 * result + Arrays.hashCode(branchHits);
+      result = 31 * result + Arrays.hashCode(comparisons);
+      result = 31 * result + Arrays.hashCode(comparisonDistances);
       return result;
     }
   }
@@ -1,5 +1,7 @@
 package jwp.fuzz;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.stream.IntStream;
@@ -34,6 +36,89 @@ public interface ByteArrayStage extends BiFunction<ByteArrayParamGenerator, byte
     return apply(gen, entry.bytes);
   }
 
+  /**
+   * Input-to-state replacement like <a href="https://github.com/RUB-SysSec/redqueen">Redqueen</a>. For each comparison
+   * logged when the entry was executed (see {@link ComparisonLog}), the bytes of one operand are searched for in the
+   * input and each occurrence is replaced with the other operand. The operands are searched for as 1, 2, 4, and 8 byte
+   * little and big endian values, as long as both fit, and as ASCII decimal. This only produces values for entries
+   * executed with comparison logging and is meant to run before the deterministic stages since a handful of these can
+   * get past magic values and length checks.
+   */
+  class InputToState implements ByteArrayStage {
+    /** The default max number of byte arrays created per entry */
+    public static final int MAX_CANDIDATES_DEFAULT = 4096;
+
+    protected final int maxCandidates;
+
+    /** Create the stage with {@value MAX_CANDIDATES_DEFAULT} max byte arrays per entry */
+    public InputToState() { this(MAX_CANDIDATES_DEFAULT); }
+
+    /** Create the stage with the given max number of byte arrays created per entry */
+    public InputToState(int maxCandidates) { this.maxCandidates = maxCandidates; }
+
+    @Override
+    public Stream<byte[]> apply(ByteArrayParamGenerator gen, ByteArrayParamGenerator.TestCase entry) {
+      if (entry.comparisons == null || entry.comparisons.length == 0) return Stream.empty();
+      byte[] buf = entry.bytes;
+      // Different comparisons often lead to the same replacement, only the first is kept
+      Set<ByteBuffer> seen = new HashSet<>();
+      return Arrays.stream(entry.comparisons).flatMap(comparison -> Stream.concat(
+          replacements(buf, comparison.width, comparison.lvalue, comparison.rvalue),
+          replacements(buf, comparison.width, comparison.rvalue, comparison.lvalue)
+      )).filter(bytes -> seen.add(ByteBuffer.wrap(bytes))).limit(maxCandidates);
+    }
+
+    /** Empty since there are no comparisons without an entry */
+    @Override
+    public Stream<byte[]> apply(ByteArrayParamGenerator gen, byte[] buf) { return Stream.empty(); }
+
+    /** All byte arrays with an encoding of the from value in the given buf replaced by the same encoding of to */
+    protected static Stream<byte[]> replacements(byte[] buf, int width, long from, long to) {
+      Stream<byte[]> binary = IntStream.of(1, 2, 4, 8).
+          filter(size -> size <= width && fitsIn(from, size) && fitsIn(to, size)).boxed().flatMap(size -> {
+            byte[] fromLe = toBytesLe(from, size), toLe = toBytesLe(to, size);
+            if (size == 1) return replaceEach(buf, fromLe, toLe);
+            return Stream.concat(replaceEach(buf, fromLe, toLe), replaceEach(buf, reversed(fromLe), reversed(toLe)));
+          });
+      return Stream.concat(binary, replaceEach(buf, Long.toString(from).getBytes(StandardCharsets.ISO_8859_1),
+          Long.toString(to).getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    /** Whether the value can be represented in the given byte count as either signed or unsigned */
+    protected static boolean fitsIn(long value, int size) {
+      if (size >= 8) return true;
+      return value >= -(1L << ((size * 8) - 1)) && value < (1L << (size * 8));
+    }
+
+    protected static byte[] toBytesLe(long value, int size) {
+      byte[] ret = new byte[size];
+      for (int i = 0; i < size; i++) ret[i] = (byte) (value >> (i * 8));
+      return ret;
+    }
+
+    protected static byte[] reversed(byte[] bytes) {
+      byte[] ret = new byte[bytes.length];
+      for (int i = 0; i < bytes.length; i++) ret[i] = bytes[bytes.length - 1 - i];
+      return ret;
+    }
+
+    /** Each byte array with a single occurrence of the pattern replaced, the replacement can be a different size */
+    protected static Stream<byte[]> replaceEach(byte[] buf, byte[] pattern, byte[] replacement) {
+      if (Arrays.equals(pattern, replacement)) return Stream.empty();
+      return IntStream.rangeClosed(0, buf.length - pattern.length).filter(index -> {
+        for (int i = 0; i < pattern.length; i++) if (buf[index + i] != pattern[i]) return false;
+        return true;
+      }).mapToObj(index -> {
+        byte[] ret = new byte[buf.length - pattern.length + replacement.length];
+        System.arraycopy(buf, 0, ret, 0, index);
+        System.arraycopy(replacement, 0, ret, index, replacement.length);
+        System.arraycopy(buf, index + pattern.length, ret, index + replacement.length,
+            buf.length - index - pattern.length);
+        return ret;
+      });
+    }
+  }
+
   /** Walking bit flip, flipping a configurably-consecutive amount */
   class FlipBits implements ByteArrayStage {
     protected final int consecutiveToFlip;
@@ -295,16 +380,17 @@ public interface ByteArrayStage extends BiFunction<ByteArrayParamGenerator, byte
   }
 
   /**
-   * Walking dictionary-item setter using the configured dictionary from
-   * {@link ByteArrayParamGenerator.Config#dictionary}
+   * Walking dictionary-item setter using the dictionary from {@link ByteArrayParamGenerator#dictionary()} at the time
+   * the stage is applied
    */
   class OverwriteWithDictionary implements ByteArrayStage {
     @Override
     public Stream<byte[]> apply(ByteArrayParamGenerator gen, byte[] buf) {
       // To match AFL, we'll put different dictionary entries at an index before going on to the next index
-      if (gen.config.dictionary.isEmpty()) return Stream.empty();
+      List<byte[]> dictionary = gen.dictionary();
+      if (dictionary.isEmpty()) return Stream.empty();
       return IntStream.range(0, buf.length).boxed().flatMap(byteIndex ->
-          gen.config.dictionary.stream().filter(d -> byteIndex + d.length < buf.length).map(entry ->
+          dictionary.stream().filter(d -> byteIndex + d.length < buf.length).map(entry ->
               withCopiedBytes(buf, arr -> System.arraycopy(entry, 0, arr, byteIndex, entry.length))
           )
       );
@@ -312,15 +398,16 @@ public interface ByteArrayStage extends BiFunction<ByteArrayParamGenerator, byte
   }
 
   /**
-   * Walking dictionary-item inserter using the configured dictionary from
-   * {@link ByteArrayParamGenerator.Config#dictionary}
+   * Walking dictionary-item inserter using the dictionary from {@link ByteArrayParamGenerator#dictionary()} at the time
+   * the stage is applied
    */
   class InsertWithDictionary implements ByteArrayStage {
     @Override
     public Stream<byte[]> apply(ByteArrayParamGenerator gen, byte[] buf) {
-      if (gen.config.dictionary.isEmpty()) return Stream.empty();
+      List<byte[]> dictionary = gen.dictionary();
+      if (dictionary.isEmpty()) return Stream.empty();
       return IntStream.range(0, buf.length).boxed().flatMap(byteIndex ->
-          gen.config.dictionary.stream().filter(d -> buf.length + d.length <= gen.config.maxInput).map(entry -> {
+          dictionary.stream().filter(d -> buf.length + d.length <= gen.config.maxInput).map(entry -> {
             byte[] newArr = new byte[buf.length + entry.length];
             System.arraycopy(buf, 0, newArr, 0, byteIndex);
             System.arraycopy(entry, 0, newArr, byteIndex, entry.length);
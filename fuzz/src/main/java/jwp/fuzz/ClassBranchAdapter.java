@@ -2,35 +2,302 @@ package jwp.fuzz;
 
 import org.objectweb.asm.*;
 
+import java.util.Objects;
+
 /** The {@link ClassVisitor} that uses {@link MethodBranchAdapter} to insert branch calls in methods */
 public class ClassBranchAdapter extends ClassVisitor {
 
   /** Create new classfile bytecode set from given original classfile bytecode using this adapter */
   public static byte[] transform(byte[] origBytes) {
+    return transform(origBytes, Config.builder().build());
+  }
+
+  /** Create new classfile bytecode set from given original classfile bytecode using this adapter and config */
+  public static byte[] transform(byte[] origBytes, Config config) {
     ClassReader reader = new ClassReader(origBytes);
     ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
-    reader.accept(new ClassBranchAdapter(BranchTracker.refs, writer), 0);
+    boolean streamMethods = !referencesClass(reader, BranchTracker.refs.commonClassSig);
+    reader.accept(new ClassBranchAdapter(BranchTracker.refs, config, writer, streamMethods), config.readerFlags());
     return writer.toByteArray();
   }
 
+  /** Whether the class read by the given reader refers to the given internal class name, e.g. to call its methods */
+  public static boolean referencesClass(ClassReader reader, String className) {
+    char[] buf = new char[reader.getMaxStringLength()];
+    for (int i = 1; i < reader.getItemCount(); i++) {
+      int offset = reader.getItem(i);
+      // The offset is zero for the unused entry after a long or double, 7 is the CONSTANT_Class tag
+      if (offset > 0 && reader.readByte(offset - 1) == 7 && className.equals(reader.readUTF8(offset, buf))) return true;
+    }
+    return false;
+  }
+
   private final MethodBranchAdapter.MethodRefs refs;
+  private final Config config;
   private String className;
+  private int classVersion;
+  private int classAccess;
+  private final boolean streamMethods;
 
   /** Create this adapter with the given {@link MethodBranchAdapter.MethodRefs} to call */
   public ClassBranchAdapter(MethodBranchAdapter.MethodRefs refs, ClassVisitor cv) {
+    this(refs, Config.builder().build(), cv);
+  }
+
+  /**
+   * Create this adapter with the given {@link MethodBranchAdapter.MethodRefs} to call and the given config. The class
+   * reader feeding this adapter must use the {@link Config#readerFlags()}.
+   */
+  public ClassBranchAdapter(MethodBranchAdapter.MethodRefs refs, Config config, ClassVisitor cv) {
+    this(refs, config, cv, false);
+  }
+
+  /**
+   * Same as the other constructor but, if streamMethods is true, methods are instrumented as they are read by
+   * {@link StreamingBranchAdapter} when the config allows it instead of being buffered as trees first. That is only
+   * safe if the class doesn't reference the refs' class, see {@link #referencesClass(ClassReader, String)}.
+   */
+  public ClassBranchAdapter(MethodBranchAdapter.MethodRefs refs, Config config, ClassVisitor cv,
+      boolean streamMethods) {
     super(Opcodes.ASM6, cv);
     this.refs = refs;
+    this.config = config;
+    this.streamMethods = streamMethods;
   }
 
   @Override
   public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
     super.visit(version, access, name, signature, superName, interfaces);
     className = name;
+    classVersion = version;
+    classAccess = access;
+  }
+
+  @Override
+  public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+    // Constant strings are usually inlined at use but not always, e.g. when used reflectively
+    if (config.autoDictionary != null && value instanceof String &&
+        config.autoDictionary.collectsConstantsFrom(className)) config.autoDictionary.add((String) value);
+    return super.visitField(access, name, desc, signature, value);
   }
 
   @Override
   public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
     MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-    return new MethodBranchAdapter(refs, className, access, name, desc, signature, exceptions, mv);
+    // Methods the fuzzed method can't reach are left alone
+    if (config.reachableMethods != null && !config.reachableMethods.contains(className, name, desc)) return mv;
+    if (config.dualVersionMethods && DualVersionMethodAdapter.canDualVersion(classAccess, access, name)) {
+      return new DualVersionMethodAdapter(refs, config, className, classVersion, access, name, desc, signature,
+          exceptions, mv, () -> super.visitMethod(DualVersionMethodAdapter.cloneAccess(access),
+              name + DualVersionMethodAdapter.CLONE_SUFFIX, desc, signature, exceptions));
+    }
+    if (streamMethods && StreamingBranchAdapter.canStream(config))
+      return new StreamingBranchAdapter(refs, config, className, name, desc, mv);
+    return new MethodBranchAdapter(refs, config, className, access, name, desc, signature, exceptions, mv);
+  }
+
+  /** Configuration for how classes are instrumented. Can use {@link #builder()} to build the config easier */
+  public static class Config {
+    /** Create a {@link Builder} for easy building */
+    public static Builder builder() { return new Builder(); }
+
+    /** See {@link Builder#probeStrategy(MethodBranchAdapter.ProbeStrategy)} */
+    public final MethodBranchAdapter.ProbeStrategy probeStrategy;
+    /** See {@link Builder#branchRegistry(BranchRegistry)} */
+    public final BranchRegistry branchRegistry;
+    /** See {@link Builder#dualVersionMethods(boolean)} */
+    public final boolean dualVersionMethods;
+    /** See {@link Builder#comparisonLogging(boolean)} */
+    public final boolean comparisonLogging;
+    /** See {@link Builder#tokenHooks(boolean)} */
+    public final boolean tokenHooks;
+    /** See {@link Builder#autoDictionary(AutoDictionary)} */
+    public final AutoDictionary autoDictionary;
+    /** See {@link Builder#saturatedProbes(SaturatedProbes)} */
+    public final SaturatedProbes saturatedProbes;
+    /** See {@link Builder#reachableMethods(ReachableMethods)} */
+    public final ReachableMethods reachableMethods;
+    /** See {@link Builder#executionBudget(boolean)} */
+    public final boolean executionBudget;
+
+    public Config(MethodBranchAdapter.ProbeStrategy probeStrategy, BranchRegistry branchRegistry) {
+      this(probeStrategy, branchRegistry, false, false, false, null, null, null, false);
+    }
+
+    public Config(MethodBranchAdapter.ProbeStrategy probeStrategy, BranchRegistry branchRegistry,
+        boolean dualVersionMethods, boolean comparisonLogging, boolean tokenHooks, AutoDictionary autoDictionary,
+        SaturatedProbes saturatedProbes, ReachableMethods reachableMethods, boolean executionBudget) {
+      this.probeStrategy = Objects.requireNonNull(probeStrategy);
+      this.branchRegistry = branchRegistry;
+      this.dualVersionMethods = dualVersionMethods;
+      this.comparisonLogging = comparisonLogging;
+      this.tokenHooks = tokenHooks;
+      this.autoDictionary = autoDictionary;
+      this.saturatedProbes = saturatedProbes;
+      this.reachableMethods = reachableMethods;
+      this.executionBudget = executionBudget;
+    }
+
+    /** Copy of this config with {@link #dualVersionMethods} set to the given value */
+    public Config withDualVersionMethods(boolean dualVersionMethods) {
+      if (this.dualVersionMethods == dualVersionMethods) return this;
+      return new Config(probeStrategy, branchRegistry, dualVersionMethods, comparisonLogging, tokenHooks,
+          autoDictionary, saturatedProbes, reachableMethods, executionBudget);
+    }
+
+    /** Copy of this config with {@link #reachableMethods} set to the given value */
+    public Config withReachableMethods(ReachableMethods reachableMethods) {
+      if (this.reachableMethods == reachableMethods) return this;
+      return new Config(probeStrategy, branchRegistry, dualVersionMethods, comparisonLogging, tokenHooks,
+          autoDictionary, saturatedProbes, reachableMethods, executionBudget);
+    }
+
+    /** The flags to give to {@link ClassReader#accept(ClassVisitor, int)} when reading a class to instrument */
+    public int readerFlags() {
+      // Trampolines reuse the frames of their targets which can only be copied when expanded, and dual version
+      // prologues add a new frame which can't be mixed with compressed ones
+      return probeStrategy == MethodBranchAdapter.ProbeStrategy.PROBE_ON_EDGES || dualVersionMethods ?
+          ClassReader.EXPAND_FRAMES : 0;
+    }
+
+    /** Builder to make creating {@link Config}s easier. Nothing is required. */
+    public static class Builder {
+      /** See {@link #probeStrategy(MethodBranchAdapter.ProbeStrategy)} */
+      public MethodBranchAdapter.ProbeStrategy probeStrategy;
+      /** See {@link #branchRegistry(BranchRegistry)} */
+      public BranchRegistry branchRegistry;
+      /** See {@link #dualVersionMethods(boolean)} */
+      public Boolean dualVersionMethods;
+      /** See {@link #comparisonLogging(boolean)} */
+      public Boolean comparisonLogging;
+      /** See {@link #tokenHooks(boolean)} */
+      public Boolean tokenHooks;
+      /** See {@link #autoDictionary(AutoDictionary)} */
+      public AutoDictionary autoDictionary;
+      /** See {@link #saturatedProbes(SaturatedProbes)} */
+      public SaturatedProbes saturatedProbes;
+      /** See {@link #reachableMethods(ReachableMethods)} */
+      public ReachableMethods reachableMethods;
+      /** See {@link #executionBudget(boolean)} */
+      public Boolean executionBudget;
+      /**
+       * How probes are placed on branches. The default is
+       * {@link MethodBranchAdapter.ProbeStrategy#CHECK_BEFORE_BRANCH}.
+       */
+      public Builder probeStrategy(MethodBranchAdapter.ProbeStrategy probeStrategy) {
+        this.probeStrategy = probeStrategy;
+        return this;
+      }
+      /** See {@link #probeStrategy(MethodBranchAdapter.ProbeStrategy)} */
+      public MethodBranchAdapter.ProbeStrategy probeStrategyDefault() {
+        return MethodBranchAdapter.ProbeStrategy.CHECK_BEFORE_BRANCH;
+      }
+
+      /**
+       * The registry to get dense branch IDs from instead of hashing the location of the branch. The default is null
+       * which means branch hashes are used.
+       */
+      public Builder branchRegistry(BranchRegistry branchRegistry) {
+        this.branchRegistry = branchRegistry;
+        return this;
+      }
+
+      /**
+       * Whether to emit each method twice, the original and an instrumented clone that is only called when the current
+       * thread is being tracked. See {@link DualVersionMethodAdapter}. This adds methods, so it cannot be used when
+       * retransforming already loaded classes. The default is false.
+       */
+      public Builder dualVersionMethods(boolean dualVersionMethods) {
+        this.dualVersionMethods = dualVersionMethods;
+        return this;
+      }
+      /** See {@link #dualVersionMethods(boolean)} */
+      public boolean dualVersionMethodsDefault() { return false; }
+
+      /**
+       * Whether to also instrument integer and long comparisons to log their operands. The operands of each IF_ICMPxx
+       * are given to a logging call before the jump and each LCMP is replaced by a call that logs and compares. They
+       * are only logged for traces given a {@link ComparisonLog}. The default is false.
+       */
+      public Builder comparisonLogging(boolean comparisonLogging) {
+        this.comparisonLogging = comparisonLogging;
+        return this;
+      }
+      /** See {@link #comparisonLogging(boolean)} */
+      public boolean comparisonLoggingDefault() { return false; }
+
+      /**
+       * Whether to replace calls to string and array equality and prefix checks (e.g. {@link String#equals(Object)},
+       * {@link String#startsWith(String)}, {@link java.util.Arrays#equals(byte[], byte[])}, and
+       * {@link java.util.Map#get(Object)}) with hooks that make the same call and, when it fails, record the compared
+       * value as a token in the trace's {@link ComparisonLog}. The default is false.
+       */
+      public Builder tokenHooks(boolean tokenHooks) {
+        this.tokenHooks = tokenHooks;
+        return this;
+      }
+      /** See {@link #tokenHooks(boolean)} */
+      public boolean tokenHooksDefault() { return false; }
+
+      /**
+       * The dictionary to add constants found in instrumented classes to: string constants and the int and long
+       * constants and switch keys that are compared against. Only classes the dictionary
+       * {@link AutoDictionary#collectsConstantsFrom(String)} are searched. Generators given the same dictionary via
+       * {@link ByteArrayParamGenerator.Config.Builder#autoDictionary(AutoDictionary)} then use them. The default is
+       * null which means no constants are collected.
+       */
+      public Builder autoDictionary(AutoDictionary autoDictionary) {
+        this.autoDictionary = autoDictionary;
+        return this;
+      }
+
+      /**
+       * The probe hit counts to register probes with and to leave out the probes already saturated. Classes are
+       * retransformed to strip probes as they saturate, see {@link SaturatedProbes}. The default is null which means
+       * all probes are kept.
+       */
+      public Builder saturatedProbes(SaturatedProbes saturatedProbes) {
+        this.saturatedProbes = saturatedProbes;
+        return this;
+      }
+
+      /**
+       * The methods to instrument, all others are left as is and are not given dual versions. The default is null
+       * which means all methods are instrumented.
+       */
+      public Builder reachableMethods(ReachableMethods reachableMethods) {
+        this.reachableMethods = reachableMethods;
+        return this;
+      }
+
+      /**
+       * Whether to insert a budget check at the start of each method and before each backward jump. When the trace was
+       * started with a budget, see {@link Tracer.Instrumenting.Config.Builder#executionBudget(long)}, each check
+       * counts against it and once it runs out they throw {@link ExecutionTimeoutError}. This stops runaway loops that
+       * ignore interrupts. The checks are added after the probes so branch hashes are the same either way. The default
+       * is false.
+       */
+      public Builder executionBudget(boolean executionBudget) {
+        this.executionBudget = executionBudget;
+        return this;
+      }
+      /** See {@link #executionBudget(boolean)} */
+      public boolean executionBudgetDefault() { return false; }
+
+      /** Build the config */
+      public Config build() {
+        return new Config(
+            probeStrategy == null ? probeStrategyDefault() : probeStrategy,
+            branchRegistry,
+            dualVersionMethods == null ? dualVersionMethodsDefault() : dualVersionMethods,
+            comparisonLogging == null ? comparisonLoggingDefault() : comparisonLogging,
+            tokenHooks == null ? tokenHooksDefault() : tokenHooks,
+            autoDictionary,
+            saturatedProbes,
+            reachableMethods,
+            executionBudget == null ? executionBudgetDefault() : executionBudget
+        );
+      }
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,244 @@
+package jwp.fuzz;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Log of the operands of integer and long comparisons seen during a single trace, like the CmpLog of AFL++ and
+ * Redqueen. The comparison sites are only instrumented when
+ * {@link ClassBranchAdapter.Config.Builder#comparisonLogging(boolean)} is set, and only logged when the tracer is given
+ * a log via {@link Tracer.Instrumenting.Config.Builder#comparisonLogging(boolean)}. Each site keeps only its last few distinct
+ * operand pairs in a preallocated ring buffer and sites past the maximum are ignored, so logging never allocates.
+ * Comparisons of equal operands are not logged.
+ * <p>
+ * The log also collects the operands of failed calls hooked with
+ * {@link ClassBranchAdapter.Config.Builder#tokenHooks(boolean)} (e.g. both strings of a failed
+ * {@link String#startsWith(String)}) as tokens, deduped and capped at {@value MAX_TOKENS} per trace. Which operand
+ * came from the input is not known here, {@link ByteArrayParamGenerator} drops tokens found in the input. Instances are
+ * not thread safe and are meant to be used for a single thread like {@link BranchTracker.BranchHits}.
+ */
+public class ComparisonLog {
+  /** The default maximum number of distinct sites logged per trace */
+  public static final int MAX_SITES_DEFAULT = 512;
+  /** The default number of operand pairs kept per site */
+  public static final int ENTRIES_PER_SITE_DEFAULT = 8;
+  /** An empty set of comparisons */
+  public static final Comparison[] NO_COMPARISONS = new Comparison[0];
+  /** An empty set of distances */
+  public static final long[] NO_DISTANCES = new long[0];
+  /** The max number of tokens kept per trace */
+  public static final int MAX_TOKENS = 64;
+  /** The max number of chars or bytes in a token */
+  public static final int MAX_TOKEN_LENGTH = AutoDictionary.MAX_LENGTH_DEFAULT;
+  /** The max number of entries in a map whose keys are taken as tokens */
+  public static final int MAX_MAP_SIZE = 256;
+  /** The max number of keys looked at per map whose keys are taken as tokens */
+  public static final int MAX_MAP_KEYS = 32;
+  /** An empty set of tokens */
+  public static final byte[][] NO_TOKENS = new byte[0][];
+
+  // Strings or wrapped byte arrays to dedupe tokens in the trace
+  protected final Set<Object> tokenSet = new HashSet<>();
+  protected final List<byte[]> tokens = new ArrayList<>();
+  // Maps already harvested this trace, compared by identity
+  protected final Object[] harvestedMaps = new Object[16];
+  protected int harvestedMapCount;
+
+  protected final int maxSites;
+  protected final int entriesPerSite;
+  // Open addressed table of site index + 1 by site hash, zero means empty
+  protected final int[] siteTable;
+  protected final int siteTableMask;
+  protected final int[] siteHashes;
+  protected final int[] siteTableSlots;
+  protected final byte[] siteWidths;
+  // Total pairs logged per site, the next ring buffer position is this modulo the entries per site
+  protected final int[] siteCounts;
+  // Fewest differing bits between the operands of any comparison per site
+  protected final byte[] siteMinDistances;
+  protected final long[] lvalues;
+  protected final long[] rvalues;
+  protected int siteCount;
+
+  /** Create a log with {@value MAX_SITES_DEFAULT} sites of {@value ENTRIES_PER_SITE_DEFAULT} entries each */
+  public ComparisonLog() { this(MAX_SITES_DEFAULT, ENTRIES_PER_SITE_DEFAULT); }
+
+  /** Create a log with the given max sites and number of entries per site */
+  public ComparisonLog(int maxSites, int entriesPerSite) {
+    if (maxSites <= 0 || entriesPerSite <= 0) throw new IllegalArgumentException("Sizes must be positive");
+    this.maxSites = maxSites;
+    this.entriesPerSite = entriesPerSite;
+    siteTable = new int[Integer.highestOneBit(maxSites) * 4];
+    siteTableMask = siteTable.length - 1;
+    siteHashes = new int[maxSites];
+    siteTableSlots = new int[maxSites];
+    siteWidths = new byte[maxSites];
+    siteCounts = new int[maxSites];
+    siteMinDistances = new byte[maxSites];
+    lvalues = new long[maxSites * entriesPerSite];
+    rvalues = new long[maxSites * entriesPerSite];
+  }
+
+  /** Log the given operands of the given byte width (4 or 8) at the given site */
+  public void add(int siteHash, int width, long lvalue, long rvalue) {
+    int site = siteIndex(siteHash, width);
+    if (site < 0) return;
+    int distance = width == 4 ? Integer.bitCount((int) lvalue ^ (int) rvalue) : Long.bitCount(lvalue ^ rvalue);
+    if (distance < siteMinDistances[site]) siteMinDistances[site] = (byte) distance;
+    int count = siteCounts[site];
+    int base = site * entriesPerSite;
+    // Loops tend to compare the same values over and over, so skip a repeat of the last pair
+    if (count > 0) {
+      int last = base + ((count - 1) % entriesPerSite);
+      if (lvalues[last] == lvalue && rvalues[last] == rvalue) return;
+    }
+    int pos = base + (count % entriesPerSite);
+    lvalues[pos] = lvalue;
+    rvalues[pos] = rvalue;
+    // Once full, keep the count below twice the entries so it can't overflow but still gives the ring position
+    siteCounts[site] = count + 1 == entriesPerSite * 2 ? entriesPerSite : count + 1;
+  }
+
+  private int siteIndex(int siteHash, int width) {
+    int slot = BranchHit.RollingHasher.mix(siteHash) & siteTableMask;
+    while (true) {
+      int entry = siteTable[slot];
+      if (entry == 0) break;
+      if (siteHashes[entry - 1] == siteHash) return entry - 1;
+      slot = (slot + 1) & siteTableMask;
+    }
+    if (siteCount == maxSites) return -1;
+    int site = siteCount++;
+    siteTable[slot] = site + 1;
+    siteHashes[site] = siteHash;
+    siteTableSlots[site] = slot;
+    siteWidths[site] = (byte) width;
+    siteCounts[site] = 0;
+    siteMinDistances[site] = Byte.MAX_VALUE;
+    return site;
+  }
+
+  /** Add the given compared string as a token if not already added this trace */
+  public void addToken(String token) {
+    if (token.isEmpty() || token.length() > MAX_TOKEN_LENGTH || tokens.size() >= MAX_TOKENS) return;
+    if (tokenSet.add(token)) tokens.add(token.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Add a copy of the given compared bytes as a token if not already added this trace */
+  public void addToken(byte[] token) {
+    if (token.length == 0 || token.length > MAX_TOKEN_LENGTH || tokens.size() >= MAX_TOKENS) return;
+    if (tokenSet.contains(ByteBuffer.wrap(token))) return;
+    byte[] copy = Arrays.copyOf(token, token.length);
+    tokenSet.add(ByteBuffer.wrap(copy));
+    tokens.add(copy);
+  }
+
+  /**
+   * Add the first {@value MAX_MAP_KEYS} string keys of the given map as tokens. This is only done for
+   * {@link HashMap}s, {@link LinkedHashMap}s, and {@link TreeMap}s, whose key iteration runs no code of the target,
+   * with at most {@value MAX_MAP_SIZE} entries, and at most once per map per trace.
+   */
+  public void addMapKeyTokens(Map<?, ?> map) {
+    Class<?> mapClass = map.getClass();
+    if (mapClass != HashMap.class && mapClass != LinkedHashMap.class && mapClass != TreeMap.class) return;
+    if (map.size() > MAX_MAP_SIZE || tokens.size() >= MAX_TOKENS) return;
+    for (int i = 0; i < harvestedMapCount; i++) if (harvestedMaps[i] == map) return;
+    if (harvestedMapCount == harvestedMaps.length) return;
+    harvestedMaps[harvestedMapCount++] = map;
+    int keyCount = 0;
+    for (Object key : map.keySet()) {
+      if (keyCount++ >= MAX_MAP_KEYS || tokens.size() >= MAX_TOKENS) break;
+      if (key instanceof String) addToken((String) key);
+    }
+  }
+
+  /** Clear all logged comparisons and tokens so this can be reused for another trace */
+  public void reset() {
+    for (int i = 0; i < siteCount; i++) siteTable[siteTableSlots[i]] = 0;
+    siteCount = 0;
+    if (!tokens.isEmpty()) {
+      tokenSet.clear();
+      tokens.clear();
+    }
+    Arrays.fill(harvestedMaps, 0, harvestedMapCount, null);
+    harvestedMapCount = 0;
+  }
+
+  /** Whether nothing has been logged */
+  public boolean isEmpty() { return siteCount == 0 && tokens.isEmpty(); }
+
+  /** The tokens added this trace in the order they were added */
+  public byte[][] toTokens() {
+    return tokens.isEmpty() ? NO_TOKENS : tokens.toArray(new byte[tokens.size()][]);
+  }
+
+  /**
+   * Create the closest distance for each site, as the site hash in the upper 32 bits and the fewest differing bits
+   * between the operands of any logged comparison at that site in the lower 32. Unlike {@link #toComparisons()}, this
+   * covers all comparisons and not just the last few per site. Used for value profile feedback, see
+   * {@link ByteArrayParamGenerator.Config.Builder#valueProfile(boolean)}.
+   */
+  public long[] toDistances() {
+    if (siteCount == 0) return NO_DISTANCES;
+    long[] ret = new long[siteCount];
+    for (int i = 0; i < siteCount; i++) ret[i] = ((long) siteHashes[i] << 32) | siteMinDistances[i];
+    return ret;
+  }
+
+  /** Create the logged comparisons, grouped by site with each site's pairs oldest first */
+  public Comparison[] toComparisons() {
+    int size = 0;
+    for (int i = 0; i < siteCount; i++) size += Math.min(siteCounts[i], entriesPerSite);
+    if (size == 0) return NO_COMPARISONS;
+    Comparison[] ret = new Comparison[size];
+    int index = 0;
+    for (int i = 0; i < siteCount; i++) {
+      int count = siteCounts[i];
+      int kept = Math.min(count, entriesPerSite);
+      int base = i * entriesPerSite;
+      for (int j = count - kept; j < count; j++) {
+        int pos = base + (j % entriesPerSite);
+        ret[index++] = new Comparison(siteHashes[i], siteWidths[i], lvalues[pos], rvalues[pos]);
+      }
+    }
+    return ret;
+  }
+
+  /** A single logged comparison */
+  public static class Comparison {
+    /** The hash of the comparison site */
+    public final int siteHash;
+    /** The byte width of the compared values, 4 for ints and 8 for longs */
+    public final int width;
+    /** The left operand, sign extended for ints */
+    public final long lvalue;
+    /** The right operand, sign extended for ints */
+    public final long rvalue;
+
+    public Comparison(int siteHash, int width, long lvalue, long rvalue) {
+      this.siteHash = siteHash;
+      this.width = width;
+      this.lvalue = lvalue;
+      this.rvalue = rvalue;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Comparison other = (Comparison) o;
+      return siteHash == other.siteHash && width == other.width && lvalue == other.lvalue && rvalue == other.rvalue;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(new long[] { siteHash, width, lvalue, rvalue });
+    }
+
+    @Override
+    public String toString() {
+      return "Comparison(site " + siteHash + ", width " + width + ": " + lvalue + " vs " + rvalue + ")";
+    }
+  }
+}
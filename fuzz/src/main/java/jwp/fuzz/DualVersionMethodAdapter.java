@@ -0,0 +1,175 @@
+package jwp.fuzz;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * {@link MethodVisitor} that emits a method twice. The original method keeps its body as is, but gets a prologue that
+ * calls an instrumented clone of itself when the current thread is being tracked. The clone is a private synthetic
+ * method named with {@link #CLONE_SUFFIX} and is instrumented by {@link MethodBranchAdapter}. So code that runs outside
+ * of a trace only pays for the tracking check on method entry instead of on every branch. Since this adds methods, it
+ * can only be used when a class is first loaded, not on retransformation. The clone shows up in stack traces.
+ */
+public class DualVersionMethodAdapter extends MethodNode {
+
+  /** The suffix added to the method name for the instrumented clone */
+  public static final String CLONE_SUFFIX = "$jwp";
+
+  /** Whether a method with the given access and name in a class with the given access can be dual versioned */
+  public static boolean canDualVersion(int classAccess, int access, String name) {
+    // Interfaces can't have private methods before Java 9 and constructors have to call super first
+    return (classAccess & Opcodes.ACC_INTERFACE) == 0 &&
+        (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_BRIDGE)) == 0 &&
+        !name.startsWith("<") && !name.endsWith(CLONE_SUFFIX);
+  }
+
+  /** The access of the clone for a method with the given access */
+  public static int cloneAccess(int access) {
+    return (access & ~(Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED | Opcodes.ACC_SYNCHRONIZED | Opcodes.ACC_VARARGS)) |
+        Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC;
+  }
+
+  private final MethodBranchAdapter.MethodRefs refs;
+  private final ClassBranchAdapter.Config config;
+  private final String className;
+  private final int classVersion;
+  private final MethodVisitor mv;
+  private final Supplier<MethodVisitor> cloneMvCreator;
+  private boolean alreadyTransformed;
+
+  /**
+   * Create this adapter with a set of {@link MethodBranchAdapter.MethodRefs}, the internal class name and classfile
+   * version for the method, values given from
+   * {@link org.objectweb.asm.ClassVisitor#visitMethod(int, String, String, String, String[])}, a
+   * {@link MethodVisitor} for the original method to delegate to, and a creator for the clone's visitor. The creator is
+   * only called if the clone is needed and should visit a method with {@link #CLONE_SUFFIX} and
+   * {@link #cloneAccess(int)}.
+   */
+  public DualVersionMethodAdapter(MethodBranchAdapter.MethodRefs refs, ClassBranchAdapter.Config config,
+      String className, int classVersion, int access, String name, String desc, String signature,
+      String[] exceptions, MethodVisitor mv, Supplier<MethodVisitor> cloneMvCreator) {
+    super(Opcodes.ASM6, access, name, desc, signature, exceptions);
+    this.refs = refs;
+    this.config = config;
+    this.className = className;
+    this.classVersion = classVersion;
+    this.mv = mv;
+    this.cloneMvCreator = cloneMvCreator;
+  }
+
+  @Override
+  public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+    super.visitMethodInsn(opcode, owner, name, desc, itf);
+    // We have to mark this method as already transformed if there is a call to refs sig
+    if (refs.commonClassSig.equals(owner)) alreadyTransformed = true;
+  }
+
+  @Override
+  public void visitEnd() {
+    if (alreadyTransformed || refs.isTracking == null) {
+      accept(mv);
+      return;
+    }
+    acceptClone();
+    instructions.insert(prologue());
+    accept(mv);
+  }
+
+  private void acceptClone() {
+    int cloneAccess = cloneAccess(access);
+    // Annotations stay on the original only so things like test runners don't find the clone
+    List<AnnotationNode> visibleAnnotations = this.visibleAnnotations;
+    List<AnnotationNode> invisibleAnnotations = this.invisibleAnnotations;
+    List<TypeAnnotationNode> visibleTypeAnnotations = this.visibleTypeAnnotations;
+    List<TypeAnnotationNode> invisibleTypeAnnotations = this.invisibleTypeAnnotations;
+    List<AnnotationNode>[] visibleParameterAnnotations = this.visibleParameterAnnotations;
+    List<AnnotationNode>[] invisibleParameterAnnotations = this.invisibleParameterAnnotations;
+    int visibleAnnotableParameterCount = this.visibleAnnotableParameterCount;
+    int invisibleAnnotableParameterCount = this.invisibleAnnotableParameterCount;
+    this.visibleAnnotations = null;
+    this.invisibleAnnotations = null;
+    this.visibleTypeAnnotations = null;
+    this.invisibleTypeAnnotations = null;
+    this.visibleParameterAnnotations = null;
+    this.invisibleParameterAnnotations = null;
+    this.visibleAnnotableParameterCount = 0;
+    this.invisibleAnnotableParameterCount = 0;
+    // The clone is instrumented with the original name so branch hashes are the same as without dual versions. This
+    // method is known to not be transformed already, so the clone can be streamed.
+    if (StreamingBranchAdapter.canStream(config)) {
+      accept(new StreamingBranchAdapter(refs, config, className, name, desc, cloneMvCreator.get()));
+    } else {
+      accept(new MethodBranchAdapter(refs, config, className, cloneAccess, name, desc, signature,
+          exceptions.toArray(new String[exceptions.size()]), cloneMvCreator.get()));
+    }
+    this.visibleAnnotations = visibleAnnotations;
+    this.invisibleAnnotations = invisibleAnnotations;
+    this.visibleTypeAnnotations = visibleTypeAnnotations;
+    this.invisibleTypeAnnotations = invisibleTypeAnnotations;
+    this.visibleParameterAnnotations = visibleParameterAnnotations;
+    this.invisibleParameterAnnotations = invisibleParameterAnnotations;
+    this.visibleAnnotableParameterCount = visibleAnnotableParameterCount;
+    this.invisibleAnnotableParameterCount = invisibleAnnotableParameterCount;
+  }
+
+  private InsnList prologue() {
+    boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+    InsnList insns = new InsnList();
+    LabelNode originalBody = new LabelNode();
+    // If tracking, call the clone with all params and return its result
+    insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, refs.isTracking.classSig, refs.isTracking.methodName,
+        refs.isTracking.methodSig, false));
+    insns.add(new JumpInsnNode(Opcodes.IFEQ, originalBody));
+    List<Object> frameLocals = new ArrayList<>();
+    int localIndex = 0;
+    if (!isStatic) {
+      insns.add(new VarInsnNode(Opcodes.ALOAD, localIndex++));
+      frameLocals.add(className);
+    }
+    for (Type paramType : Type.getArgumentTypes(desc)) {
+      insns.add(new VarInsnNode(paramType.getOpcode(Opcodes.ILOAD), localIndex));
+      localIndex += paramType.getSize();
+      frameLocals.add(frameType(paramType));
+    }
+    insns.add(new MethodInsnNode(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL,
+        className, name + CLONE_SUFFIX, desc, false));
+    insns.add(new InsnNode(Type.getReturnType(desc).getOpcode(Opcodes.IRETURN)));
+    insns.add(originalBody);
+    // Classes with stack map frames need one here unless the body already starts with one
+    if (classVersion >= Opcodes.V1_6 && !startsWithFrame()) {
+      insns.add(new FrameNode(Opcodes.F_NEW, frameLocals.size(), frameLocals.toArray(), 0, new Object[0]));
+    }
+    return insns;
+  }
+
+  private boolean startsWithFrame() {
+    AbstractInsnNode node = instructions.getFirst();
+    while (node instanceof LabelNode || node instanceof LineNumberNode) node = node.getNext();
+    return node instanceof FrameNode;
+  }
+
+  private static Object frameType(Type type) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+      case Type.CHAR:
+      case Type.BYTE:
+      case Type.SHORT:
+      case Type.INT:
+        return Opcodes.INTEGER;
+      case Type.FLOAT:
+        return Opcodes.FLOAT;
+      case Type.LONG:
+        return Opcodes.LONG;
+      case Type.DOUBLE:
+        return Opcodes.DOUBLE;
+      default:
+        return type.getInternalName();
+    }
+  }
+}
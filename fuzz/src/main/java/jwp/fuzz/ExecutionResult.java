@@ -9,7 +9,7 @@ public class ExecutionResult {
   /** The parameter array that was used */
   public final Object[] params;
   /** All of the branches hit during the invocation. This is expected to be sorted. */
-  public final BranchHit[] branchHits;
+  public final TraceResult trace;
   /** The number of nanos it took to execute the method */
   public final long nanoTime;
   /**
@@ -24,20 +24,41 @@ public class ExecutionResult {
   public final Throwable exception;
 
   public ExecutionResult(Method method, Object[] params, BranchHit[] branchHits, long nanoTime, Object result) {
-    this(method, params, branchHits, nanoTime, result, null);
+    this(method, params, TraceResult.of(branchHits), nanoTime, result, null);
   }
 
   public ExecutionResult(Method method, Object[] params, BranchHit[] branchHits, long nanoTime, Throwable exception) {
-    this(method, params, branchHits, nanoTime, null, exception);
+    this(method, params, TraceResult.of(branchHits), nanoTime, null, exception);
   }
 
-  private ExecutionResult(Method method, Object[] params, BranchHit[] branchHits,
+  public ExecutionResult(Method method, Object[] params, TraceResult trace, long nanoTime, Object result) {
+    this(method, params, trace, nanoTime, result, null);
+  }
+
+  public ExecutionResult(Method method, Object[] params, TraceResult trace, long nanoTime, Throwable exception) {
+    this(method, params, trace, nanoTime, null, exception);
+  }
+
+  private ExecutionResult(Method method, Object[] params, TraceResult trace,
       long nanoTime, Object result, Throwable exception) {
     this.method = method;
     this.params = params;
-    this.branchHits = branchHits;
+    this.trace = trace;
     this.nanoTime = nanoTime;
     this.result = result;
     this.exception = exception;
   }
+
+  /**
+   * All of the branches hit during the invocation as sorted objects. These are created on first call, so hot paths
+   * should use {@link #trace} instead.
+   */
+  public BranchHit[] branchHits() { return trace.branchHits(); }
+
+  /**
+   * True if the execution ran past its timeout, in which case {@link #exception} is an {@link ExecutionTimeoutError}
+   * and {@link #trace} is only what was hit until it stopped. It is empty if the execution never stopped. See
+   * {@link Invoker.WithWatchdog} and {@link Tracer.Instrumenting.Config.Builder#executionBudget(long)}.
+   */
+  public boolean hang() { return exception instanceof ExecutionTimeoutError; }
 }
@@ -0,0 +1,15 @@
+package jwp.fuzz;
+
+/**
+ * Set as the {@link ExecutionResult#exception} of an execution that ran past its timeout, which makes the result a
+ * {@link ExecutionResult#hang()}. The stack trace is where the execution was when it was found running too long. For
+ * {@link Invoker.WithWatchdog} timeouts, the cause, if any, is what the execution threw after being interrupted. This
+ * is also what {@link BranchTracker#budgetCheck()} throws inside the execution when its execution budget runs out, and
+ * it is an error instead of an exception so catch blocks in the target method for exceptions don't swallow it.
+ */
+public class ExecutionTimeoutError extends Error {
+  private static final long serialVersionUID = 1L;
+
+  public ExecutionTimeoutError(String msg) { super(msg); }
+  public ExecutionTimeoutError(String msg, Throwable cause) { super(msg, cause); }
+}
@@ -1,12 +1,15 @@
 package jwp.fuzz;
 
+import java.lang.instrument.UnmodifiableClassException;
 import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
@@ -49,15 +52,30 @@ public class Fuzzer {
    */
   public void fuzz(AtomicBoolean stopper) throws Throwable {
     try {
+      if (config.reachableOnly) limitInstrumentationToReachable();
+      if (config.directWorkers > 0) {
+        fuzzDirect(stopper);
+        return;
+      }
       // Go over every param set, invoking
       Iterator<Object[]> paramIter = config.params.iterator();
       AtomicReference<Throwable> stopExRef = new AtomicReference<>();
       boolean first = true;
       Invoker.Config invokerConfig = new Invoker.Config(config.tracer, config.method);
+      long submitCount = 0;
+      // Only set when the executions in flight are bounded, in which case results are recorded here in batches
+      ResultRing ring = config.maxInFlight > 0 ? new ResultRing(config.maxInFlight) : null;
+      BiConsumer<ExecutionResult, Throwable> recordDrained = (er, ex) -> recordDrainedResult(er, ex, stopExRef);
+      int inFlight = 0;
       while (paramIter.hasNext() && !stopper.get()) {
+        // Record what has completed so far, waiting for something to complete if the window is full
+        if (ring != null) inFlight -= ring.drain(recordDrained, inFlight >= config.maxInFlight);
         // If there's an exception, throw it
         Throwable stopEx = stopExRef.get();
         if (stopEx != null) throw stopEx;
+        if (config.saturatedProbes != null && ++submitCount % config.stripSaturatedProbesInterval == 0) {
+          stripSaturatedProbes();
+        }
         // Obtain the params, but copy them
         Object[] params = paramIter.next();
         params = Arrays.copyOf(params, params.length);
@@ -72,15 +90,33 @@ public class Fuzzer {
               firstResult.exception instanceof ClassCastException)
             throw new FuzzException.FirstRunFailed(firstResult.exception);
         }
+        CompletableFuture<ExecutionResult> execFut = fut;
         if (config.onSubmit != null) {
           fut = config.onSubmit.apply(config, fut);
-          if (fut == null) continue;
+          if (fut == null) {
+            // Still takes up room in the window until it completes
+            if (ring != null) {
+              inFlight++;
+              execFut.whenComplete((er, ex) -> ring.addSkipped());
+            }
+            continue;
+          }
+        }
+        if (ring != null) {
+          inFlight++;
+          fut.whenComplete(ring::add);
+          continue;
         }
         fut.whenComplete((er, ex) -> {
-          if (er != null) config.params.onResult(er);
+          if (er != null) recordResult(er);
           if (ex != null && config.stopOnFutureFailure) stopExRef.set(ex);
         });
       }
+      if (ring != null) {
+        while (inFlight > 0 && stopExRef.get() == null) inFlight -= ring.drain(recordDrained, true);
+        Throwable stopEx = stopExRef.get();
+        if (stopEx != null) throw stopEx;
+      }
     } finally {
       // Shutdown and wait a really long time
       config.invoker.shutdownAndWaitUntilComplete(1000, TimeUnit.DAYS);
@@ -88,6 +124,151 @@ public class Fuzzer {
     }
   }
 
+  /** Record a result drained from the {@link ResultRing}, treating a failure to record like a future failure */
+  protected void recordDrainedResult(ExecutionResult result, Throwable ex, AtomicReference<Throwable> stopExRef) {
+    try {
+      if (result != null) recordResult(result);
+    } catch (Throwable e) {
+      ex = e;
+    }
+    if (ex != null && config.stopOnFutureFailure) stopExRef.compareAndSet(null, ex);
+  }
+
+  /** Give the result to the params and the saturated probes if any */
+  protected void recordResult(ExecutionResult result) {
+    config.params.onResult(result);
+    if (config.saturatedProbes != null) config.saturatedProbes.record(result.trace);
+  }
+
+  /**
+   * Fuzz on {@link Config#directWorkers} threads until stopped, the params end, or a worker fails. The calling thread
+   * is the first worker and does the first run check before the others are started.
+   */
+  protected void fuzzDirect(AtomicBoolean stopper) throws Throwable {
+    Invoker.Config invokerConfig = new Invoker.Config(config.tracer, config.method);
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<Throwable> stopExRef = new AtomicReference<>();
+    AtomicLong submitCount = new AtomicLong();
+    // Iterating params from finite generators per worker would run each set once per worker
+    boolean shareParams = !hasOnlyInfiniteGenerators(config.params);
+    Iterator<Object[]> paramIter = config.params.iterator();
+    Object[] firstParams = nextDirectParams(paramIter, shareParams);
+    if (firstParams == null) return;
+    ExecutionResult firstResult = invokerConfig.execute(firstParams);
+    if (firstResult.exception instanceof WrongMethodTypeException ||
+        firstResult.exception instanceof ClassCastException)
+      throw new FuzzException.FirstRunFailed(firstResult.exception);
+    onDirectResult(firstResult, stopExRef);
+    List<Thread> threads = new ArrayList<>(config.directWorkers - 1);
+    try {
+      for (int i = 1; i < config.directWorkers; i++) {
+        Iterator<Object[]> workerParamIter = shareParams ? paramIter : null;
+        Thread thread = new Thread(() -> runDirectWorker(invokerConfig, workerParamIter, shareParams, stopper, done,
+            stopExRef, submitCount), "jwp-fuzz-worker-" + i);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+      }
+      runDirectWorker(invokerConfig, paramIter, shareParams, stopper, done, stopExRef, submitCount);
+    } finally {
+      done.set(true);
+      for (Thread thread : threads) thread.join();
+    }
+    Throwable stopEx = stopExRef.get();
+    if (stopEx != null) throw stopEx;
+  }
+
+  /**
+   * Generate, execute, and record results in a loop on the current thread until stopped or done, setting done when
+   * the params end or this worker fails. The param iterator is created if null, and is locked if shared.
+   */
+  protected void runDirectWorker(Invoker.Config invokerConfig, Iterator<Object[]> paramIter, boolean sharedParams,
+      AtomicBoolean stopper, AtomicBoolean done, AtomicReference<Throwable> stopExRef, AtomicLong submitCount) {
+    try {
+      if (paramIter == null) paramIter = config.params.iterator();
+      while (!stopper.get() && !done.get()) {
+        if (config.saturatedProbes != null && submitCount.incrementAndGet() % config.stripSaturatedProbesInterval == 0)
+          stripSaturatedProbes();
+        Object[] params = nextDirectParams(paramIter, sharedParams);
+        if (params == null) break;
+        onDirectResult(invokerConfig.execute(params), stopExRef);
+        if (config.sleepAfterSubmit > 0) Thread.sleep(config.sleepAfterSubmit);
+        if (stopExRef.get() != null) break;
+      }
+    } catch (Throwable e) {
+      // Param generation failures always stop, like they do on the fuzzing thread of the other engine
+      stopExRef.compareAndSet(null, e);
+    }
+    done.set(true);
+  }
+
+  /** The params are only copied if something other than the param generators could hold on to the result */
+  protected Object[] paramsToExecute(Object[] params) {
+    return config.onSubmit == null ? params : Arrays.copyOf(params, params.length);
+  }
+
+  /**
+   * The next params for a direct worker to execute or null if they ended. A shared iterator is locked and its params
+   * are always copied since it may reuse the array for the next worker.
+   */
+  protected Object[] nextDirectParams(Iterator<Object[]> paramIter, boolean shared) {
+    if (!shared) return paramIter.hasNext() ? paramsToExecute(paramIter.next()) : null;
+    synchronized (paramIter) {
+      if (!paramIter.hasNext()) return null;
+      Object[] params = paramIter.next();
+      return Arrays.copyOf(params, params.length);
+    }
+  }
+
+  /** Whether the provider has generators and they are all infinite, so each worker can iterate it separately */
+  protected static boolean hasOnlyInfiniteGenerators(ParamProvider params) {
+    if (params.paramGenerators.length == 0) return false;
+    for (ParamGenerator<?> gen : params.paramGenerators) {
+      if (!gen.isInfinite()) return false;
+    }
+    return true;
+  }
+
+  /** Record the result, via {@link Config#onSubmit} with a completed future if set */
+  protected void onDirectResult(ExecutionResult result, AtomicReference<Throwable> stopExRef) {
+    try {
+      if (config.onSubmit == null) {
+        recordResult(result);
+        return;
+      }
+      CompletableFuture<ExecutionResult> fut = config.onSubmit.apply(config, CompletableFuture.completedFuture(result));
+      if (fut == null) return;
+      fut.whenComplete((er, ex) -> {
+        if (er != null) recordResult(er);
+        if (ex != null && config.stopOnFutureFailure) stopExRef.compareAndSet(null, ex);
+      });
+    } catch (Throwable e) {
+      if (config.stopOnFutureFailure) stopExRef.compareAndSet(null, e);
+    }
+  }
+
+  /**
+   * Limit the agent's instrumentation to the methods reachable from the fuzzed method and retransform the loaded
+   * classes to match, if the agent is running
+   */
+  protected void limitInstrumentationToReachable() throws UnmodifiableClassException {
+    Agent agent = Agent.controller();
+    if (agent == null) return;
+    agent.setReachableMethods(ReachableMethods.from(config.method, agent::isClassIgnored));
+    agent.retransformLoadedClasses();
+  }
+
+  /** Retransform the classes with newly saturated probes if there are any and the agent is running */
+  protected void stripSaturatedProbes() {
+    Agent agent = Agent.controller();
+    if (agent == null || !config.saturatedProbes.hasPending()) return;
+    try {
+      config.saturatedProbes.stripPending(agent);
+    } catch (UnmodifiableClassException e) {
+      System.err.println("Failed stripping saturated probes: " + e);
+    }
+  }
+
   /** Configuration for the {@link Fuzzer}. Can use {@link #builder()} to build the config easier */
   public static class Config {
     /** Create a {@link Builder} for easy building */
@@ -107,10 +288,28 @@ public class Fuzzer {
     public final boolean stopOnFutureFailure;
     /** See {@link Builder#sleepAfterSubmit(long)} */
     public final long sleepAfterSubmit;
+    /** See {@link Builder#saturatedProbes(SaturatedProbes)} */
+    public final SaturatedProbes saturatedProbes;
+    /** See {@link Builder#stripSaturatedProbesInterval(int)} */
+    public final int stripSaturatedProbesInterval;
+    /** See {@link Builder#reachableOnly(boolean)} */
+    public final boolean reachableOnly;
+    /** See {@link Builder#directWorkers(int)} */
+    public final int directWorkers;
+    /** See {@link Builder#maxInFlight(int)} */
+    public final int maxInFlight;
 
     public Config(Method method, ParamProvider params, BiFunction<Config, CompletableFuture<ExecutionResult>,
         CompletableFuture<ExecutionResult>> onSubmit, Invoker invoker, Tracer tracer,
         boolean stopOnFutureFailure, long sleepAfterSubmit) {
+      this(method, params, onSubmit, invoker, tracer, stopOnFutureFailure, sleepAfterSubmit, null,
+          Builder.STRIP_SATURATED_PROBES_INTERVAL_DEFAULT, false, 0, 0);
+    }
+
+    public Config(Method method, ParamProvider params, BiFunction<Config, CompletableFuture<ExecutionResult>,
+        CompletableFuture<ExecutionResult>> onSubmit, Invoker invoker, Tracer tracer,
+        boolean stopOnFutureFailure, long sleepAfterSubmit, SaturatedProbes saturatedProbes,
+        int stripSaturatedProbesInterval, boolean reachableOnly, int directWorkers, int maxInFlight) {
       this.method = Objects.requireNonNull(method);
       this.params = Objects.requireNonNull(params);
       this.onSubmit = onSubmit;
@@ -118,6 +317,18 @@ public class Fuzzer {
       this.tracer = Objects.requireNonNull(tracer);
       this.stopOnFutureFailure = stopOnFutureFailure;
       this.sleepAfterSubmit = sleepAfterSubmit;
+      // Probes are looked up by the hashes in each trace, which edges and bitmap slots are not
+      if (saturatedProbes != null && tracer instanceof Tracer.Instrumenting &&
+          !((Tracer.Instrumenting) tracer).tracesProbeHashes())
+        throw new IllegalArgumentException("Saturated probes need traces of probe hashes, not edges or bitmap slots");
+      this.saturatedProbes = saturatedProbes;
+      if (stripSaturatedProbesInterval <= 0) throw new IllegalArgumentException("Strip interval must be positive");
+      this.stripSaturatedProbesInterval = stripSaturatedProbesInterval;
+      this.reachableOnly = reachableOnly;
+      if (directWorkers < 0) throw new IllegalArgumentException("Direct worker count can't be negative");
+      this.directWorkers = directWorkers;
+      if (maxInFlight < 0) throw new IllegalArgumentException("Max in flight can't be negative");
+      this.maxInFlight = maxInFlight;
     }
 
     /**
@@ -125,6 +336,9 @@ public class Fuzzer {
      * {@link #params(ParamProvider)} are required.
      */
     public static class Builder {
+      /** The default for {@link #stripSaturatedProbesInterval(int)} */
+      public static final int STRIP_SATURATED_PROBES_INTERVAL_DEFAULT = 10000;
+
       /** See {@link #method(Method)} */
       public Method method;
       /**
@@ -190,7 +404,7 @@ public class Fuzzer {
       public Invoker invoker;
       /**
        * The {@link Invoker} to use for executing methods. The default is {@link Invoker.WithExecutorService} using
-       * {@link Util.CurrentThreadExecutorService}.
+       * {@link Util.CurrentThreadExecutorService}. Use {@link Invoker.WithWatchdog} to stop executions that hang.
        */
       public Builder invoker(Invoker invoker) {
         this.invoker = invoker;
@@ -237,6 +451,80 @@ public class Fuzzer {
         return this;
       }
 
+      /** See {@link #saturatedProbes(SaturatedProbes)} */
+      public SaturatedProbes saturatedProbes;
+      /**
+       * The probe hit counts to record each trace in and to strip probes with once saturated, which must be the same
+       * ones the agent instruments with, i.e. {@link Agent#getSaturatedProbes()}. Every
+       * {@link #stripSaturatedProbesInterval(int)} invocations, classes with newly saturated probes are retransformed
+       * without them. This needs the agent and does nothing without it. Traces must hold the hashes of the probes hit,
+       * so this can't be used with {@link Tracer.Instrumenting.Config.Builder#edgeCoverage(boolean)} or with
+       * {@link BranchTracker.BranchHits.Bitmap} hits. The default is null which means no probes are stripped.
+       */
+      public Builder saturatedProbes(SaturatedProbes saturatedProbes) {
+        this.saturatedProbes = saturatedProbes;
+        return this;
+      }
+
+      /** See {@link #stripSaturatedProbesInterval(int)} */
+      public Integer stripSaturatedProbesInterval;
+      /**
+       * The number of invocations between checks for saturated probes to strip, see
+       * {@link #saturatedProbes(SaturatedProbes)}. The default is {@value STRIP_SATURATED_PROBES_INTERVAL_DEFAULT}.
+       */
+      public Builder stripSaturatedProbesInterval(int stripSaturatedProbesInterval) {
+        this.stripSaturatedProbesInterval = stripSaturatedProbesInterval;
+        return this;
+      }
+      /** See {@link #stripSaturatedProbesInterval(int)} */
+      public int stripSaturatedProbesIntervalDefault() { return STRIP_SATURATED_PROBES_INTERVAL_DEFAULT; }
+
+      /** See {@link #reachableOnly(boolean)} */
+      public boolean reachableOnly;
+      /**
+       * If true, before fuzzing, the methods statically reachable from {@link #method(Method)} are computed and the
+       * agent is limited to instrumenting them, see {@link ReachableMethods} and
+       * {@link Agent#setReachableMethods(ReachableMethods)}. Already loaded classes are retransformed to match. This
+       * reduces the probes hit on each execution when the classpath has a lot of code the method never calls. This
+       * needs the agent and does nothing without it. The default is false.
+       */
+      public Builder reachableOnly(boolean reachableOnly) {
+        this.reachableOnly = reachableOnly;
+        return this;
+      }
+
+      /** See {@link #directWorkers(int)} */
+      public int directWorkers;
+      /**
+       * If positive, the number of threads that fuzz directly instead of submitting to the {@link #invoker(Invoker)}.
+       * When all of the param generators are infinite, each worker creates its own {@link ParamProvider#iterator()}
+       * and then generates, traces, invokes, and records each result in a loop with no futures or param copies.
+       * Otherwise the workers take turns on a single iterator, copying the params, so each param set is only run once.
+       * The param generators, and therefore their corpus, are shared by all workers. The calling thread is one of the
+       * workers. Fuzzing stops when the params end. {@link #onSubmit(BiFunction)} is still called, with a completed
+       * future, and params are copied for it. Set this to the number of cores for microsecond-scale methods where the
+       * invoker's overhead is more than the method's. The default is 0 which uses the invoker.
+       */
+      public Builder directWorkers(int directWorkers) {
+        this.directWorkers = directWorkers;
+        return this;
+      }
+
+      /** See {@link #maxInFlight(int)} */
+      public int maxInFlight;
+      /**
+       * If positive, the most executions that can be submitted to the {@link #invoker(Invoker)} but not yet recorded.
+       * Instead of each result being recorded in its own callback on whatever thread completed it, completed results
+       * are put on a lock-free {@link ResultRing} and recorded in batches on the fuzzing thread, which waits for
+       * results when the window is full. Since the fuzzer bounds submissions itself, the invoker doesn't need to block
+       * or run executions on the fuzzing thread, e.g. a fixed thread pool with an unbounded queue is fine. This does
+       * not apply to {@link #directWorkers(int)}. The default is 0 which relies on the invoker to block when full.
+       */
+      public Builder maxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+      }
+
       /** Build the config */
       public Config build() {
         return new Config(
@@ -246,7 +534,12 @@ public class Fuzzer {
             invoker == null ? invokerDefault() : invoker,
             tracer == null ? tracerDefault() : tracer,
             stopOnFutureFailure,
-            sleepAfterSubmit
+            sleepAfterSubmit,
+            saturatedProbes,
+            stripSaturatedProbesInterval == null ? stripSaturatedProbesIntervalDefault() : stripSaturatedProbesInterval,
+            reachableOnly,
+            directWorkers,
+            maxInFlight
         );
       }
     }
@@ -2,10 +2,13 @@ package jwp.fuzz;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Method;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Interface for invoking a method with some params and returning the result.
@@ -18,7 +21,8 @@ public interface Invoker {
    * {@link java.lang.invoke.WrongMethodTypeException} or {@link ClassCastException}.
    * <p>
    * Note, this is called repeatedly by the fuzzer. If the submission queue is unbounded, the application will quickly
-   * run out of memory. Therefore implementors are encouraged to block here if the queue is full.
+   * run out of memory. Therefore implementors are encouraged to block here if the queue is full, unless the fuzzer
+   * bounds the submissions itself via {@link Fuzzer.Config.Builder#maxInFlight(int)}.
    */
   CompletableFuture<ExecutionResult> invoke(Config config, Object[] params);
 
@@ -34,8 +38,13 @@ public interface Invoker {
     public final Tracer tracer;
     /** The reflected method */
     public final Method method;
-    /** The method handle that is used for invocation */
+    /** The method handle for the method */
     public final MethodHandle handle;
+    /**
+     * The handle used by {@link #invoke(Object[])}, which is {@link #handle} taking all params as a single object array
+     * and returning an object. Varargs methods take their array as the last param like any other.
+     */
+    public final MethodHandle spreadHandle;
 
     public Config(Tracer tracer, Method method) {
       this.tracer = tracer;
@@ -45,7 +54,56 @@ public interface Invoker {
       } catch (IllegalAccessException e) {
         throw new RuntimeException(e);
       }
+      // Built once so each call is an exact invocation instead of the generic, per-call adaptation of
+      // invokeWithArguments
+      spreadHandle = handle.asFixedArity().asSpreader(Object[].class, handle.type().parameterCount()).
+          asType(MethodType.methodType(Object.class, Object[].class));
     }
+
+    /**
+     * Invoke the method with the given params, which include the receiver first for instance methods. A wrong number
+     * of params throws {@link WrongMethodTypeException} and a param of the wrong type throws
+     * {@link ClassCastException}. Void methods return null and primitive results are boxed.
+     */
+    public Object invoke(Object[] params) throws Throwable {
+      if (params.length != handle.type().parameterCount())
+        throw new WrongMethodTypeException("Expected " + handle.type().parameterCount() + " params, got " +
+            params.length);
+      return (Object) spreadHandle.invokeExact(params);
+    }
+
+    /**
+     * Trace and {@link #invoke(Object[])} the method with the given params on the current thread. Failures in the
+     * method are set as the {@link ExecutionResult#exception} instead of thrown. A failure caused by an
+     * {@link ExecutionTimeoutError}, e.g. the method wrapping the one thrown when its execution budget ran out, is set
+     * as that error so the result is a {@link ExecutionResult#hang()}.
+     */
+    public ExecutionResult execute(Object[] params) {
+      long beginNs = System.nanoTime();
+      Object result = null;
+      Throwable ex = null;
+      Thread thread = Thread.currentThread();
+      tracer.startTrace(thread);
+      try {
+        result = invoke(params);
+      } catch (Throwable e) {
+        ex = e;
+      }
+      long endNs = System.nanoTime();
+      TraceResult trace = tracer.stopTraceResult(thread);
+      if (ex != null) return new ExecutionResult(method, params, trace, endNs - beginNs, timeoutCauseOrSelf(ex));
+      return new ExecutionResult(method, params, trace, endNs - beginNs, result);
+    }
+  }
+
+  /** The first {@link ExecutionTimeoutError} in the cause chain of the given exception or the exception if none */
+  static Throwable timeoutCauseOrSelf(Throwable ex) {
+    // Limited in case of cause cycles
+    Throwable cause = ex;
+    for (int i = 0; cause != null && i < 100; i++, cause = cause.getCause()) {
+      if (cause instanceof ExecutionTimeoutError) return cause;
+    }
+    return ex;
   }
 
   /** An implementation of {@link Invoker} using an {@link ExecutorService}. See the constructor for more details. */
@@ -59,7 +117,8 @@ public interface Invoker {
      * This means that executors created by {@link java.util.concurrent.Executors} or
      * {@link java.util.concurrent.ForkJoinPool}s are not allowed. {@link java.util.concurrent.ThreadPoolExecutor}
      * should be used instead and it should use the {@link java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy} so
-     * no executions are lost or fail.
+     * no executions are lost or fail. When {@link Fuzzer.Config.Builder#maxInFlight(int)} is set, the fuzzer never
+     * submits more than that, so any executor works and the fuzzing thread never has to run executions itself.
      */
     public WithExecutorService(ExecutorService exec) {
       this.exec = exec;
@@ -67,22 +126,7 @@ public interface Invoker {
 
     @Override
     public CompletableFuture<ExecutionResult> invoke(Config config, Object[] params) {
-      return CompletableFuture.supplyAsync(() -> {
-        long beginNs = System.nanoTime();
-        Object result = null;
-        Throwable ex = null;
-        Thread thread = Thread.currentThread();
-        config.tracer.startTrace(thread);
-        try {
-          result = config.handle.invokeWithArguments(params);
-        } catch (Throwable e) {
-          ex = e;
-        }
-        long endNs = System.nanoTime();
-        BranchHit[] hits = config.tracer.stopTrace(thread);
-        if (ex != null) return new ExecutionResult(config.method, params, hits, endNs - beginNs, ex);
-        return new ExecutionResult(config.method, params, hits, endNs - beginNs, result);
-      }, exec);
+      return CompletableFuture.supplyAsync(() -> config.execute(params), exec);
     }
 
     @Override
@@ -95,4 +139,213 @@ public interface Invoker {
       }
     }
   }
+
+  /**
+   * An implementation of {@link Invoker} that runs executions on its own daemon worker threads and has a watchdog
+   * thread that stops executions that run too long. An execution running longer than the timeout is interrupted and
+   * its result is a {@link ExecutionResult#hang()} with the params that caused it. If the worker is still in the same
+   * execution after the replace timeout, e.g. because the method doesn't respond to interrupts, the execution is
+   * completed as a hang with an empty trace and the worker is abandoned and replaced with a new one so the worker count
+   * stays the same. Abandoned workers exit if the execution ever completes. Invocation requests block when the queue
+   * is full.
+   */
+  class WithWatchdog implements Invoker {
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_DONE = 1;
+    private static final int STATE_TIMED_OUT = 2;
+    private static final int STATE_ABANDONED = 3;
+
+    /** The number of workers running executions */
+    public final int workerCount;
+    /** The milliseconds an execution can run before it is interrupted and considered a hang */
+    public final long timeoutMs;
+    /** The milliseconds after the timeout that a worker still in the execution is abandoned and replaced */
+    public final long replaceAfterMs;
+
+    protected final BlockingQueue<Execution> queue;
+    /** The workers that haven't been abandoned */
+    protected final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+    protected final Thread watchdog;
+    protected final AtomicInteger workerNum = new AtomicInteger();
+    protected final AtomicLong hangCount = new AtomicLong();
+    protected final AtomicLong replacedCount = new AtomicLong();
+    protected volatile boolean shutdown;
+
+    /** Same as the other constructor with the replace timeout as the timeout and a queue of 10 per worker */
+    public WithWatchdog(int workerCount, long timeoutMs) {
+      this(workerCount, timeoutMs, timeoutMs, workerCount * 10);
+    }
+
+    /** Create the invoker and start its workers and watchdog */
+    public WithWatchdog(int workerCount, long timeoutMs, long replaceAfterMs, int queueCapacity) {
+      if (workerCount <= 0) throw new IllegalArgumentException("Worker count must be positive");
+      if (timeoutMs <= 0 || replaceAfterMs <= 0) throw new IllegalArgumentException("Timeouts must be positive");
+      this.workerCount = workerCount;
+      this.timeoutMs = timeoutMs;
+      this.replaceAfterMs = replaceAfterMs;
+      queue = new ArrayBlockingQueue<>(queueCapacity);
+      for (int i = 0; i < workerCount; i++) startWorker();
+      watchdog = new Thread(this::watch, "jwp-invoker-watchdog");
+      watchdog.setDaemon(true);
+      watchdog.start();
+    }
+
+    /** The number of executions that have been stopped by the watchdog so far */
+    public long hangCount() { return hangCount.get(); }
+
+    /** The number of workers that have been abandoned and replaced so far */
+    public long replacedCount() { return replacedCount.get(); }
+
+    @Override
+    public CompletableFuture<ExecutionResult> invoke(Config config, Object[] params) {
+      if (shutdown) throw new IllegalStateException("Invoker is shut down");
+      Execution execution = new Execution(config, params);
+      try {
+        queue.put(execution);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return execution.future;
+    }
+
+    @Override
+    public boolean shutdownAndWaitUntilComplete(long timeout, TimeUnit unit) {
+      shutdown = true;
+      long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+      try {
+        // Workers exit once the queue is empty and hung ones are abandoned by the watchdog, so wait for none to remain
+        while (!workers.isEmpty()) {
+          long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+          if (remainingMs <= 0) return false;
+          for (Worker worker : workers) worker.join(Math.min(remainingMs, 10));
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    }
+
+    protected void startWorker() {
+      Worker worker = new Worker("jwp-invoker-worker-" + workerNum.getAndIncrement());
+      workers.add(worker);
+      worker.start();
+    }
+
+    /** Run by the watchdog thread until shut down and there are no workers left */
+    protected void watch() {
+      long sleepMs = Math.max(1, Math.min(timeoutMs, replaceAfterMs) / 4);
+      while (!shutdown || !workers.isEmpty()) {
+        try {
+          Thread.sleep(sleepMs);
+        } catch (InterruptedException e) {
+          return;
+        }
+        long nowNs = System.nanoTime();
+        for (Worker worker : workers) {
+          Execution execution = worker.current;
+          if (execution == null) continue;
+          long elapsedMs = TimeUnit.NANOSECONDS.toMillis(nowNs - execution.startNs);
+          if (elapsedMs >= timeoutMs && execution.state.get() == STATE_RUNNING) {
+            // The interrupt is in the lock so the worker can't finish and start another execution before it lands
+            synchronized (execution) {
+              if (!execution.state.compareAndSet(STATE_RUNNING, STATE_TIMED_OUT)) continue;
+              execution.timeoutStackTrace = worker.getStackTrace();
+              worker.interrupt();
+            }
+          } else if (elapsedMs >= timeoutMs + replaceAfterMs &&
+              execution.state.compareAndSet(STATE_TIMED_OUT, STATE_ABANDONED)) {
+            workers.remove(worker);
+            worker.abandoned = true;
+            // Counted and replaced before completing so whoever is waiting on the result sees it
+            hangCount.incrementAndGet();
+            replacedCount.incrementAndGet();
+            startWorker();
+            execution.future.complete(new ExecutionResult(execution.config.method, execution.params,
+                TraceResult.EMPTY, nowNs - execution.startNs, timeoutError(execution, null)));
+          }
+        }
+      }
+    }
+
+    /** Create the error for a hang with the given cause, which is null if the execution never stopped */
+    protected ExecutionTimeoutError timeoutError(Execution execution, Throwable cause) {
+      ExecutionTimeoutError err = new ExecutionTimeoutError("Execution ran longer than " + timeoutMs + "ms", cause);
+      err.setStackTrace(execution.timeoutStackTrace);
+      return err;
+    }
+
+    /** A requested execution */
+    protected static class Execution {
+      public final Config config;
+      public final Object[] params;
+      public final CompletableFuture<ExecutionResult> future = new CompletableFuture<>();
+      public final AtomicInteger state = new AtomicInteger(STATE_RUNNING);
+      public volatile long startNs;
+      /** Where the execution was when it timed out */
+      public volatile StackTraceElement[] timeoutStackTrace;
+
+      public Execution(Config config, Object[] params) {
+        this.config = config;
+        this.params = params;
+      }
+    }
+
+    /** A worker thread running executions from the queue */
+    protected class Worker extends Thread {
+      /** The execution currently running, or null if none */
+      public volatile Execution current;
+      /** True once the watchdog has replaced this worker, in which case it exits after the current execution */
+      public volatile boolean abandoned;
+
+      public Worker(String name) {
+        super(name);
+        setDaemon(true);
+      }
+
+      @Override
+      public void run() {
+        while (!abandoned) {
+          Execution execution;
+          try {
+            execution = queue.poll(10, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            continue;
+          }
+          if (execution == null) {
+            if (shutdown && queue.isEmpty()) break;
+            continue;
+          }
+          execution.startNs = System.nanoTime();
+          current = execution;
+          ExecutionResult result;
+          try {
+            result = execution.config.execute(execution.params);
+          } catch (Throwable e) {
+            current = null;
+            Thread.interrupted();
+            execution.future.completeExceptionally(e);
+            continue;
+          }
+          boolean timedOut;
+          synchronized (execution) {
+            timedOut = !execution.state.compareAndSet(STATE_RUNNING, STATE_DONE);
+          }
+          current = null;
+          // Clear an interrupt from the watchdog or the method so the next execution doesn't see it
+          Thread.interrupted();
+          if (timedOut) {
+            // Only counted and completed if the watchdog didn't already do so when abandoning this worker
+            if (execution.state.compareAndSet(STATE_TIMED_OUT, STATE_DONE)) {
+              hangCount.incrementAndGet();
+              execution.future.complete(new ExecutionResult(result.method, result.params, result.trace,
+                  result.nanoTime, timeoutError(execution, result.exception)));
+            }
+          } else {
+            execution.future.complete(result);
+          }
+        }
+        workers.remove(this);
+      }
+    }
+  }
 }
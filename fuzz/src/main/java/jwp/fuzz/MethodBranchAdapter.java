@@ -7,9 +7,15 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
 
@@ -19,14 +25,22 @@ import java.util.function.Consumer;
  * static methods as needed. The bytecodes that the static calls are inserted before are: IFEQ, IFNE, IFLT, IFGE, IFGT,
  * IFLE, IF_ICMPEQ, IF_ICMPNE, IF_ICMPLT, IF_ICMPGE, IF_ICMPGT, IF_ICMPLE, IF_ACMPEQ, IF_ACMPNE, IFNULL, IFNONNULL,
  * TABLESWITCH, and LOOKUPSWITCH. Also, a static call is made at the start of each catch handler as that is considered
- * a branch as well.
+ * a branch as well. This is the {@link ProbeStrategy#CHECK_BEFORE_BRANCH} strategy, see {@link ProbeStrategy} for the
+ * others. For that strategy, {@link ClassBranchAdapter} uses {@link StreamingBranchAdapter} instead when it can, which
+ * does the same without buffering the method as a tree.
  */
 public class MethodBranchAdapter extends MethodNode {
 
   private final MethodRefs refs;
+  private final ClassBranchAdapter.Config config;
   private final String className;
   private final MethodVisitor mv;
   private boolean alreadyTransformed;
+  // Only set when there is a branch registry, indexed by the original instructions
+  private Map<AbstractInsnNode, Integer> origInsnIndices;
+  private int[] origInsnLines;
+  // The number of insns that stripped probes would have inserted so far, see isStripped
+  private int strippedInsnCount;
 
   /**
    * Create this adapter with a set of {@link MethodRefs}, the internal class name for the method, values given from
@@ -35,23 +49,61 @@ public class MethodBranchAdapter extends MethodNode {
    */
   public MethodBranchAdapter(MethodRefs refs, String className, int access, String name,
       String desc, String signature, String[] exceptions, MethodVisitor mv) {
+    this(refs, ClassBranchAdapter.Config.builder().build(), className, access, name, desc, signature, exceptions, mv);
+  }
+
+  /** Same as the other constructor but instruments according to the given config */
+  public MethodBranchAdapter(MethodRefs refs, ClassBranchAdapter.Config config, String className, int access,
+      String name, String desc, String signature, String[] exceptions, MethodVisitor mv) {
     super(Opcodes.ASM6, access, name, desc, signature, exceptions);
     this.refs = refs;
+    this.config = config;
     this.className = className;
     this.mv = mv;
   }
 
   /** Note, this must be the index AFTER nodes are inserted */
-  private int insnHashCode(int index) {
-    return Arrays.hashCode(new int[] { className.hashCode(), name.hashCode(), desc.hashCode(), index });
+  private int insnHashCode(int index) { return insnHashCode(className, name, desc, index); }
+
+  /** The hash for the insn at the given index of the given method, shared with {@link StreamingBranchAdapter} */
+  static int insnHashCode(String className, String methodName, String methodDesc, int index) {
+    return Arrays.hashCode(new int[] { className.hashCode(), methodName.hashCode(), methodDesc.hashCode(), index });
+  }
+
+  /**
+   * Get the branch hash for the given original branching instruction. If there is a branch registry, this is the
+   * registered ID, otherwise it is the given hash.
+   */
+  private int branchHash(AbstractInsnNode branchInsn, int opcode, Integer switchKey, int hashWithoutRegistry) {
+    if (config.branchRegistry == null) return hashWithoutRegistry;
+    int index = origInsnIndices.get(branchInsn);
+    return config.branchRegistry.register(className, name, desc, index, switchKey, origInsnLines[index], opcode);
+  }
+
+  /** Whether the probe with the given hash is saturated and should be left out, see {@link SaturatedProbes} */
+  private boolean isStripped(int branchHash) {
+    return config.saturatedProbes != null && config.saturatedProbes.registerAndCheck(branchHash, className);
   }
 
-  private void insertBeforeAndInvokeStaticWithHash(AbstractInsnNode insn, MethodRef ref, AbstractInsnNode... before) {
+  /**
+   * Insert the given nodes and a static call to the check for the opcode before the given insn. The branching insn is
+   * usually the same as the insn, but for catch handlers it is the handler label.
+   */
+  private void insertBeforeAndInvokeStaticWithHash(AbstractInsnNode insn, AbstractInsnNode branchInsn, int opcode,
+      AbstractInsnNode... before) {
+    MethodRef ref = refs.refsByOpcode[opcode];
     InsnList insns = new InsnList();
-    int insnIndex = instructions.indexOf(insn);
+    int insnIndex = instructions.indexOf(insn) + strippedInsnCount;
+    int branchHash = branchHash(branchInsn, opcode, null, insnHashCode(insnIndex + before.length + 2));
+    // Switch checks record a hash per case instead of this one, so they can't be stripped
+    if (opcode != Opcodes.TABLESWITCH && opcode != Opcodes.LOOKUPSWITCH && isStripped(branchHash)) {
+      // Count what would have been inserted so the later hashes in the method don't change
+      strippedInsnCount += before.length + 2;
+      return;
+    }
     for (AbstractInsnNode node : before) insns.add(node);
     // Add branch hash and make static call
-    insns.add(new LdcInsnNode(insnHashCode(insnIndex + before.length + 2)));
+    insns.add(new LdcInsnNode(branchHash));
     insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, ref.classSig, ref.methodName, ref.methodSig, false));
     instructions.insertBefore(insn, insns);
   }
@@ -63,6 +115,14 @@ public class MethodBranchAdapter extends MethodNode {
     if (refs.commonClassSig.equals(owner)) alreadyTransformed = true;
   }
 
+  private InsnList probe(int branchHash) {
+    InsnList insns = new InsnList();
+    insns.add(new LdcInsnNode(branchHash));
+    insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, refs.probe.classSig, refs.probe.methodName,
+        refs.probe.methodSig, false));
+    return insns;
+  }
+
   @Override
   public void visitEnd() {
     if (alreadyTransformed) {
@@ -70,9 +130,156 @@ public class MethodBranchAdapter extends MethodNode {
       accept(mv);
       return;
     }
+    if (config.autoDictionary != null && config.autoDictionary.collectsConstantsFrom(className))
+      addConstantsToDictionary();
     // We need the handler labels for catch clauses
     Set<Label> catchHandlerLabels = new HashSet<>(tryCatchBlocks.size());
     for (TryCatchBlockNode catchBlock : tryCatchBlocks) catchHandlerLabels.add(catchBlock.handler.getLabel());
+    if (config.branchRegistry != null) {
+      // Registered branches are keyed by the original index and have line numbers
+      AbstractInsnNode[] insns = instructions.toArray();
+      origInsnIndices = new IdentityHashMap<>(insns.length);
+      origInsnLines = new int[insns.length];
+      int line = -1;
+      for (int i = 0; i < insns.length; i++) {
+        origInsnIndices.put(insns[i], i);
+        if (insns[i] instanceof LineNumberNode) {
+          LineNumberNode lineNode = (LineNumberNode) insns[i];
+          line = lineNode.line;
+          // The start label, usually just before this, is on the line too
+          Integer startIndex = origInsnIndices.get(lineNode.start);
+          if (startIndex != null) origInsnLines[startIndex] = line;
+        }
+        origInsnLines[i] = line;
+      }
+    }
+    // Comparison sites are found first but logged after so they don't change the branch hashes
+    AbstractInsnNode[] origInsns = config.comparisonLogging ? instructions.toArray() : null;
+    if (config.probeStrategy == ProbeStrategy.PROBE_ON_EDGES) insertEdgeProbes(catchHandlerLabels);
+    else insertBranchChecks(catchHandlerLabels);
+    if (origInsns != null) insertComparisonLogging(origInsns);
+    if (config.tokenHooks) replaceHookedCalls();
+    // Last so the inserted checks don't change any hashes
+    if (config.executionBudget && instructions.size() > 0) insertBudgetChecks();
+    accept(mv);
+  }
+
+  private void insertBudgetChecks() {
+    if (refs.budgetCheck == null) throw new IllegalStateException("No budget check ref set for execution budget");
+    // Loops always jump back, so a check at each backward jump and each method entry bounds any execution
+    Set<LabelNode> seenLabels = new HashSet<>();
+    for (AbstractInsnNode insn : instructions.toArray()) {
+      if (insn instanceof LabelNode) seenLabels.add((LabelNode) insn);
+      else if (isBackwardJump(insn, seenLabels)) instructions.insertBefore(insn, budgetCheck());
+    }
+    instructions.insert(budgetCheck());
+  }
+
+  private static boolean isBackwardJump(AbstractInsnNode insn, Set<LabelNode> seenLabels) {
+    if (insn instanceof JumpInsnNode)
+      return insn.getOpcode() != Opcodes.JSR && seenLabels.contains(((JumpInsnNode) insn).label);
+    // Switches can loop too, e.g. state machines, through any of their labels
+    if (insn instanceof TableSwitchInsnNode) {
+      TableSwitchInsnNode switchInsn = (TableSwitchInsnNode) insn;
+      return seenLabels.contains(switchInsn.dflt) || !Collections.disjoint(seenLabels, switchInsn.labels);
+    }
+    if (insn instanceof LookupSwitchInsnNode) {
+      LookupSwitchInsnNode switchInsn = (LookupSwitchInsnNode) insn;
+      return seenLabels.contains(switchInsn.dflt) || !Collections.disjoint(seenLabels, switchInsn.labels);
+    }
+    return false;
+  }
+
+  private AbstractInsnNode budgetCheck() {
+    return new MethodInsnNode(Opcodes.INVOKESTATIC, refs.budgetCheck.classSig, refs.budgetCheck.methodName,
+        refs.budgetCheck.methodSig, false);
+  }
+
+  private void replaceHookedCalls() {
+    if (!refs.hasCallHooks()) throw new IllegalStateException("No call hooks set for token hooks");
+    // Replacing one call with another keeps the instruction count, so no hashes change
+    for (AbstractInsnNode insn : instructions.toArray()) {
+      int op = insn.getOpcode();
+      // Super calls are left alone since the hook would dispatch virtually
+      if (op != Opcodes.INVOKEVIRTUAL && op != Opcodes.INVOKEINTERFACE && op != Opcodes.INVOKESTATIC) continue;
+      MethodInsnNode call = (MethodInsnNode) insn;
+      MethodRef hook = refs.callHook(call.owner, call.name, call.desc);
+      if (hook == null) continue;
+      int receiverCount = Type.getArgumentTypes(hook.methodSig).length - Type.getArgumentTypes(call.desc).length;
+      if (receiverCount != (op == Opcodes.INVOKESTATIC ? 0 : 1)) continue;
+      instructions.set(call, new MethodInsnNode(Opcodes.INVOKESTATIC, hook.classSig, hook.methodName,
+          hook.methodSig, false));
+    }
+  }
+
+  private void addConstantsToDictionary() {
+    AbstractInsnNode[] insns = instructions.toArray();
+    for (int i = 0; i < insns.length; i++) {
+      AbstractInsnNode insn = insns[i];
+      if (insn instanceof LdcInsnNode) {
+        Object cst = ((LdcInsnNode) insn).cst;
+        if (cst instanceof String) config.autoDictionary.add((String) cst);
+        else if ((cst instanceof Integer || cst instanceof Long) && isComparedNext(insns, i))
+          config.autoDictionary.addNumber(((Number) cst).longValue());
+      } else if (insn.getOpcode() == Opcodes.SIPUSH && isComparedNext(insns, i)) {
+        // Smaller pushes are single bytes which are too short to be tokens
+        config.autoDictionary.addNumber(((IntInsnNode) insn).operand);
+      } else if (insn instanceof LookupSwitchInsnNode && !isHashCodeSwitch(insns, i)) {
+        // Table switch keys are dense and usually small, so only the sparse ones are worth it
+        for (Integer key : ((LookupSwitchInsnNode) insn).keys) config.autoDictionary.addNumber(key);
+      }
+    }
+  }
+
+  /** Whether the switch at the given index is on a hash code, e.g. a string switch whose strings are added anyways */
+  private static boolean isHashCodeSwitch(AbstractInsnNode[] insns, int index) {
+    for (int i = index - 1; i >= 0; i--) {
+      if (insns[i].getOpcode() < 0) continue;
+      return insns[i] instanceof MethodInsnNode && ((MethodInsnNode) insns[i]).name.equals("hashCode");
+    }
+    return false;
+  }
+
+  /** Whether a comparison is among the next couple of real instructions after the given index */
+  private static boolean isComparedNext(AbstractInsnNode[] insns, int index) {
+    int seen = 0;
+    for (int i = index + 1; i < insns.length && seen < 3; i++) {
+      int op = insns[i].getOpcode();
+      // Labels, line numbers, and frames have no opcode
+      if (op < 0) continue;
+      if ((op >= Opcodes.IF_ICMPEQ && op <= Opcodes.IF_ICMPLE) || op == Opcodes.LCMP) return true;
+      seen++;
+    }
+    return false;
+  }
+
+  private void insertComparisonLogging(AbstractInsnNode[] origInsns) {
+    if (refs.intComparison == null || refs.longComparison == null)
+      throw new IllegalStateException("No comparison refs set for comparison logging");
+    for (int index = 0; index < origInsns.length; index++) {
+      AbstractInsnNode insn = origInsns[index];
+      int op = insn.getOpcode();
+      if (op >= Opcodes.IF_ICMPEQ && op <= Opcodes.IF_ICMPLE) {
+        // Dupe both operands and log them right before the jump
+        InsnList insns = new InsnList();
+        insns.add(new InsnNode(Opcodes.DUP2));
+        insns.add(new LdcInsnNode(insnHashCode(index)));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, refs.intComparison.classSig,
+            refs.intComparison.methodName, refs.intComparison.methodSig, false));
+        instructions.insertBefore(insn, insns);
+      } else if (op == Opcodes.LCMP) {
+        // Longs take two slots each so can't be duped together, the call does the LCMP instead
+        InsnList insns = new InsnList();
+        insns.add(new LdcInsnNode(insnHashCode(index)));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, refs.longComparison.classSig,
+            refs.longComparison.methodName, refs.longComparison.methodSig, false));
+        instructions.insertBefore(insn, insns);
+        instructions.remove(insn);
+      }
+    }
+  }
+
+  private void insertBranchChecks(Set<Label> catchHandlerLabels) {
     // Go over each instruction, injecting static calls where necessary
     ListIterator<AbstractInsnNode> iter = instructions.iterator();
     while (iter.hasNext()) {
@@ -86,7 +293,7 @@ public class MethodBranchAdapter extends MethodNode {
         case Opcodes.IFGT:
         case Opcodes.IFLE:
           // Needs duped value
-          insertBeforeAndInvokeStaticWithHash(insn, refs.refsByOpcode[op], new InsnNode(Opcodes.DUP));
+          insertBeforeAndInvokeStaticWithHash(insn, insn, op, new InsnNode(Opcodes.DUP));
           break;
         case Opcodes.IF_ICMPEQ:
         case Opcodes.IF_ICMPNE:
@@ -95,41 +302,21 @@ public class MethodBranchAdapter extends MethodNode {
         case Opcodes.IF_ICMPGT:
         case Opcodes.IF_ICMPLE:
           // Needs duped values
-          insertBeforeAndInvokeStaticWithHash(insn, refs.refsByOpcode[op], new InsnNode(Opcodes.DUP2));
+          insertBeforeAndInvokeStaticWithHash(insn, insn, op, new InsnNode(Opcodes.DUP2));
           break;
         case Opcodes.IF_ACMPEQ:
         case Opcodes.IF_ACMPNE:
           // Needs duped values
-          insertBeforeAndInvokeStaticWithHash(insn, refs.refsByOpcode[op], new InsnNode(Opcodes.DUP2));
+          insertBeforeAndInvokeStaticWithHash(insn, insn, op, new InsnNode(Opcodes.DUP2));
           break;
         case Opcodes.IFNULL:
         case Opcodes.IFNONNULL:
           // Needs duped value
-          insertBeforeAndInvokeStaticWithHash(insn, refs.refsByOpcode[op], new InsnNode(Opcodes.DUP));
+          insertBeforeAndInvokeStaticWithHash(insn, insn, op, new InsnNode(Opcodes.DUP));
           break;
         case Opcodes.TABLESWITCH:
-          TableSwitchInsnNode tableInsn = (TableSwitchInsnNode) insn;
-          // Needs duped value and the min and max consts
-          insertBeforeAndInvokeStaticWithHash(insn, refs.refsByOpcode[op],
-              new InsnNode(Opcodes.DUP), new LdcInsnNode(tableInsn.min), new LdcInsnNode(tableInsn.max));
-          break;
         case Opcodes.LOOKUPSWITCH:
-          // Needs duped value and an array of all the jump keys
-          // XXX: should we really be creating this array here on every lookup? We could just assume this is always
-          // a branch and hash off the value. We could also have our own lookup switch but it doesn't give much. We
-          // could also put this array as a synthetic field on the class.
-          LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
-          AbstractInsnNode[] nodes = new AbstractInsnNode[(4 * lookupSwitch.keys.size()) + 3];
-          nodes[0] = new InsnNode(Opcodes.DUP);
-          nodes[1] = new LdcInsnNode(lookupSwitch.keys.size());
-          nodes[2] = new IntInsnNode(Opcodes.NEWARRAY, Opcodes.T_INT);
-          for (int i = 0; i < lookupSwitch.keys.size(); i++) {
-            nodes[(i * 4) + 3] = new InsnNode(Opcodes.DUP);
-            nodes[(i * 4) + 4] = new LdcInsnNode(i);
-            nodes[(i * 4) + 5] = new LdcInsnNode(lookupSwitch.keys.get(i));
-            nodes[(i * 4) + 6] = new InsnNode(Opcodes.IASTORE);
-          }
-          insertBeforeAndInvokeStaticWithHash(insn, refs.refsByOpcode[op], nodes);
+          insertSwitchCheck(insn);
           break;
         case -1:
           // TODO: Do non-Java langs handle this differently?
@@ -139,12 +326,184 @@ public class MethodBranchAdapter extends MethodNode {
             AbstractInsnNode next = insn.getNext();
             while (next instanceof LineNumberNode || next instanceof FrameNode) { next = next.getNext(); }
             // Dupe the exception and call
-            insertBeforeAndInvokeStaticWithHash(next, refs.refsByOpcode[Opcodes.ATHROW], new InsnNode(Opcodes.DUP));
+            insertBeforeAndInvokeStaticWithHash(next, insn, Opcodes.ATHROW, new InsnNode(Opcodes.DUP));
           }
           break;
       }
     }
-    accept(mv);
+  }
+
+  private void insertSwitchCheck(AbstractInsnNode insn) {
+    int op = insn.getOpcode();
+    if (op == Opcodes.TABLESWITCH) {
+      TableSwitchInsnNode tableInsn = (TableSwitchInsnNode) insn;
+      // Needs duped value and the min and max consts
+      insertBeforeAndInvokeStaticWithHash(insn, insn, op,
+          new InsnNode(Opcodes.DUP), new LdcInsnNode(tableInsn.min), new LdcInsnNode(tableInsn.max));
+      return;
+    }
+    // Needs duped value and the jump keys. Instead of building an array on every lookup, the keys are encoded into a
+    // string constant which is loaded without allocating.
+    LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+    insertBeforeAndInvokeStaticWithHash(insn, insn, op,
+        new InsnNode(Opcodes.DUP), new LdcInsnNode(encodeSwitchKeys(lookupSwitch.keys)));
+  }
+
+  // A lookup switch takes 8 bytes per key in code limited to 65535 bytes
+  private static final int MAX_SWITCH_KEYS = 65535 / 8;
+
+  /**
+   * Encode the given sorted switch keys as a string of two chars per key, high bits first. Any lookup switch's keys fit
+   * in a constant pool string since a method has room for at most 8191 of them, which is under the 65535 byte limit
+   * even at 3 bytes of modified UTF-8 per char. Throws {@link IllegalArgumentException} for more keys than that.
+   */
+  public static String encodeSwitchKeys(List<Integer> keys) {
+    if (keys.size() > MAX_SWITCH_KEYS) throw new IllegalArgumentException("Too many switch keys: " + keys.size());
+    char[] chars = new char[keys.size() * 2];
+    for (int i = 0; i < keys.size(); i++) {
+      chars[i * 2] = (char) (keys.get(i) >>> 16);
+      chars[(i * 2) + 1] = (char) keys.get(i).intValue();
+    }
+    return new String(chars);
+  }
+
+  /** Add a trampoline that probes the given hash then jumps to the target and return the trampoline's label */
+  private static LabelNode addTrampoline(InsnList trampolines, LabelNode target, FrameNode targetFrame,
+      InsnList probe) {
+    LabelNode trampoline = new LabelNode();
+    trampolines.add(trampoline);
+    if (targetFrame != null) trampolines.add(new FrameNode(Opcodes.F_NEW, targetFrame.local.size(),
+        targetFrame.local.toArray(), targetFrame.stack.size(), targetFrame.stack.toArray()));
+    trampolines.add(probe);
+    trampolines.add(new JumpInsnNode(Opcodes.GOTO, target));
+    return trampoline;
+  }
+
+  /** Whether a trampoline can jump to the given label, with its frame in the given array if there is one */
+  private static boolean canTrampolineTo(LabelNode target, boolean hasFrames, FrameNode[] frame) {
+    frame[0] = hasFrames ? frameAt(target) : null;
+    return !hasFrames || (frame[0] != null && !hasUninitializedTypes(frame[0]));
+  }
+
+  private void insertEdgeProbes(Set<Label> catchHandlerLabels) {
+    if (refs.probe == null) throw new IllegalStateException("No probe ref set for edge probes");
+    // Frames only need to be copied to trampolines if the method uses them at all
+    boolean hasFrames = false;
+    for (AbstractInsnNode insn : instructions.toArray()) {
+      if (insn instanceof FrameNode) {
+        hasFrames = true;
+        break;
+      }
+    }
+    InsnList trampolines = new InsnList();
+    FrameNode[] frame = new FrameNode[1];
+    // Work off the original instructions so the indices used for hashes aren't affected by what we insert
+    AbstractInsnNode[] origInsns = instructions.toArray();
+    for (int index = 0; index < origInsns.length; index++) {
+      AbstractInsnNode insn = origInsns[index];
+      int op = insn.getOpcode();
+      if (insn instanceof JumpInsnNode && op != Opcodes.GOTO && op != Opcodes.JSR) {
+        JumpInsnNode jump = (JumpInsnNode) insn;
+        if (!canTrampolineTo(jump.label, hasFrames, frame)) {
+          // Can't jump back to the target from the trampoline, so check before the branch instead
+          insertBeforeAndInvokeStaticWithHash(insn, insn, op,
+              new InsnNode(op >= Opcodes.IF_ICMPEQ && op <= Opcodes.IF_ACMPNE ? Opcodes.DUP2 : Opcodes.DUP));
+        } else {
+          // The taken edge goes to a trampoline at the end of the method that probes then jumps to the real target
+          int branchHash = branchHash(insn, op, null, insnHashCode(index));
+          if (!isStripped(branchHash)) jump.label = addTrampoline(trampolines, jump.label, frame[0], probe(branchHash));
+        }
+        // Only the fall-through edge reaches right after the jump, so it is probed in place with the taken hash flipped
+        int fallThroughHash = branchHash(insn, Opcodes.GOTO, null, ~insnHashCode(index));
+        // Fallback checks use the index after insertion, so they need to count a stripped probe
+        if (isStripped(fallThroughHash)) strippedInsnCount += 2;
+        else instructions.insert(insn, probe(fallThroughHash));
+      } else if (op == Opcodes.TABLESWITCH || op == Opcodes.LOOKUPSWITCH) {
+        // Each case gets its own trampoline with a precomputed hash, the same one the switch checks would compute
+        List<LabelNode> labels;
+        List<Integer> keys;
+        if (op == Opcodes.TABLESWITCH) {
+          TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+          labels = tableSwitch.labels;
+          keys = new ArrayList<>(labels.size());
+          for (int i = 0; i < labels.size(); i++) keys.add(tableSwitch.min + i);
+        } else {
+          labels = ((LookupSwitchInsnNode) insn).labels;
+          keys = ((LookupSwitchInsnNode) insn).keys;
+        }
+        boolean canTrampoline = true;
+        for (LabelNode label : labels) {
+          if (!canTrampolineTo(label, hasFrames, frame)) {
+            canTrampoline = false;
+            break;
+          }
+        }
+        if (!canTrampoline) {
+          insertSwitchCheck(insn);
+          continue;
+        }
+        int switchHash = insnHashCode(index);
+        for (int i = 0; i < labels.size(); i++) {
+          canTrampolineTo(labels.get(i), hasFrames, frame);
+          int caseHash = branchHash(insn, op, keys.get(i), Arrays.hashCode(new int[] { switchHash, keys.get(i) }));
+          if (isStripped(caseHash)) continue;
+          labels.set(i, addTrampoline(trampolines, labels.get(i), frame[0], probe(caseHash)));
+        }
+      } else if (insn instanceof LabelNode && catchHandlerLabels.contains(((LabelNode) insn).getLabel())) {
+        AbstractInsnNode next = insn.getNext();
+        while (next instanceof LineNumberNode || next instanceof FrameNode) { next = next.getNext(); }
+        int branchHash = branchHash(insn, Opcodes.ATHROW, null, insnHashCode(index));
+        // Fallback checks use the index after insertion, so they need to count a stripped probe
+        if (isStripped(branchHash)) strippedInsnCount += 2;
+        else instructions.insertBefore(next, probe(branchHash));
+      }
+    }
+    instructions.add(trampolines);
+  }
+
+  /** Get the frame at the given label or null if there isn't one */
+  private static FrameNode frameAt(LabelNode label) {
+    AbstractInsnNode node = label.getNext();
+    while (node instanceof LabelNode || node instanceof LineNumberNode) node = node.getNext();
+    return node instanceof FrameNode ? (FrameNode) node : null;
+  }
+
+  private static boolean hasUninitializedTypes(FrameNode frame) {
+    // Uninitialized values are not allowed to exist on backward branches
+    for (Object local : frame.local) {
+      if (local instanceof LabelNode || local == Opcodes.UNINITIALIZED_THIS) return true;
+    }
+    for (Object stack : frame.stack) {
+      if (stack instanceof LabelNode || stack == Opcodes.UNINITIALIZED_THIS) return true;
+    }
+    return false;
+  }
+
+  /**
+   * The strategy for placing probes on branches. Set via
+   * {@link ClassBranchAdapter.Config.Builder#probeStrategy(ProbeStrategy)}.
+   */
+  public enum ProbeStrategy {
+    /**
+     * Before each branching instruction, the compared values are duplicated and given to a static check call that
+     * repeats the comparison and records the branch if it will be taken. Every branch pays for the call and the
+     * comparison is done twice, but no control flow is changed.
+     */
+    CHECK_BEFORE_BRANCH,
+    /**
+     * Each conditional jump is changed to jump to a trampoline at the end of the method that records the taken edge
+     * and then jumps to the original target, and a probe right after the jump records the fall-through edge. The
+     * original comparison is reused and each edge only pays for a single static call with a constant. Unlike
+     * {@link #CHECK_BEFORE_BRANCH}, which only records taken branches, both edges of every conditional jump are
+     * recorded. Switches get a trampoline per case (not the default). If the target frame can't be reused for a
+     * trampoline (e.g. it has uninitialized values), that jump's taken edge or that switch falls back to the
+     * {@link #CHECK_BEFORE_BRANCH} check.
+     * <p>
+     * No hashes are the same values as with {@link #CHECK_BEFORE_BRANCH}: these are based on the original instruction
+     * indices and that strategy's on the indices after its insertions. With a {@link BranchRegistry}, taken jumps and
+     * catch handlers get the same IDs with either strategy but switch cases and fall-through edges don't.
+     */
+    PROBE_ON_EDGES
   }
 
   /** A set of {@link MethodRef}s by opcode. The {@link Builder} must be used to create it. */
@@ -159,19 +518,48 @@ public class MethodBranchAdapter extends MethodNode {
      */
     public final String commonClassSig;
     private final MethodRef[] refsByOpcode;
+    /** The edge probe used by {@link ProbeStrategy#PROBE_ON_EDGES}, may be null if that strategy is not used */
+    public final MethodRef probe;
+    /** The tracking check used by {@link DualVersionMethodAdapter}, may be null if that is not used */
+    public final MethodRef isTracking;
+    /** The int comparison logger used when comparisons are logged, may be null if that is not used */
+    public final MethodRef intComparison;
+    /** The LCMP replacement used when comparisons are logged, may be null if that is not used */
+    public final MethodRef longComparison;
+    /** The check used when there is an execution budget, may be null if that is not used */
+    public final MethodRef budgetCheck;
+    private final Map<String, MethodRef> callHooks;
 
-    private MethodRefs(String commonClassSig, MethodRef[] refsByOpcode) {
+    private MethodRefs(String commonClassSig, MethodRef[] refsByOpcode, MethodRef probe, MethodRef isTracking,
+        MethodRef intComparison, MethodRef longComparison, MethodRef budgetCheck, Map<String, MethodRef> callHooks) {
       this.commonClassSig = commonClassSig;
       this.refsByOpcode = refsByOpcode;
+      this.probe = probe;
+      this.isTracking = isTracking;
+      this.intComparison = intComparison;
+      this.longComparison = longComparison;
+      this.budgetCheck = budgetCheck;
+      this.callHooks = callHooks;
+    }
+
+    /** The hook set with {@link Builder#callHook(String, String, String, MethodRef)} for the given call or null */
+    public MethodRef callHook(String owner, String name, String desc) {
+      return callHooks.get(owner + '.' + name + desc);
     }
 
+    /** The check set with {@link Builder#set(int, MethodRef)} for the given opcode or null if none */
+    public MethodRef check(int opcode) { return refsByOpcode[opcode]; }
+
+    /** Whether any call hooks are set */
+    public boolean hasCallHooks() { return !callHooks.isEmpty(); }
+
     /**
      * The builder to create a {@link MethodRefs} instance. This does validation to make sure all proper methods are set
      * and are of the proper type. And it makes sure that all methods are defined in the same class.
      */
     public static class Builder {
       private static final Type OBJECT_TYPE = Type.getType(Object.class);
-      private static final Type INT_ARRAY_TYPE = Type.getType(int[].class);
+      private static final Type STRING_TYPE = Type.getType(String.class);
       private static final Type THROWABLE_TYPE = Type.getType(Throwable.class);
 
       @SuppressWarnings("unchecked")
@@ -194,8 +582,8 @@ public class MethodBranchAdapter extends MethodNode {
         // void check(int value, int min, int max, int branchHash)
         addChecks(m -> m.assertType(Type.VOID_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE),
             Opcodes.TABLESWITCH);
-        // void check(int value, int[] keys, int branchHash)
-        addChecks(m -> m.assertType(Type.VOID_TYPE, Type.INT_TYPE, INT_ARRAY_TYPE, Type.INT_TYPE),
+        // void check(int value, String keys, int branchHash)
+        addChecks(m -> m.assertType(Type.VOID_TYPE, Type.INT_TYPE, STRING_TYPE, Type.INT_TYPE),
             Opcodes.LOOKUPSWITCH);
         // void check(Throwable value, int branchHash)
         addChecks(m -> m.assertType(Type.VOID_TYPE, THROWABLE_TYPE, Type.INT_TYPE),
@@ -216,6 +604,65 @@ public class MethodBranchAdapter extends MethodNode {
        */
       public void set(int opcode, MethodRef ref) { refsByOpcode[opcode] = ref; }
 
+      private MethodRef probe;
+
+      /**
+       * Set the {@link MethodRef} to call with a constant edge hash for {@link ProbeStrategy#PROBE_ON_EDGES}. It must
+       * be of type void(int) and on the same class as the rest. This is optional unless that strategy is used.
+       */
+      public void probe(MethodRef ref) { probe = ref; }
+
+      private MethodRef isTracking;
+
+      /**
+       * Set the {@link MethodRef} to call to check whether the current thread is being tracked for
+       * {@link DualVersionMethodAdapter}. It must be of type boolean() and on the same class as the rest. This is
+       * optional unless dual version methods are used.
+       */
+      public void isTracking(MethodRef ref) { isTracking = ref; }
+
+      private MethodRef intComparison;
+
+      /**
+       * Set the {@link MethodRef} to call with both operands and a site hash before each IF_ICMPxx when
+       * {@link ClassBranchAdapter.Config#comparisonLogging} is set. It must be of type void(int, int, int) and on the
+       * same class as the rest. This is optional unless comparisons are logged.
+       */
+      public void intComparison(MethodRef ref) { intComparison = ref; }
+
+      private MethodRef longComparison;
+
+      /**
+       * Set the {@link MethodRef} to call instead of LCMP with both operands and a site hash when
+       * {@link ClassBranchAdapter.Config#comparisonLogging} is set. It must be of type int(long, long, int), return
+       * what LCMP would, and be on the same class as the rest. This is optional unless comparisons are logged.
+       */
+      public void longComparison(MethodRef ref) { longComparison = ref; }
+
+      private MethodRef budgetCheck;
+
+      /**
+       * Set the {@link MethodRef} to call at the start of each method and before each backward jump when
+       * {@link ClassBranchAdapter.Config#executionBudget} is set. It must be of type void() and on the same class as
+       * the rest. This is optional unless there is an execution budget.
+       */
+      public void budgetCheck(MethodRef ref) { budgetCheck = ref; }
+
+      private final Map<String, MethodRef> callHooks = new HashMap<>();
+      private final Map<String, String> callHookDescs = new HashMap<>();
+
+      /**
+       * Set the {@link MethodRef} to call instead of the given method when
+       * {@link ClassBranchAdapter.Config#tokenHooks} is set. The owner is the internal name of the class the call is
+       * made on, not necessarily the declaring one. It must take the same params as the call, prefixed by a receiver
+       * param for non-static calls, return the same type, do what the call would, and be on the same class as the rest.
+       */
+      public void callHook(String owner, String name, String desc, MethodRef ref) {
+        String key = owner + '.' + name + desc;
+        callHooks.put(key, ref);
+        callHookDescs.put(key, desc);
+      }
+
       /** Validate and build the refs */
       public MethodRefs build() {
         // Do validity checks
@@ -231,7 +678,50 @@ public class MethodBranchAdapter extends MethodNode {
             else if (!commonClassSig.equals(ref.classSig)) throw new RuntimeException("All methods not on same class");
           }
         }
-        return new MethodRefs(commonClassSig, refsByOpcode);
+        if (probe != null) {
+          // void probe(int branchHash)
+          probe.assertType(Type.VOID_TYPE, Type.INT_TYPE);
+          if (!probe.classSig.equals(commonClassSig)) throw new RuntimeException("All methods not on same class");
+        }
+        if (isTracking != null) {
+          // boolean isTracking()
+          isTracking.assertType(Type.BOOLEAN_TYPE);
+          if (!isTracking.classSig.equals(commonClassSig))
+            throw new RuntimeException("All methods not on same class");
+        }
+        if (intComparison != null) {
+          // void intComparison(int lvalue, int rvalue, int siteHash)
+          intComparison.assertType(Type.VOID_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE);
+          if (!intComparison.classSig.equals(commonClassSig))
+            throw new RuntimeException("All methods not on same class");
+        }
+        if (longComparison != null) {
+          // int longComparison(long lvalue, long rvalue, int siteHash)
+          longComparison.assertType(Type.INT_TYPE, Type.LONG_TYPE, Type.LONG_TYPE, Type.INT_TYPE);
+          if (!longComparison.classSig.equals(commonClassSig))
+            throw new RuntimeException("All methods not on same class");
+        }
+        if (budgetCheck != null) {
+          // void budgetCheck()
+          budgetCheck.assertType(Type.VOID_TYPE);
+          if (!budgetCheck.classSig.equals(commonClassSig))
+            throw new RuntimeException("All methods not on same class");
+        }
+        for (Map.Entry<String, MethodRef> hook : callHooks.entrySet()) {
+          Type origType = Type.getMethodType(callHookDescs.get(hook.getKey()));
+          Type[] hookArgs = Type.getArgumentTypes(hook.getValue().methodSig);
+          Type[] origArgs = origType.getArgumentTypes();
+          // The receiver, if any, is not checked since it can be any type the call's owner is assignable to
+          int receiverCount = hookArgs.length - origArgs.length;
+          if (receiverCount < 0 || receiverCount > 1 ||
+              !Arrays.equals(origArgs, Arrays.copyOfRange(hookArgs, receiverCount, hookArgs.length)))
+            throw new IllegalArgumentException("Invalid arg types for hook of " + hook.getKey());
+          hook.getValue().assertType(origType.getReturnType(), hookArgs);
+          if (!hook.getValue().classSig.equals(commonClassSig))
+            throw new RuntimeException("All methods not on same class");
+        }
+        return new MethodRefs(commonClassSig, refsByOpcode, probe, isTracking, intComparison, longComparison,
+            budgetCheck, Collections.unmodifiableMap(new HashMap<>(callHooks)));
       }
     }
   }
@@ -1,6 +1,7 @@
 package jwp.fuzz;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.function.BiFunction;
 import static jwp.fuzz.Util.*;
 
@@ -249,13 +250,14 @@ public interface RandomHavocTweak extends BiFunction<ByteArrayParamGenerator, by
 
   /**
    * Overwrite existing bytes at a random location with a randomly selected entry in the
-   * {@link ByteArrayParamGenerator.Config#dictionary}
+   * {@link ByteArrayParamGenerator#dictionary()}
    */
   class OverwriteWithDictionary extends MutBytesInPlace {
     @Override
     public void tweak(ByteArrayParamGenerator gen, byte[] bytes) {
-      // TODO: auto extras
-      byte[] entry = gen.config.dictionary.get(gen.config.random.nextInt(gen.config.dictionary.size()));
+      List<byte[]> dictionary = gen.dictionary();
+      if (dictionary.isEmpty()) return;
+      byte[] entry = dictionary.get(gen.config.random.nextInt(dictionary.size()));
       if (entry.length > bytes.length) return;
       int insertAt = gen.config.random.nextInt(bytes.length - entry.length + 1);
       System.arraycopy(entry, 0, bytes, insertAt, entry.length);
@@ -264,13 +266,14 @@ public interface RandomHavocTweak extends BiFunction<ByteArrayParamGenerator, by
 
 
   /**
-   * Insert a randomly selected entry at a random location using the {@link ByteArrayParamGenerator.Config#dictionary}
+   * Insert a randomly selected entry at a random location using the {@link ByteArrayParamGenerator#dictionary()}
    */
   class InsertWithDictionary implements RandomHavocTweak {
     @Override
     public byte[] apply(ByteArrayParamGenerator gen, byte[] bytes) {
-      // TODO: auto extras
-      byte[] entry = gen.config.dictionary.get(gen.config.random.nextInt(gen.config.dictionary.size()));
+      List<byte[]> dictionary = gen.dictionary();
+      if (dictionary.isEmpty()) return bytes;
+      byte[] entry = dictionary.get(gen.config.random.nextInt(dictionary.size()));
       if (bytes.length + entry.length > gen.config.maxInput) return bytes;
       int insertAt = gen.config.random.nextInt(bytes.length + 1);
       byte[] newArr = new byte[bytes.length + entry.length];
@@ -0,0 +1,239 @@
+package jwp.fuzz;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The set of methods statically reachable from a root method, used to only instrument code the fuzzed method can run.
+ * See {@link ClassBranchAdapter.Config.Builder#reachableMethods(ReachableMethods)} and
+ * {@link Fuzzer.Config.Builder#reachableOnly(boolean)}.
+ * <p>
+ * The call graph is built with ASM from the class files found via a class loader, without loading any classes. Each
+ * reached class also reaches its static initializer. Virtual and interface calls are resolved by name and descriptor:
+ * a call reaches every method with that name and descriptor in any reached class. Library classes (e.g. the JDK) are
+ * not walked, so instead every method that overrides a library method is considered reachable, since the library
+ * could call it (e.g. {@link Object#toString()} or {@link Comparable#compareTo(Object)}). Calls made reflectively or
+ * from libraries to static methods are not seen. Instances are immutable and thread safe once created.
+ */
+public class ReachableMethods {
+
+  /**
+   * Compute the methods reachable from the given method, reading class files from its class loader. The given
+   * predicate gets fully qualified class names and returns true for library classes that are not walked.
+   */
+  public static ReachableMethods from(Method method, Predicate<String> isLibraryClass) {
+    Walker walker = new Walker(method.getDeclaringClass().getClassLoader(), isLibraryClass);
+    walker.walk(Type.getInternalName(method.getDeclaringClass()), method.getName(), Type.getMethodDescriptor(method));
+    return new ReachableMethods(walker.reached);
+  }
+
+  /**
+   * Compute the methods reachable from all methods with the given name on the given fully qualified class, reading
+   * class files from the given loader. See {@link #from(Method, Predicate)}. Throws {@link IllegalArgumentException}
+   * if the class or method cannot be found.
+   */
+  public static ReachableMethods from(ClassLoader loader, String className, String methodName,
+      Predicate<String> isLibraryClass) {
+    Walker walker = new Walker(loader, isLibraryClass);
+    String internalName = className.replace('.', '/');
+    ClassNode root = walker.classNode(internalName);
+    if (root == null) throw new IllegalArgumentException("Unable to find class " + className);
+    boolean found = false;
+    for (MethodNode method : root.methods) {
+      if (!method.name.equals(methodName)) continue;
+      found = true;
+      walker.walk(internalName, method.name, method.desc);
+    }
+    if (!found) throw new IllegalArgumentException("Unable to find method " + methodName + " on " + className);
+    return new ReachableMethods(walker.reached);
+  }
+
+  // Keyed by internal class name, the name + desc of each reachable method
+  protected final Map<String, Set<String>> methodsByClass;
+
+  protected ReachableMethods(Map<String, Set<String>> methodsByClass) {
+    this.methodsByClass = methodsByClass;
+  }
+
+  /** Whether any method in the given class, by internal name, is reachable */
+  public boolean containsClass(String className) { return methodsByClass.containsKey(className); }
+
+  /** Whether the given method in the given class, by internal name, is reachable */
+  public boolean contains(String className, String methodName, String methodDesc) {
+    Set<String> methods = methodsByClass.get(className);
+    return methods != null && methods.contains(methodName + methodDesc);
+  }
+
+  /** The number of classes with reachable methods */
+  public int classCount() { return methodsByClass.size(); }
+
+  /** The number of reachable methods */
+  public int methodCount() {
+    int count = 0;
+    for (Set<String> methods : methodsByClass.values()) count += methods.size();
+    return count;
+  }
+
+  /** Worklist walk of the call graph. Not thread safe. */
+  protected static class Walker {
+    protected final ClassLoader loader;
+    protected final Predicate<String> isLibraryClass;
+    // Null values for classes that couldn't be read
+    protected final Map<String, ClassNode> classes = new HashMap<>();
+    protected final Set<String> libraryClasses = new HashSet<>();
+    protected final Map<String, Set<String>> reached = new HashMap<>();
+    // Name + desc of every virtual or interface call seen
+    protected final Set<String> virtualCalls = new HashSet<>();
+    // Keyed by name + desc, the walked classes declaring an instance method with it
+    protected final Map<String, List<String>> classesByInstanceMethod = new HashMap<>();
+    protected final Deque<MethodNode> pending = new ArrayDeque<>();
+
+    protected Walker(ClassLoader loader, Predicate<String> isLibraryClass) {
+      this.loader = loader;
+      this.isLibraryClass = isLibraryClass;
+    }
+
+    /** Reach the given method and everything reachable from it */
+    protected void walk(String owner, String name, String desc) {
+      reach(owner, name + desc);
+      while (!pending.isEmpty()) {
+        for (AbstractInsnNode insn : pending.pop().instructions.toArray()) visitInsn(insn);
+      }
+    }
+
+    protected void visitInsn(AbstractInsnNode insn) {
+      if (insn instanceof MethodInsnNode) {
+        MethodInsnNode call = (MethodInsnNode) insn;
+        // Calls on arrays, e.g. clone
+        if (call.owner.charAt(0) == '[') return;
+        if (call.getOpcode() == Opcodes.INVOKEVIRTUAL || call.getOpcode() == Opcodes.INVOKEINTERFACE)
+          reachVirtual(call.name + call.desc);
+        reach(call.owner, call.name + call.desc);
+      } else if (insn instanceof FieldInsnNode) {
+        classNode(((FieldInsnNode) insn).owner);
+      } else if (insn.getOpcode() == Opcodes.NEW) {
+        classNode(((TypeInsnNode) insn).desc);
+      } else if (insn instanceof InvokeDynamicInsnNode) {
+        InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) insn;
+        // Lambdas and method refs are handles in the bootstrap args
+        reachHandle(indy.bsm);
+        for (Object arg : indy.bsmArgs) if (arg instanceof Handle) reachHandle((Handle) arg);
+      } else if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof Handle) {
+        reachHandle((Handle) ((LdcInsnNode) insn).cst);
+      }
+    }
+
+    protected void reachHandle(Handle handle) {
+      if (handle.getOwner().charAt(0) == '[') return;
+      switch (handle.getTag()) {
+        case Opcodes.H_GETFIELD:
+        case Opcodes.H_GETSTATIC:
+        case Opcodes.H_PUTFIELD:
+        case Opcodes.H_PUTSTATIC:
+          classNode(handle.getOwner());
+          return;
+        case Opcodes.H_INVOKEVIRTUAL:
+        case Opcodes.H_INVOKEINTERFACE:
+          reachVirtual(handle.getName() + handle.getDesc());
+          break;
+      }
+      reach(handle.getOwner(), handle.getName() + handle.getDesc());
+    }
+
+    /** Reach the given method in every walked class that declares it, now and when walked later */
+    protected void reachVirtual(String method) {
+      if (!virtualCalls.add(method)) return;
+      List<String> classNames = classesByInstanceMethod.get(method);
+      if (classNames != null) for (String className : new ArrayList<>(classNames)) reach(className, method);
+    }
+
+    /** Reach the given method, or the inherited one if the class doesn't declare it */
+    protected void reach(String className, String method) {
+      ClassNode node = classNode(className);
+      if (node == null || libraryClasses.contains(className)) return;
+      MethodNode methodNode = declaredMethod(node, method);
+      if (methodNode == null) {
+        if (node.superName != null) reach(node.superName, method);
+        // Could be a default method
+        for (String iface : node.interfaces) reach(iface, method);
+        return;
+      }
+      if (reached.computeIfAbsent(className, k -> new HashSet<>()).add(method) && methodNode.instructions.size() > 0)
+        pending.add(methodNode);
+    }
+
+    /** Get the class by internal name, reading and reaching its initializer if it hasn't been seen. Null if missing. */
+    protected ClassNode classNode(String className) {
+      if (classes.containsKey(className)) return classes.get(className);
+      boolean library = isLibraryClass.test(className.replace('/', '.'));
+      ClassNode node = readClass(className, library);
+      classes.put(className, node);
+      if (node == null) return null;
+      if (library) {
+        libraryClasses.add(className);
+        return node;
+      }
+      // Supertypes are initialized or at least needed to resolve methods
+      if (node.superName != null) classNode(node.superName);
+      for (String iface : node.interfaces) classNode(iface);
+      if (declaredMethod(node, "<clinit>()V") != null) reach(className, "<clinit>()V");
+      for (MethodNode method : node.methods) {
+        if ((method.access & Opcodes.ACC_STATIC) != 0 || method.name.charAt(0) == '<') continue;
+        String key = method.name + method.desc;
+        classesByInstanceMethod.computeIfAbsent(key, k -> new ArrayList<>()).add(className);
+        if (virtualCalls.contains(key) || overridesLibraryMethod(node, key)) reach(className, key);
+      }
+      return node;
+    }
+
+    /** Whether any library supertype declares the given method. Missing supertypes are assumed to. */
+    protected boolean overridesLibraryMethod(ClassNode node, String method) {
+      List<String> supertypes = new ArrayList<>(node.interfaces);
+      if (node.superName != null) supertypes.add(node.superName);
+      for (String supertype : supertypes) {
+        ClassNode superNode = classNode(supertype);
+        if (superNode == null) return true;
+        if (libraryClasses.contains(supertype)) {
+          MethodNode superMethod = declaredMethod(superNode, method);
+          if (superMethod != null && (superMethod.access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0)
+            return true;
+        }
+        if (overridesLibraryMethod(superNode, method)) return true;
+      }
+      return false;
+    }
+
+    protected static MethodNode declaredMethod(ClassNode node, String method) {
+      for (MethodNode methodNode : node.methods) {
+        if (method.length() == methodNode.name.length() + methodNode.desc.length() &&
+            method.startsWith(methodNode.name) && method.endsWith(methodNode.desc)) return methodNode;
+      }
+      return null;
+    }
+
+    protected ClassNode readClass(String className, boolean library) {
+      String resource = className + ".class";
+      try (InputStream in = loader == null ?
+          ClassLoader.getSystemResourceAsStream(resource) : loader.getResourceAsStream(resource)) {
+        if (in == null) return null;
+        ClassNode node = new ClassNode();
+        // Only the method signatures of library classes are needed
+        new ClassReader(in).accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES |
+            (library ? ClassReader.SKIP_CODE : 0));
+        return node;
+      } catch (IOException | RuntimeException e) {
+        // Unreadable, e.g. a newer class file version than ASM supports
+        return null;
+      }
+    }
+  }
+}
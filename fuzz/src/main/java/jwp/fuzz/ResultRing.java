@@ -0,0 +1,73 @@
+package jwp.fuzz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Lock-free ring of completed executions, added to by any thread as executions complete and drained in batches by a
+ * single thread. This is used by {@link Fuzzer} when {@link Fuzzer.Config#maxInFlight} is set. The ring does not
+ * check for overflow: the caller must never have more entries added and not yet drained than the capacity, which the
+ * fuzzer guarantees by not submitting more than that many executions before draining.
+ */
+public class ResultRing {
+  // Marks an execution whose result isn't recorded, e.g. when onSubmit returned null
+  private static final Object SKIPPED = new Object();
+
+  private final AtomicReferenceArray<Object> slots;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  // Only accessed by the draining thread
+  private long head;
+  private volatile Thread waiter;
+
+  /** Create a ring that holds at least the given number of entries */
+  public ResultRing(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    slots = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  /** Add a completed execution with either its result or the failure of its future. Thread safe. */
+  public void add(ExecutionResult result, Throwable ex) {
+    add(ex != null ? ex : result != null ? result : SKIPPED);
+  }
+
+  /** Add an execution that completed but whose result should not be recorded. Thread safe. */
+  public void addSkipped() { add(SKIPPED); }
+
+  private void add(Object entry) {
+    slots.set((int) (tail.getAndIncrement() & mask), entry);
+    Thread waiter = this.waiter;
+    if (waiter != null) LockSupport.unpark(waiter);
+  }
+
+  /**
+   * Give every entry added so far to the given handler, in order, and return the number drained. The handler gets null
+   * for both for skipped entries. If wait is true and there are no entries, this blocks until there is at least one.
+   * This must only be called by one thread at a time.
+   */
+  public int drain(BiConsumer<ExecutionResult, Throwable> handler, boolean wait) {
+    int count = 0;
+    while (true) {
+      int index = (int) (head & mask);
+      Object entry = slots.get(index);
+      if (entry == null) {
+        if (count > 0 || !wait) return count;
+        waiter = Thread.currentThread();
+        // Checked again after setting the waiter so an entry added in between isn't missed
+        if (slots.get(index) == null) LockSupport.park(this);
+        waiter = null;
+        continue;
+      }
+      slots.set(index, null);
+      head++;
+      count++;
+      if (entry instanceof Throwable) handler.accept(null, (Throwable) entry);
+      else handler.accept(entry == SKIPPED ? null : (ExecutionResult) entry, null);
+    }
+  }
+}
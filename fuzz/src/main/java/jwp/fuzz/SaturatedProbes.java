@@ -0,0 +1,110 @@
+package jwp.fuzz;
+
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how often each probe is hit and strips saturated ones by retransforming their classes. Only taken branches
+ * record hits, so a probe is saturated once its branch has been taken in {@link #saturationCount} sampled traces, at
+ * which point it rarely adds anything new but still costs time on every execution.
+ * <p>
+ * Instrumentation registers each strippable probe with {@link #registerAndCheck(int, String)} and leaves out the ones
+ * already saturated, see {@link ClassBranchAdapter.Config.Builder#saturatedProbes(SaturatedProbes)}. The remaining
+ * probes keep the same hashes they had with all probes in place, so existing queue entries and hash caches stay
+ * comparable, although paths that hit a stripped probe will look new once. Switch checks of
+ * {@link MethodBranchAdapter.ProbeStrategy#CHECK_BEFORE_BRANCH} record a different hash per case and are never
+ * stripped. {@link Fuzzer.Config.Builder#saturatedProbes(SaturatedProbes)} records traces and strips periodically.
+ */
+public class SaturatedProbes {
+  /** The default for {@link #sampleInterval} */
+  public static final int SAMPLE_INTERVAL_DEFAULT = 16;
+  /** The default for {@link #saturationCount} */
+  public static final int SATURATION_COUNT_DEFAULT = 1000;
+
+  /** Only every this many traces given to {@link #record(TraceResult)} are counted */
+  public final int sampleInterval;
+  /** The number of sampled traces a probe must be hit in to be saturated */
+  public final int saturationCount;
+
+  protected final ConcurrentMap<Integer, Probe> probes = new ConcurrentHashMap<>();
+  protected final Set<String> pendingClassNames = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  protected final AtomicLong traceCount = new AtomicLong();
+
+  /** Create with the default sample interval and saturation count */
+  public SaturatedProbes() { this(SAMPLE_INTERVAL_DEFAULT, SATURATION_COUNT_DEFAULT); }
+
+  /** Create with the given sample interval and saturation count */
+  public SaturatedProbes(int sampleInterval, int saturationCount) {
+    if (sampleInterval <= 0 || saturationCount <= 0) throw new IllegalArgumentException("Values must be positive");
+    this.sampleInterval = sampleInterval;
+    this.saturationCount = saturationCount;
+  }
+
+  /**
+   * Register the probe with the given hash in the given internal class name and return true if it is saturated and
+   * should be left out
+   */
+  public boolean registerAndCheck(int probeHash, String className) {
+    Probe probe = probes.computeIfAbsent(probeHash, k -> new Probe(className));
+    return probe.saturated;
+  }
+
+  /** Count the registered probes hit in the given trace if it is sampled. Thread safe. */
+  public void record(TraceResult trace) {
+    if (traceCount.incrementAndGet() % sampleInterval != 0) return;
+    for (int i = 0; i < trace.size(); i++) {
+      Probe probe = probes.get(trace.branchHash(i));
+      if (probe != null && !probe.saturated && probe.hitTraceCount.incrementAndGet() >= saturationCount) {
+        probe.saturated = true;
+        pendingClassNames.add(probe.className);
+      }
+    }
+  }
+
+  /** Whether the given probe hash is saturated */
+  public boolean isSaturated(int probeHash) {
+    Probe probe = probes.get(probeHash);
+    return probe != null && probe.saturated;
+  }
+
+  /** Whether there are classes with saturated probes that have not been stripped yet */
+  public boolean hasPending() { return !pendingClassNames.isEmpty(); }
+
+  /**
+   * Retransform the loaded classes that have newly saturated probes via the given agent, which must have been started
+   * with this instance. Returns the number of classes retransformed.
+   */
+  public int stripPending(Agent agent) throws UnmodifiableClassException {
+    if (pendingClassNames.isEmpty()) return 0;
+    Set<String> classNames = new HashSet<>(pendingClassNames);
+    pendingClassNames.removeAll(classNames);
+    List<Class<?>> classes = new ArrayList<>();
+    for (Class<?> cls : agent.getAllLoadedClasses()) {
+      if (classNames.contains(cls.getName().replace('.', '/'))) classes.add(cls);
+    }
+    if (!classes.isEmpty()) agent.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+    return classes.size();
+  }
+
+  /** The number of probes registered */
+  public int probeCount() { return probes.size(); }
+
+  /** The number of saturated probes */
+  public int saturatedCount() {
+    int count = 0;
+    for (Probe probe : probes.values()) if (probe.saturated) count++;
+    return count;
+  }
+
+  protected static class Probe {
+    final String className;
+    final AtomicInteger hitTraceCount = new AtomicInteger();
+    volatile boolean saturated;
+
+    Probe(String className) { this.className = className; }
+  }
+}
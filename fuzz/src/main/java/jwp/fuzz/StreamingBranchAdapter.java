@@ -0,0 +1,364 @@
+package jwp.fuzz;
+
+import org.objectweb.asm.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link MethodVisitor} that inserts the same branch checks as {@link MethodBranchAdapter} for
+ * {@link MethodBranchAdapter.ProbeStrategy#CHECK_BEFORE_BRANCH}, but passes each instruction on as it is visited
+ * instead of buffering the whole method as a tree first. Indices are counted the way the tree would number its nodes,
+ * so the hashes, comparison sites, registered branches, and dictionary constants are all the same as with the tree
+ * adapter. This keeps transforming huge methods, e.g. generated parsers, linear and cheap on memory.
+ * <p>
+ * Methods that already call the refs are not detected before they are instrumented, so this must only be used for
+ * classes that don't reference the refs' class at all, see {@link ClassBranchAdapter#referencesClass(ClassReader,
+ * String)}.
+ */
+public class StreamingBranchAdapter extends MethodVisitor {
+
+  /** Whether methods can be streamed with the given config, otherwise {@link MethodBranchAdapter} must be used */
+  public static boolean canStream(ClassBranchAdapter.Config config) {
+    // Edge trampolines need the frames at jump targets that may not have been visited yet
+    return config.probeStrategy == MethodBranchAdapter.ProbeStrategy.CHECK_BEFORE_BRANCH;
+  }
+
+  private final MethodBranchAdapter.MethodRefs refs;
+  private final ClassBranchAdapter.Config config;
+  private final String className;
+  private final String name;
+  private final String desc;
+  private final Set<Label> catchHandlerLabels = new HashSet<>();
+  // The index of the next node in the original method and in the instrumented one, which counts stripped probes
+  private int origIndex;
+  private int index;
+  private int line = -1;
+  // Set from a catch handler label until the node its probe is inserted before
+  private Label pendingHandler;
+  private int pendingHandlerOrigIndex;
+  private int pendingHandlerLine;
+  // Only set when the auto dictionary collects from the class. Constants in method order, numbers are nulled if not compared soon.
+  private List<Object> dictionaryConstants;
+  // The dictionary constant indices of numbers not yet compared and the number of real insns seen since each
+  private List<int[]> uncomparedNumbers;
+  private boolean afterHashCode;
+  // Only set when there is an execution budget, the labels visited so far to tell backward jumps apart
+  private Set<Label> visitedLabels;
+
+  /**
+   * Create this adapter with a set of {@link MethodBranchAdapter.MethodRefs}, the config to instrument with, the
+   * internal class name for the method, the method's name and descriptor, and a {@link MethodVisitor} to delegate to.
+   * The config's strategy must be one {@link #canStream(ClassBranchAdapter.Config)} is true for.
+   */
+  public StreamingBranchAdapter(MethodBranchAdapter.MethodRefs refs, ClassBranchAdapter.Config config,
+      String className, String name, String desc, MethodVisitor mv) {
+    super(Opcodes.ASM6, mv);
+    if (!canStream(config)) throw new IllegalArgumentException("Unable to stream " + config.probeStrategy);
+    if (config.comparisonLogging && (refs.intComparison == null || refs.longComparison == null))
+      throw new IllegalStateException("No comparison refs set for comparison logging");
+    if (config.tokenHooks && !refs.hasCallHooks()) throw new IllegalStateException("No call hooks set for token hooks");
+    if (config.executionBudget && refs.budgetCheck == null)
+      throw new IllegalStateException("No budget check ref set for execution budget");
+    this.refs = refs;
+    this.config = config;
+    this.className = className;
+    this.name = name;
+    this.desc = desc;
+    if (config.autoDictionary != null && config.autoDictionary.collectsConstantsFrom(className)) {
+      dictionaryConstants = new ArrayList<>();
+      uncomparedNumbers = new ArrayList<>();
+    }
+    if (config.executionBudget) visitedLabels = new HashSet<>();
+  }
+
+  @Override
+  public void visitCode() {
+    super.visitCode();
+    // Not a node, so no index changes, like the tree adapter that inserts it last
+    if (visitedLabels != null) insertBudgetCheck();
+  }
+
+  @Override
+  public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+    // Always visited before the handler label
+    catchHandlerLabels.add(handler);
+    super.visitTryCatchBlock(start, end, handler, type);
+  }
+
+  @Override
+  public void visitLabel(Label label) {
+    insertHandlerProbe();
+    super.visitLabel(label);
+    if (visitedLabels != null) visitedLabels.add(label);
+    if (catchHandlerLabels.contains(label)) {
+      pendingHandler = label;
+      pendingHandlerOrigIndex = origIndex;
+      pendingHandlerLine = line;
+    }
+    nodeVisited();
+  }
+
+  @Override
+  public void visitLineNumber(int line, Label start) {
+    super.visitLineNumber(line, start);
+    this.line = line;
+    // The start label, usually just before this, is on the line too
+    if (start == pendingHandler) pendingHandlerLine = line;
+    nodeVisited();
+  }
+
+  @Override
+  public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+    // The handler probe goes after the frame
+    super.visitFrame(type, nLocal, local, nStack, stack);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitInsn(int opcode) {
+    realInsnVisited(opcode);
+    if (opcode == Opcodes.LCMP && config.comparisonLogging) {
+      // Longs take two slots each so can't be duped together, the call does the LCMP instead
+      super.visitLdcInsn(MethodBranchAdapter.insnHashCode(className, name, desc, origIndex));
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, refs.longComparison.classSig, refs.longComparison.methodName,
+          refs.longComparison.methodSig, false);
+    } else {
+      super.visitInsn(opcode);
+    }
+    nodeVisited();
+  }
+
+  @Override
+  public void visitIntInsn(int opcode, int operand) {
+    realInsnVisited(opcode);
+    // Smaller pushes are single bytes which are too short to be tokens
+    if (opcode == Opcodes.SIPUSH && dictionaryConstants != null) addNumberIfComparedNext(operand);
+    super.visitIntInsn(opcode, operand);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitVarInsn(int opcode, int var) {
+    realInsnVisited(opcode);
+    super.visitVarInsn(opcode, var);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitTypeInsn(int opcode, String type) {
+    realInsnVisited(opcode);
+    super.visitTypeInsn(opcode, type);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+    realInsnVisited(opcode);
+    super.visitFieldInsn(opcode, owner, name, desc);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+    realInsnVisited(opcode);
+    afterHashCode = name.equals("hashCode");
+    // Super calls are left alone since the hook would dispatch virtually
+    MethodBranchAdapter.MethodRef hook =
+        config.tokenHooks && opcode != Opcodes.INVOKESPECIAL ? refs.callHook(owner, name, desc) : null;
+    if (hook != null) {
+      int receiverCount = Type.getArgumentTypes(hook.methodSig).length - Type.getArgumentTypes(desc).length;
+      if (receiverCount != (opcode == Opcodes.INVOKESTATIC ? 0 : 1)) hook = null;
+    }
+    // Replacing one call with another keeps the instruction count, so no hashes change
+    if (hook == null) super.visitMethodInsn(opcode, owner, name, desc, itf);
+    else super.visitMethodInsn(Opcodes.INVOKESTATIC, hook.classSig, hook.methodName, hook.methodSig, false);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+    realInsnVisited(Opcodes.INVOKEDYNAMIC);
+    super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitJumpInsn(int opcode, Label label) {
+    realInsnVisited(opcode);
+    switch (opcode) {
+      case Opcodes.IFEQ:
+      case Opcodes.IFNE:
+      case Opcodes.IFLT:
+      case Opcodes.IFGE:
+      case Opcodes.IFGT:
+      case Opcodes.IFLE:
+      case Opcodes.IFNULL:
+      case Opcodes.IFNONNULL:
+        // Needs duped value
+        insertCheck(opcode, Opcodes.DUP, origIndex, line);
+        break;
+      case Opcodes.IF_ICMPEQ:
+      case Opcodes.IF_ICMPNE:
+      case Opcodes.IF_ICMPLT:
+      case Opcodes.IF_ICMPGE:
+      case Opcodes.IF_ICMPGT:
+      case Opcodes.IF_ICMPLE:
+        // Needs duped values
+        insertCheck(opcode, Opcodes.DUP2, origIndex, line);
+        if (config.comparisonLogging) {
+          // Dupe both operands and log them right before the jump
+          super.visitInsn(Opcodes.DUP2);
+          super.visitLdcInsn(MethodBranchAdapter.insnHashCode(className, name, desc, origIndex));
+          super.visitMethodInsn(Opcodes.INVOKESTATIC, refs.intComparison.classSig, refs.intComparison.methodName,
+              refs.intComparison.methodSig, false);
+        }
+        break;
+      case Opcodes.IF_ACMPEQ:
+      case Opcodes.IF_ACMPNE:
+        // Needs duped values
+        insertCheck(opcode, Opcodes.DUP2, origIndex, line);
+        break;
+    }
+    // Loops always jump back, so a check at each backward jump and each method entry bounds any execution
+    if (visitedLabels != null && opcode != Opcodes.JSR && visitedLabels.contains(label)) insertBudgetCheck();
+    super.visitJumpInsn(opcode, label);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitLdcInsn(Object cst) {
+    realInsnVisited(Opcodes.LDC);
+    if (dictionaryConstants != null) {
+      if (cst instanceof String) dictionaryConstants.add(cst);
+      else if (cst instanceof Integer || cst instanceof Long) addNumberIfComparedNext(((Number) cst).longValue());
+    }
+    super.visitLdcInsn(cst);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitIincInsn(int var, int increment) {
+    realInsnVisited(Opcodes.IINC);
+    super.visitIincInsn(var, increment);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+    realInsnVisited(Opcodes.TABLESWITCH);
+    // Needs duped value and the min and max consts
+    insertCheck(Opcodes.TABLESWITCH, Opcodes.DUP, origIndex, line, min, max);
+    insertBudgetCheckIfBackward(dflt, labels);
+    super.visitTableSwitchInsn(min, max, dflt, labels);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+    boolean onHashCode = afterHashCode;
+    realInsnVisited(Opcodes.LOOKUPSWITCH);
+    // Table switch keys are dense and usually small, so only the sparse ones are worth it. A switch on a hash code is
+    // usually a string switch whose strings are added anyways.
+    if (dictionaryConstants != null && !onHashCode) for (int key : keys) dictionaryConstants.add((long) key);
+    List<Integer> keyList = new ArrayList<>(keys.length);
+    for (int key : keys) keyList.add(key);
+    // Needs duped value and the jump keys encoded in a string like the tree adapter does
+    insertCheck(Opcodes.LOOKUPSWITCH, Opcodes.DUP, origIndex, line, MethodBranchAdapter.encodeSwitchKeys(keyList));
+    insertBudgetCheckIfBackward(dflt, labels);
+    super.visitLookupSwitchInsn(dflt, keys, labels);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitMultiANewArrayInsn(String desc, int dims) {
+    realInsnVisited(Opcodes.MULTIANEWARRAY);
+    super.visitMultiANewArrayInsn(desc, dims);
+    nodeVisited();
+  }
+
+  @Override
+  public void visitEnd() {
+    if (dictionaryConstants != null) {
+      // Numbers not compared by the end of the method are left out
+      for (int[] number : uncomparedNumbers) dictionaryConstants.set(number[0], null);
+      for (Object cst : dictionaryConstants) {
+        if (cst instanceof String) config.autoDictionary.add((String) cst);
+        else if (cst != null) config.autoDictionary.addNumber((Long) cst);
+      }
+    }
+    super.visitEnd();
+  }
+
+  private void nodeVisited() {
+    origIndex++;
+    index++;
+  }
+
+  /** Must be called before every insn with an opcode is passed on */
+  private void realInsnVisited(int opcode) {
+    insertHandlerProbe();
+    afterHashCode = false;
+    if (uncomparedNumbers == null || uncomparedNumbers.isEmpty()) return;
+    if ((opcode >= Opcodes.IF_ICMPEQ && opcode <= Opcodes.IF_ICMPLE) || opcode == Opcodes.LCMP) {
+      uncomparedNumbers.clear();
+      return;
+    }
+    // Only a comparison among the next couple of real insns counts
+    for (int i = uncomparedNumbers.size() - 1; i >= 0; i--) {
+      int[] number = uncomparedNumbers.get(i);
+      if (++number[1] < 3) continue;
+      dictionaryConstants.set(number[0], null);
+      uncomparedNumbers.remove(i);
+    }
+  }
+
+  private void addNumberIfComparedNext(long value) {
+    uncomparedNumbers.add(new int[] { dictionaryConstants.size(), 0 });
+    dictionaryConstants.add(value);
+  }
+
+  private void insertBudgetCheck() {
+    super.visitMethodInsn(Opcodes.INVOKESTATIC, refs.budgetCheck.classSig, refs.budgetCheck.methodName,
+        refs.budgetCheck.methodSig, false);
+  }
+
+  private void insertBudgetCheckIfBackward(Label dflt, Label[] labels) {
+    if (visitedLabels == null) return;
+    // Switches can loop too, e.g. state machines, through any of their labels
+    boolean backward = visitedLabels.contains(dflt);
+    for (int i = 0; !backward && i < labels.length; i++) backward = visitedLabels.contains(labels[i]);
+    if (backward) insertBudgetCheck();
+  }
+
+  /** If a catch handler label was just visited, insert its probe before the next node that isn't a line or frame */
+  private void insertHandlerProbe() {
+    if (pendingHandler == null) return;
+    pendingHandler = null;
+    // Dupe the exception and call
+    insertCheck(Opcodes.ATHROW, Opcodes.DUP, pendingHandlerOrigIndex, pendingHandlerLine);
+  }
+
+  /**
+   * Insert a dupe with the given opcode, the given constants, and a static call to the check for the given opcode
+   * before the next node. The branch's original index and line are only used for the branch registry.
+   */
+  private void insertCheck(int opcode, int dupOpcode, int branchOrigIndex, int branchLine, Object... constants) {
+    int insertedCount = constants.length + 3;
+    int branchHash = MethodBranchAdapter.insnHashCode(className, name, desc, index + insertedCount);
+    if (config.branchRegistry != null)
+      branchHash = config.branchRegistry.register(className, name, desc, branchOrigIndex, null, branchLine, opcode);
+    // Stripped probes still count so the later hashes in the method don't change
+    index += insertedCount;
+    // Switch checks record a hash per case instead of this one, so they can't be stripped
+    if (opcode != Opcodes.TABLESWITCH && opcode != Opcodes.LOOKUPSWITCH && config.saturatedProbes != null &&
+        config.saturatedProbes.registerAndCheck(branchHash, className)) return;
+    super.visitInsn(dupOpcode);
+    for (Object cst : constants) super.visitLdcInsn(cst);
+    super.visitLdcInsn(branchHash);
+    MethodBranchAdapter.MethodRef ref = refs.check(opcode);
+    super.visitMethodInsn(Opcodes.INVOKESTATIC, ref.classSig, ref.methodName, ref.methodSig, false);
+  }
+}
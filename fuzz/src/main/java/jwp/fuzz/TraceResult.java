@@ -0,0 +1,165 @@
+package jwp.fuzz;
+
+import java.util.Arrays;
+
+/**
+ * The branches hit during a trace, backed by a single primitive array. Each hit is packed into a long with the branch
+ * hash in the high 32 bits and the hit count in the low 32 bits, so sorting the longs sorts the hits using
+ * {@link BranchHit}'s set ordering. {@link BranchHit} objects are only created if {@link #branchHits()} is called.
+ * Traces with {@link #hasSignatures()} are not sorted until the hits are first accessed, so hashing them with a
+ * {@link BranchHit.RollingHasher} never sorts. Traces may also carry the {@link #comparisons()} logged while tracing.
+ */
+public class TraceResult {
+
+  /** An empty trace */
+  public static final TraceResult EMPTY = new TraceResult(new long[0], 0);
+
+  /** Pack the given hash and count into a single long */
+  public static long pack(int branchHash, int hitCount) {
+    return ((long) branchHash << 32) | (hitCount & 0xFFFFFFFFL);
+  }
+
+  /** Create a trace from already sorted hits, or {@link #EMPTY} if null like from a tracer with nothing traced */
+  public static TraceResult of(BranchHit... hits) {
+    if (hits == null) return EMPTY;
+    long[] packed = new long[hits.length];
+    for (int i = 0; i < hits.length; i++) packed[i] = pack(hits[i].branchHash, hits[i].hitCount);
+    return new TraceResult(packed, packed.length);
+  }
+
+  private final long[] packedHits;
+  private final int size;
+  private volatile boolean sorted;
+  private final boolean hasSignatures;
+  private final int signature;
+  private final int bucketedSignature;
+  private volatile BranchHit[] branchHits;
+  private final ComparisonLog.Comparison[] comparisons;
+  private final long[] comparisonDistances;
+  private final byte[][] tokens;
+
+  /**
+   * Create a trace from the first size values of the given packed hits which must already be sorted. The array is
+   * owned by this trace after this call and must not be changed.
+   */
+  public TraceResult(long[] packedHits, int size) {
+    this(packedHits, size, false, 0, 0);
+  }
+
+  /**
+   * Same as {@link #TraceResult(long[], int)} but with signatures maintained while tracing, see
+   * {@link BranchHit.RollingHasher}. The packed hits do not have to be sorted, they are sorted on first access.
+   */
+  public TraceResult(long[] packedHits, int size, int signature, int bucketedSignature) {
+    this(packedHits, size, true, signature, bucketedSignature);
+  }
+
+  private TraceResult(long[] packedHits, int size, boolean hasSignatures, int signature, int bucketedSignature) {
+    this(packedHits, size, hasSignatures, signature, bucketedSignature, null, null, null);
+  }
+
+  private TraceResult(long[] packedHits, int size, boolean hasSignatures, int signature, int bucketedSignature,
+      ComparisonLog.Comparison[] comparisons, long[] comparisonDistances, byte[][] tokens) {
+    this.packedHits = packedHits;
+    this.size = size;
+    sorted = !hasSignatures;
+    this.hasSignatures = hasSignatures;
+    this.signature = signature;
+    this.bucketedSignature = bucketedSignature;
+    this.comparisons = comparisons;
+    this.comparisonDistances = comparisonDistances;
+    this.tokens = tokens;
+  }
+
+  /**
+   * Copy of this trace with the given comparisons, comparison distances, and tokens. This trace's hits are shared with
+   * the copy, so this trace should not be used after.
+   */
+  public TraceResult withComparisons(ComparisonLog.Comparison[] comparisons, long[] comparisonDistances,
+      byte[][] tokens) {
+    return new TraceResult(packedHits, size, hasSignatures, signature, bucketedSignature, comparisons,
+        comparisonDistances, tokens);
+  }
+
+  /** Whether comparisons were logged for this trace, even if there were none */
+  public boolean hasComparisons() { return comparisons != null; }
+
+  /** The comparisons logged for this trace, see {@link ComparisonLog#toComparisons()}. Empty if not logged. */
+  public ComparisonLog.Comparison[] comparisons() {
+    return comparisons == null ? ComparisonLog.NO_COMPARISONS : comparisons;
+  }
+
+  /** The closest distance per comparison site, see {@link ComparisonLog#toDistances()}. Empty if not logged. */
+  public long[] comparisonDistances() {
+    return comparisonDistances == null ? ComparisonLog.NO_DISTANCES : comparisonDistances;
+  }
+
+  /** The tokens compared in this trace, see {@link ComparisonLog#toTokens()}. Empty if not logged. */
+  public byte[][] tokens() { return tokens == null ? ComparisonLog.NO_TOKENS : tokens; }
+
+  /** Whether {@link #signature()} and {@link #bucketedSignature()} were maintained while tracing */
+  public boolean hasSignatures() { return hasSignatures; }
+
+  /**
+   * The order-independent signature of the hit branch hashes, only valid if {@link #hasSignatures()}. See
+   * {@link BranchHit.RollingHasher}.
+   */
+  public int signature() { return signature; }
+
+  /** Same as {@link #signature()} but also including the hit count buckets */
+  public int bucketedSignature() { return bucketedSignature; }
+
+  /** The number of distinct branches hit */
+  public int size() { return size; }
+
+  /** The branch hash of the hit at the given index */
+  public int branchHash(int index) { return (int) (packedHit(index) >> 32); }
+
+  /** The hit count of the hit at the given index */
+  public int hitCount(int index) { return (int) packedHit(index); }
+
+  /** The packed hit at the given index, see {@link #pack(int, int)} */
+  public long packedHit(int index) {
+    if (!sorted) sort();
+    return packedHits[index];
+  }
+
+  private synchronized void sort() {
+    if (sorted) return;
+    Arrays.sort(packedHits, 0, size);
+    sorted = true;
+  }
+
+  /** The hits as sorted {@link BranchHit} objects. These are created on first call and reused after. */
+  public BranchHit[] branchHits() {
+    BranchHit[] ret = branchHits;
+    if (ret == null) {
+      ret = new BranchHit[size];
+      for (int i = 0; i < size; i++) ret[i] = new BranchHit(branchHash(i), hitCount(i));
+      branchHits = ret;
+    }
+    return ret;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    TraceResult other = (TraceResult) o;
+    if (size != other.size) return false;
+    for (int i = 0; i < size; i++) if (packedHit(i) != other.packedHit(i)) return false;
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = 1;
+    for (int i = 0; i < size; i++) result = 31 * result + Long.hashCode(packedHit(i));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(branchHits());
+  }
+}
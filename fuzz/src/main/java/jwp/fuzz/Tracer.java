@@ -1,7 +1,7 @@
 package jwp.fuzz;
 
-import java.util.Arrays;
-import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 /** Base interface for all tracers. The primary implementation is {@link Instrumenting}. */
 public interface Tracer {
@@ -11,28 +11,182 @@ public interface Tracer {
 
   /**
    * Stop the trace on the given thread. If there is not a trace on the given thread, this should return null. The
-   * resulting array from this trace should be sorted using {@link BranchHit}'s set ordering.
+   * hits in the resulting trace should be sorted using {@link BranchHit}'s set ordering. Implementations must override
+   * this or {@link #stopTrace(Thread)}, which this defaults to.
    */
-  BranchHit[] stopTrace(Thread thread);
+  default TraceResult stopTraceResult(Thread thread) {
+    BranchHit[] hits = stopTrace(thread);
+    return hits == null ? null : TraceResult.of(hits);
+  }
+
+  /**
+   * Same as {@link #stopTraceResult(Thread)} but as hit objects, which defaults to creating them from it.
+   *
+   * @deprecated Creates every hit object, use and implement {@link #stopTraceResult(Thread)} instead
+   */
+  @Deprecated
+  default BranchHit[] stopTrace(Thread thread) {
+    TraceResult trace = stopTraceResult(thread);
+    return trace == null ? null : trace.branchHits();
+  }
 
-  /** Main tracer using instrumenting */
+  /**
+   * Main tracer using instrumenting. Hits are recorded in thread-local state, so traces can only be started and
+   * stopped from the thread being traced.
+   */
   class Instrumenting implements Tracer {
+    /** The immutable tracer config */
+    public final Config config;
+    /** The hits for each thread, created on first trace and reset for each one after */
+    protected final ThreadLocal<BranchTracker.BranchHits> threadHits;
+    /** The comparison log for each thread if {@link Config#comparisonLogging} is set, reused like the hits */
+    protected final ThreadLocal<ComparisonLog> threadComparisonLog;
+
+    /** Create a tracer with the default {@link Config} */
+    public Instrumenting() { this(Config.builder().build()); }
+
+    /** Create a tracer with the given {@link Config.Builder#hitsCreator(Supplier)} and other defaults */
+    public Instrumenting(Supplier<? extends BranchTracker.BranchHits> hitsCreator) {
+      this(Config.builder().hitsCreator(hitsCreator).build());
+    }
+
+    /** Create a tracer with the given config */
+    public Instrumenting(Config config) {
+      this.config = config;
+      threadHits = ThreadLocal.withInitial(config.hitsCreator);
+      threadComparisonLog = config.comparisonLogging ? ThreadLocal.withInitial(ComparisonLog::new) : null;
+    }
+
     @Override
     public void startTrace(Thread thread) {
-      BranchTracker.beginTrackingForThread(thread);
+      BranchTracker.BranchHits hits = threadHits.get();
+      hits.reset();
+      ComparisonLog comparisonLog = null;
+      if (threadComparisonLog != null) {
+        comparisonLog = threadComparisonLog.get();
+        comparisonLog.reset();
+      }
+      BranchTracker.beginTrackingForThread(thread, hits, config.edgeCoverage, comparisonLog, config.executionBudget);
     }
 
     @Override
-    public BranchHit[] stopTrace(Thread thread) {
+    public TraceResult stopTraceResult(Thread thread) {
       BranchTracker.BranchHits hits = BranchTracker.endTrackingForThread(thread);
       if (hits == null) return null;
-      BranchHit[] ret = new BranchHit[hits.branchHashHits.size()];
-      int index = 0;
-      for (Map.Entry<Integer, BranchTracker.IntRef> hit : hits.branchHashHits.entrySet()) {
-        ret[index++] = new BranchHit(hit.getKey(), hit.getValue().value);
+      TraceResult trace = hits.toTraceResult();
+      if (threadComparisonLog != null) {
+        ComparisonLog comparisonLog = threadComparisonLog.get();
+        trace = trace.withComparisons(comparisonLog.toComparisons(), comparisonLog.toDistances(),
+            comparisonLog.toTokens());
+      }
+      return trace;
+    }
+
+    /**
+     * Whether traces hold the hashes of the probes hit as is, which {@link SaturatedProbes} needs. They don't with
+     * {@link Config#edgeCoverage} or with hits that don't {@link BranchTracker.BranchHits#recordsBranchHashes()}. This
+     * creates the hits for the current thread if not already created.
+     */
+    public boolean tracesProbeHashes() {
+      return !config.edgeCoverage && threadHits.get().recordsBranchHashes();
+    }
+
+    /** Configuration for the {@link Instrumenting} tracer. Can use {@link #builder()} to build the config easier */
+    public static class Config {
+      /** Create a {@link Builder} for easy building */
+      public static Builder builder() { return new Builder(); }
+
+      /** See {@link Builder#hitsCreator(Supplier)} */
+      public final Supplier<? extends BranchTracker.BranchHits> hitsCreator;
+      /** See {@link Builder#edgeCoverage(boolean)} */
+      public final boolean edgeCoverage;
+      /** See {@link Builder#comparisonLogging(boolean)} */
+      public final boolean comparisonLogging;
+      /** See {@link Builder#executionBudget(long)} */
+      public final long executionBudget;
+
+      public Config(Supplier<? extends BranchTracker.BranchHits> hitsCreator, boolean edgeCoverage) {
+        this(hitsCreator, edgeCoverage, false, 0);
+      }
+
+      public Config(Supplier<? extends BranchTracker.BranchHits> hitsCreator, boolean edgeCoverage,
+          boolean comparisonLogging, long executionBudget) {
+        this.hitsCreator = Objects.requireNonNull(hitsCreator);
+        this.edgeCoverage = edgeCoverage;
+        this.comparisonLogging = comparisonLogging;
+        if (executionBudget < 0) throw new IllegalArgumentException("Execution budget can't be negative");
+        this.executionBudget = executionBudget;
+      }
+
+      /** Builder to make creating {@link Config}s easier. Nothing is required. */
+      public static class Builder {
+        /** See {@link #hitsCreator(Supplier)} */
+        public Supplier<? extends BranchTracker.BranchHits> hitsCreator;
+        /**
+         * Supplier of the hits to record into. It is called at most once per thread, on the thread, and the hits are
+         * reused for every trace on that thread. The default is {@link BranchTracker.BranchHits.MapBacked}. Use
+         * <code>BranchTracker.BranchHits.Bitmap::new</code> for allocation-free hit counting.
+         */
+        public Builder hitsCreator(Supplier<? extends BranchTracker.BranchHits> hitsCreator) {
+          this.hitsCreator = hitsCreator;
+          return this;
+        }
+        /** See {@link #hitsCreator(Supplier)} */
+        public Supplier<? extends BranchTracker.BranchHits> hitsCreatorDefault() {
+          return BranchTracker.BranchHits.MapBacked::new;
+        }
+
+        /** See {@link #edgeCoverage(boolean)} */
+        public boolean edgeCoverage;
+        /**
+         * If true, transitions from one branch to the next are recorded instead of just the branches, like
+         * <a href="http://lcamtuf.coredump.cx/afl/">AFL</a> does. This tells apart paths that take the same branches
+         * in a different order. See {@link BranchTracker#beginTrackingForThread(Thread, BranchTracker.BranchHits,
+         * boolean)}. The default is false.
+         */
+        public Builder edgeCoverage(boolean edgeCoverage) {
+          this.edgeCoverage = edgeCoverage;
+          return this;
+        }
+
+        /** See {@link #comparisonLogging(boolean)} */
+        public boolean comparisonLogging;
+        /**
+         * If true, each trace logs the operands of integer and long comparisons into a {@link ComparisonLog} and
+         * returns them in {@link TraceResult#comparisons()}. This only sees comparisons in classes instrumented with
+         * {@link ClassBranchAdapter.Config.Builder#comparisonLogging(boolean)}. Tokens from calls hooked with
+         * {@link ClassBranchAdapter.Config.Builder#tokenHooks(boolean)} are returned in {@link TraceResult#tokens()}.
+         * The default is false.
+         */
+        public Builder comparisonLogging(boolean comparisonLogging) {
+          this.comparisonLogging = comparisonLogging;
+          return this;
+        }
+
+        /** See {@link #executionBudget(long)} */
+        public long executionBudget;
+        /**
+         * If positive, the number of method entries and backward jumps each traced execution can make in classes
+         * instrumented with {@link ClassBranchAdapter.Config.Builder#executionBudget(boolean)} before it is stopped
+         * with an {@link ExecutionTimeoutError}, making the result a {@link ExecutionResult#hang()}. Unlike a
+         * {@link Invoker.WithWatchdog} timeout this also stops loops that ignore interrupts and, being a count, stops
+         * the same inputs every time. The default is 0 which means there is no budget.
+         */
+        public Builder executionBudget(long executionBudget) {
+          this.executionBudget = executionBudget;
+          return this;
+        }
+
+        /** Build the config */
+        public Config build() {
+          return new Config(
+              hitsCreator == null ? hitsCreatorDefault() : hitsCreator,
+              edgeCoverage,
+              comparisonLogging,
+              executionBudget
+          );
+        }
       }
-      Arrays.sort(ret);
-      return ret;
     }
   }
 }
@@ -0,0 +1,192 @@
+package jwp.fuzz;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory of previously instrumented class bytes, so that classes seen by earlier JVMs don't have to be parsed and
+ * transformed again. Entries are keyed by a SHA-256 of the original bytes, the parts of the config that affect the
+ * output, and the JWP and ASM versions (see {@link #version(Path)}). Each entry is written to a temporary file and
+ * atomically moved into place, so any number of JVMs can share a directory. Nothing is ever removed, the directory can
+ * be deleted at any time.
+ * <p>
+ * Configs with a {@link ClassBranchAdapter.Config#branchRegistry}, {@link ClassBranchAdapter.Config#autoDictionary},
+ * or {@link ClassBranchAdapter.Config#saturatedProbes} have side effects or output that depends on more than the
+ * class, so classes are always transformed with them. All methods are thread safe.
+ */
+public class TransformCache {
+  /**
+   * The version part of keys. This is the implementation version of JWP and of ASM, each with the size and modification
+   * time of the jar it was loaded from since snapshot builds share a version. Classes on the bootstrap loader, like
+   * under the agent, have no code source to find their jar from, so the given JWP jar is used instead if not null.
+   * When ASM is shaded into that jar, the jar covers its version too.
+   */
+  public static String version(Path jwpJar) {
+    StringBuilder ret = new StringBuilder();
+    appendVersion(ret, ClassBranchAdapter.class, jwpJar);
+    ret.append(" asm ");
+    appendVersion(ret, ClassReader.class, null);
+    return ret.toString();
+  }
+
+  private static void appendVersion(StringBuilder ret, Class<?> cls, Path jar) {
+    Package pkg = cls.getPackage();
+    String version = pkg == null ? null : pkg.getImplementationVersion();
+    ret.append(version == null ? "unknown" : version);
+    try {
+      if (jar == null) {
+        CodeSource source = cls.getProtectionDomain().getCodeSource();
+        if (source != null) jar = Paths.get(source.getLocation().toURI());
+      }
+      if (jar != null && Files.isRegularFile(jar)) ret.append(':').append(Files.size(jar)).append(':').
+          append(Files.getLastModifiedTime(jar).toMillis());
+    } catch (Exception ignored) {
+      // Just the version then
+    }
+  }
+
+  /** The directory entries are stored in */
+  public final Path dir;
+  /** The version part of every key, see {@link #version(Path)} */
+  public final String version;
+  protected final AtomicLong hits = new AtomicLong();
+  protected final AtomicLong misses = new AtomicLong();
+
+  /** Create a cache in the given directory, creating it if it doesn't exist */
+  public TransformCache(Path dir) {
+    this(dir, null);
+  }
+
+  /**
+   * Create a cache in the given directory, creating it if it doesn't exist, with keys versioned by the given JWP jar if
+   * not null. See {@link #version(Path)}.
+   */
+  public TransformCache(Path dir, Path jwpJar) {
+    this.dir = dir;
+    this.version = version(jwpJar);
+    try {
+      Files.createDirectories(dir);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to create cache dir " + dir, e);
+    }
+  }
+
+  /**
+   * Get the cached instrumented bytes of the given class or transform it via
+   * {@link ClassBranchAdapter#transform(byte[], ClassBranchAdapter.Config)} and cache the result. Failing to read or
+   * write an entry is not an error, the class is just transformed.
+   */
+  public byte[] transform(String className, byte[] origBytes, ClassBranchAdapter.Config config) {
+    String configKey = configKey(className, config);
+    if (configKey == null) return ClassBranchAdapter.transform(origBytes, config);
+    Path path = entryPath(origBytes, configKey);
+    byte[] bytes = read(path);
+    if (bytes != null) {
+      hits.incrementAndGet();
+      return bytes;
+    }
+    misses.incrementAndGet();
+    bytes = ClassBranchAdapter.transform(origBytes, config);
+    write(path, bytes);
+    return bytes;
+  }
+
+  /**
+   * Transform and cache the given class if it isn't already cached, for filling the cache ahead of use. Returns true
+   * if it was transformed, false if already cached or the config can't be cached.
+   */
+  public boolean warm(String className, byte[] origBytes, ClassBranchAdapter.Config config) {
+    String configKey = configKey(className, config);
+    if (configKey == null) return false;
+    Path path = entryPath(origBytes, configKey);
+    if (Files.exists(path)) return false;
+    write(path, ClassBranchAdapter.transform(origBytes, config));
+    return true;
+  }
+
+  /** Whether the given config's transformations can be cached */
+  public boolean isCacheable(ClassBranchAdapter.Config config) {
+    return config.branchRegistry == null && config.autoDictionary == null && config.saturatedProbes == null;
+  }
+
+  /** The number of classes returned from the cache */
+  public long hits() { return hits.get(); }
+
+  /** The number of cacheable classes that had to be transformed */
+  public long misses() { return misses.get(); }
+
+  /** The parts of the config that affect the transformed bytes of the class or null if it can't be cached */
+  protected String configKey(String className, ClassBranchAdapter.Config config) {
+    if (!isCacheable(config)) return null;
+    StringBuilder ret = new StringBuilder().append(version).append('\n').
+        append(config.probeStrategy).append('\n').
+        append(config.dualVersionMethods).append('\n').
+        append(config.comparisonLogging).append('\n').
+        append(config.tokenHooks).append('\n').
+        append(config.executionBudget).append('\n');
+    if (config.reachableMethods != null) {
+      Set<String> methods = config.reachableMethods.methodsByClass.get(className);
+      if (methods != null) ret.append(new TreeSet<>(methods));
+    } else {
+      ret.append('*');
+    }
+    return ret.toString();
+  }
+
+  protected Path entryPath(byte[] origBytes, String configKey) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    digest.update(configKey.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    byte[] hash = digest.digest(origBytes);
+    StringBuilder name = new StringBuilder(hash.length * 2);
+    for (byte b : hash) name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    // Spread over subdirectories so no single one gets huge
+    return dir.resolve(name.substring(0, 2)).resolve(name.substring(2) + ".class");
+  }
+
+  protected byte[] read(Path path) {
+    try {
+      byte[] bytes = Files.readAllBytes(path);
+      // Entries are moved into place whole, but guard against anything else having touched it
+      if (bytes.length < 4 || bytes[0] != (byte) 0xCA || bytes[1] != (byte) 0xFE ||
+          bytes[2] != (byte) 0xBA || bytes[3] != (byte) 0xBE) return null;
+      return bytes;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      System.err.println("Failed reading cached class " + path + ": " + e);
+      return null;
+    }
+  }
+
+  protected void write(Path path, byte[] bytes) {
+    Path tempPath = null;
+    try {
+      Files.createDirectories(path.getParent());
+      tempPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+      Files.write(tempPath, bytes);
+      // Another JVM may have written the same entry, which is fine since it has the same bytes
+      Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Failed caching class " + path + ": " + e);
+      if (tempPath != null) {
+        try {
+          Files.deleteIfExists(tempPath);
+        } catch (IOException ignored) { }
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class AutoDictionaryTest {
+
+  @Test
+  public void testAddNumber() {
+    AutoDictionary dict = new AutoDictionary();
+    dict.addNumber(5);
+    Assert.assertEquals(0, dict.size());
+    dict.addNumber(0xCAFE);
+    Assert.assertTrue(dict.contains(new byte[] { (byte) 0xFE, (byte) 0xCA }));
+    Assert.assertTrue(dict.contains(new byte[] { (byte) 0xCA, (byte) 0xFE }));
+    Assert.assertTrue(dict.contains("51966".getBytes(StandardCharsets.US_ASCII)));
+    dict.addNumber(-100000);
+    Assert.assertTrue(dict.contains(new byte[] { (byte) 0x60, (byte) 0x79, (byte) 0xFE, (byte) 0xFF }));
+  }
+
+  @Test
+  public void testConstantsFromTransform() throws Exception {
+    AutoDictionary dict = new AutoDictionary();
+    try (InputStream in = Target.class.getResourceAsStream("AutoDictionaryTest$Target.class")) {
+      ClassBranchAdapter.transform(new ClassReader(in).b,
+          ClassBranchAdapter.Config.builder().autoDictionary(dict).build());
+    }
+    Assert.assertTrue(dict.contains("MAGIC".getBytes(StandardCharsets.US_ASCII)));
+    Assert.assertTrue(dict.contains("FIELD".getBytes(StandardCharsets.US_ASCII)));
+    Assert.assertTrue(dict.contains(new byte[] { (byte) 0xBE, (byte) 0xBA, (byte) 0xFE, (byte) 0xCA }));
+    Assert.assertTrue(dict.contains(new byte[] { (byte) 0x12, (byte) 0x34 }));
+    Assert.assertTrue(dict.contains("123456".getBytes(StandardCharsets.US_ASCII)));
+    // Neither the uncompared constant nor the string switch hash codes
+    Assert.assertFalse(dict.contains("54321".getBytes(StandardCharsets.US_ASCII)));
+    Assert.assertFalse(dict.contains(Integer.toString("foo".hashCode()).getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  @Test
+  public void testConstantsFromPrefixedClassesOnly() throws Exception {
+    AutoDictionary dict = new AutoDictionary(AutoDictionary.MAX_ENTRIES_DEFAULT, AutoDictionary.MIN_LENGTH_DEFAULT,
+        AutoDictionary.MAX_LENGTH_DEFAULT, new String[] { "jwp.fuzz.AutoDictionaryTest$Other" });
+    Assert.assertTrue(dict.collectsConstantsFrom("jwp/fuzz/AutoDictionaryTest$Other"));
+    Assert.assertFalse(dict.collectsConstantsFrom("jwp/fuzz/AutoDictionaryTest$Target"));
+    // Both streamed and tree instrumented methods leave other classes' constants out
+    for (MethodBranchAdapter.ProbeStrategy strategy : MethodBranchAdapter.ProbeStrategy.values()) {
+      try (InputStream in = Target.class.getResourceAsStream("AutoDictionaryTest$Target.class")) {
+        ClassBranchAdapter.transform(new ClassReader(in).b,
+            ClassBranchAdapter.Config.builder().probeStrategy(strategy).autoDictionary(dict).build());
+      }
+    }
+    Assert.assertEquals(0, dict.size());
+  }
+
+  public static class Target {
+    public static final String FIELD = "FIELD";
+
+    public static int check(String str, int value) {
+      int ignored = 54321 + value;
+      if (value == 0xCAFEBABE) return 1;
+      if (value == 0x1234) return 2;
+      switch (value) {
+        case 5: return 3;
+        case 123456: return 4;
+      }
+      switch (str) {
+        case "foo": return 5;
+        case "bar": return 6;
+      }
+      return "MAGIC".equals(str) ? 7 : ignored;
+    }
+  }
+}
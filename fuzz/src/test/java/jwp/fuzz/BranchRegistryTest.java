@@ -0,0 +1,63 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class BranchRegistryTest {
+
+  @Test
+  public void testRegisterAndPersist() throws IOException {
+    BranchRegistry registry = new BranchRegistry();
+    Assert.assertEquals(0, registry.register("foo/Bar", "baz", "()V", 3, null, 10, Opcodes.IFEQ));
+    Assert.assertEquals(1, registry.register("foo/Bar", "baz", "()V", 7, 42, 11, Opcodes.LOOKUPSWITCH));
+    Assert.assertEquals(2, registry.register("foo/Bar", "baz", "()V", 7, -5, 11, Opcodes.LOOKUPSWITCH));
+    // Same branch, same ID
+    Assert.assertEquals(0, registry.register("foo/Bar", "baz", "()V", 3, null, 10, Opcodes.IFEQ));
+    // The fall-through edge of the same jump is its own branch
+    Assert.assertEquals(3, registry.register("foo/Bar", "baz", "()V", 3, null, 10, Opcodes.GOTO));
+    Assert.assertEquals(4, registry.size());
+    Assert.assertEquals(Integer.valueOf(42), registry.get(1).switchKey);
+    Assert.assertNull(registry.get(4));
+
+    Path path = Files.createTempFile("branches", ".tsv");
+    try {
+      registry.save(path);
+      BranchRegistry loaded = BranchRegistry.load(path);
+      Assert.assertEquals(registry.branches(), loaded.branches());
+      Assert.assertEquals(2, loaded.register("foo/Bar", "baz", "()V", 7, -5, 11, Opcodes.LOOKUPSWITCH));
+      Assert.assertEquals(3, loaded.register("foo/Bar", "baz", "()V", 3, null, 10, Opcodes.GOTO));
+      Assert.assertEquals(4, loaded.register("foo/Bar", "qux", "()V", 3, null, 20, Opcodes.IFNULL));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void testTransformRegistersDenseIds() throws IOException {
+    BranchRegistry registry = new BranchRegistry();
+    ClassBranchAdapter.transform(classBytes(), ClassBranchAdapter.Config.builder().branchRegistry(registry).build());
+    Assert.assertNotEquals(0, registry.size());
+    for (int i = 0; i < registry.size(); i++) {
+      BranchRegistry.Branch branch = registry.get(i);
+      Assert.assertEquals(i, branch.id);
+      Assert.assertEquals("jwp/fuzz/BranchRegistryTest", branch.className);
+    }
+    // Transforming again should give the same IDs
+    int size = registry.size();
+    ClassBranchAdapter.transform(classBytes(), ClassBranchAdapter.Config.builder().branchRegistry(registry).build());
+    Assert.assertEquals(size, registry.size());
+  }
+
+  private static byte[] classBytes() throws IOException {
+    try (InputStream in = BranchRegistryTest.class.getResourceAsStream("BranchRegistryTest.class")) {
+      return new ClassReader(in).b;
+    }
+  }
+}
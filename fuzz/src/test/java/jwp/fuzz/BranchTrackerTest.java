@@ -0,0 +1,66 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class BranchTrackerTest {
+
+  @Test
+  public void testTrackingPerThread() throws Throwable {
+    Thread thread = Thread.currentThread();
+    // Nothing is recorded while untracked
+    Assert.assertFalse(BranchTracker.isTracking());
+    BranchTracker.addBranchHash(1);
+    Assert.assertNull(BranchTracker.endTrackingForThread(thread));
+    // Once tracked, each thread records into its own hits
+    BranchTracker.BranchHits hits = new BranchTracker.BranchHits.MapBacked();
+    BranchTracker.beginTrackingForThread(thread, hits);
+    Assert.assertTrue(BranchTracker.isTracking());
+    BranchTracker.addBranchHash(2);
+    BranchTracker.BranchHits otherHits = runOnOtherThread(() -> {
+      // Other threads don't record just because this one is tracked
+      Assert.assertFalse(BranchTracker.isTracking());
+      BranchTracker.addBranchHash(3);
+      BranchTracker.BranchHits ret = new BranchTracker.BranchHits.MapBacked();
+      BranchTracker.beginTrackingForThread(Thread.currentThread(), ret);
+      BranchTracker.addBranchHash(4);
+      Assert.assertSame(ret, BranchTracker.endTrackingForThread(Thread.currentThread()));
+      return ret;
+    });
+    BranchTracker.addBranchHash(5);
+    Assert.assertSame(hits, BranchTracker.endTrackingForThread(thread));
+    Assert.assertFalse(BranchTracker.isTracking());
+    BranchTracker.addBranchHash(6);
+    Assert.assertArrayEquals(new int[] { 2, 5 }, branchHashes(hits));
+    Assert.assertArrayEquals(new int[] { 4 }, branchHashes(otherHits));
+  }
+
+  private static <T> T runOnOtherThread(ThrowingSupplier<T> fn) throws Throwable {
+    CompletableFuture<T> ret = new CompletableFuture<>();
+    Thread thread = new Thread(() -> {
+      try {
+        ret.complete(fn.get());
+      } catch (Throwable e) {
+        ret.completeExceptionally(e);
+      }
+    });
+    thread.start();
+    try {
+      return ret.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static int[] branchHashes(BranchTracker.BranchHits hits) {
+    return ((BranchTracker.BranchHits.MapBacked) hits).branchHashHits.keySet().stream().mapToInt(i -> i).toArray();
+  }
+
+  private interface ThrowingSupplier<T> {
+    T get() throws Throwable;
+  }
+}
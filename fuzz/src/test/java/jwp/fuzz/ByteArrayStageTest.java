@@ -0,0 +1,33 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class ByteArrayStageTest {
+
+  @Test
+  public void testInputToState() {
+    ByteArrayParamGenerator gen = new ByteArrayParamGenerator(ByteArrayParamGenerator.Config.builder().build());
+    byte[] bytes = { 'x', 0x34, 0x12, 0, 0, '4', '6', '6', '0' };
+    ByteArrayParamGenerator.TestCase entry = new ByteArrayParamGenerator.TestCase(bytes, new BranchHit[0], 1,
+        new ComparisonLog.Comparison[] {
+            // The input read as a little endian int compared to a magic value
+            new ComparisonLog.Comparison(1, 4, 0x1234, 0xCAFE),
+            // The parsed decimal compared to a limit
+            new ComparisonLog.Comparison(2, 4, 4660, 12)
+        });
+    List<String> results = new ByteArrayStage.InputToState().apply(gen, entry).
+        map(b -> new String(b, StandardCharsets.ISO_8859_1)).collect(Collectors.toList());
+    Assert.assertTrue(results.contains("x\u00FE\u00CA\0\0" + "4660"));
+    Assert.assertTrue(results.contains("x4\u0012\0\0" + "12"));
+    // No duplicates
+    Assert.assertEquals(results.size(), results.stream().distinct().count());
+    // Nothing without comparisons
+    Assert.assertEquals(0, new ByteArrayStage.InputToState().apply(gen,
+        new ByteArrayParamGenerator.TestCase(bytes)).count());
+  }
+}
@@ -0,0 +1,202 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class ComparisonLogTest {
+
+  @Test
+  public void testRingBuffers() {
+    ComparisonLog log = new ComparisonLog(2, 3);
+    for (int i = 0; i < 5; i++) log.add(10, 4, i, 100);
+    // Repeats are skipped
+    log.add(10, 4, 4, 100);
+    log.add(20, 8, 1L << 40, 5);
+    // Past the max sites
+    log.add(30, 4, 1, 2);
+    Assert.assertArrayEquals(new ComparisonLog.Comparison[] {
+        new ComparisonLog.Comparison(10, 4, 2, 100),
+        new ComparisonLog.Comparison(10, 4, 3, 100),
+        new ComparisonLog.Comparison(10, 4, 4, 100),
+        new ComparisonLog.Comparison(20, 8, 1L << 40, 5)
+    }, log.toComparisons());
+    log.reset();
+    Assert.assertTrue(log.isEmpty());
+    log.add(30, 4, 1, 2);
+    Assert.assertEquals(1, log.toComparisons().length);
+  }
+
+  @Test
+  public void testDistances() {
+    ComparisonLog log = new ComparisonLog();
+    log.add(10, 4, 0b1111, 0);
+    log.add(10, 4, 0b0011, 0);
+    log.add(10, 4, 0b0111, 0);
+    log.add(20, 8, -1L, 0);
+    Assert.assertArrayEquals(new long[] { (10L << 32) | 2, (20L << 32) | 64 }, log.toDistances());
+    // Only closer distances are reported after the first
+    ByteArrayParamGenerator.HashCache cache = new ByteArrayParamGenerator.HashCache.SetBacked();
+    Assert.assertTrue(cache.checkCloserAndStore(log.toDistances()));
+    Assert.assertFalse(cache.checkCloserAndStore(log.toDistances()));
+    Assert.assertFalse(cache.checkCloserAndStore(new long[] { (10L << 32) | 3 }));
+    Assert.assertTrue(cache.checkCloserAndStore(new long[] { (10L << 32) | 3, (20L << 32) | 63 }));
+    log.reset();
+    Assert.assertEquals(0, log.toDistances().length);
+  }
+
+  @Test
+  public void testMapKeyTokens() {
+    ComparisonLog log = new ComparisonLog();
+    Map<String, String> map = new TreeMap<>();
+    for (int i = 0; i < ComparisonLog.MAX_MAP_KEYS + 10; i++) map.put("key" + (char) ('A' + i), "value");
+    log.addMapKeyTokens(map);
+    // Only the first keys are taken
+    byte[][] tokens = log.toTokens();
+    Assert.assertEquals(ComparisonLog.MAX_MAP_KEYS, tokens.length);
+    Assert.assertEquals("keyA", new String(tokens[0], StandardCharsets.UTF_8));
+    // Maps that aren't known JDK ones could run target code while iterating
+    log.reset();
+    log.addMapKeyTokens(new HashMap<String, String>(map) { });
+    log.addMapKeyTokens(new Hashtable<>(map));
+    Assert.assertEquals(0, log.toTokens().length);
+  }
+
+  @Test
+  public void testOperandsLogged() throws Exception {
+    Method method = transformedClass(Target.class, ClassBranchAdapter.Config.builder().comparisonLogging(true).build()).
+        getMethod("check", int.class, long.class);
+    Tracer tracer = new Tracer.Instrumenting(Tracer.Instrumenting.Config.builder().comparisonLogging(true).build());
+    tracer.startTrace(Thread.currentThread());
+    Object result;
+    TraceResult trace;
+    try {
+      result = method.invoke(null, 5, 6L);
+    } finally {
+      trace = tracer.stopTraceResult(Thread.currentThread());
+    }
+    Assert.assertEquals(Target.check(5, 6L), result);
+    Assert.assertTrue(trace.hasComparisons());
+    Assert.assertTrue(Arrays.stream(trace.comparisons()).anyMatch(c ->
+        c.width == 4 && c.lvalue == 5 && c.rvalue == 0xCAFE));
+    Assert.assertTrue(Arrays.stream(trace.comparisons()).anyMatch(c ->
+        c.width == 8 && c.lvalue == 6L && c.rvalue == 0xDEADBEEFL));
+  }
+
+  @Test
+  public void testTokensLogged() throws Exception {
+    Method method = transformedClass(TokenTarget.class, ClassBranchAdapter.Config.builder().tokenHooks(true).build()).
+        getMethod("check", String.class, byte[].class);
+    Tracer tracer = new Tracer.Instrumenting(Tracer.Instrumenting.Config.builder().comparisonLogging(true).build());
+    tracer.startTrace(Thread.currentThread());
+    Object result;
+    TraceResult trace;
+    try {
+      result = method.invoke(null, "foo", new byte[] { 1, 2 });
+    } finally {
+      trace = tracer.stopTraceResult(Thread.currentThread());
+    }
+    Assert.assertEquals(TokenTarget.check("foo", new byte[] { 1, 2 }), result);
+    Set<String> tokens = Arrays.stream(trace.tokens()).
+        map(b -> new String(b, StandardCharsets.ISO_8859_1)).collect(Collectors.toSet());
+    Assert.assertTrue(tokens.containsAll(Arrays.asList("foo", "MAGIC", "pre", "key1", "key2", "\u0001\u0002",
+        "\u00CA\u00FE")));
+    // Hooks still behave like the originals
+    Assert.assertEquals(TokenTarget.check("MAGIC", new byte[] { (byte) 0xCA, (byte) 0xFE }),
+        method.invoke(null, "MAGIC", new byte[] { (byte) 0xCA, (byte) 0xFE }));
+  }
+
+  @Test
+  public void testAutoDictionaryFromTokens() {
+    ComparisonLog log = new ComparisonLog();
+    log.addToken("MAGIC");
+    log.addToken("MAGIC");
+    log.addToken(new byte[] { 1, 2 });
+    Assert.assertEquals(2, log.toTokens().length);
+    log.reset();
+    Assert.assertTrue(log.isEmpty());
+    AutoDictionary dict = new AutoDictionary(2, 2, 4);
+    Assert.assertFalse(dict.add("MAGIC"));
+    Assert.assertFalse(dict.add("M"));
+    Assert.assertTrue(dict.add("MAGI"));
+    Assert.assertFalse(dict.add("MAGI"));
+    Assert.assertTrue(dict.add("AB"));
+    Assert.assertFalse(dict.add("CD"));
+    Assert.assertEquals("AB", new String(dict.entries().get(0), StandardCharsets.ISO_8859_1));
+  }
+
+  @Test
+  public void testGeneratorLearnsTokensWithNewCoverage() throws Exception {
+    AutoDictionary dict = new AutoDictionary();
+    try (ByteArrayParamGenerator gen = new ByteArrayParamGenerator(
+        ByteArrayParamGenerator.Config.builder().autoDictionary(dict).build())) {
+      byte[] input = "input TOKEN".getBytes(StandardCharsets.US_ASCII);
+      // Tokens in the input or too long for the dictionary are skipped
+      gen.onResult(tokenResult(input, 1, "MAGIC", "TOKEN", new String(new char[100])), 0, input);
+      Assert.assertTrue(dict.contains("MAGIC".getBytes(StandardCharsets.US_ASCII)));
+      Assert.assertEquals(1, dict.size());
+      // Nothing is learned from a path seen before
+      gen.onResult(tokenResult(input, 1, "OTHER"), 0, input);
+      Assert.assertEquals(1, dict.size());
+      gen.onResult(tokenResult(input, 2, "OTHER"), 0, input);
+      Assert.assertTrue(dict.contains("OTHER".getBytes(StandardCharsets.US_ASCII)));
+    }
+  }
+
+  private static ExecutionResult tokenResult(byte[] input, int branchHash, String... tokens) {
+    byte[][] tokenBytes = new byte[tokens.length][];
+    for (int i = 0; i < tokens.length; i++) tokenBytes[i] = tokens[i].getBytes(StandardCharsets.US_ASCII);
+    TraceResult trace = TraceResult.of(new BranchHit(branchHash, 1)).
+        withComparisons(ComparisonLog.NO_COMPARISONS, new long[0], tokenBytes);
+    return new ExecutionResult(null, new Object[] { input }, trace, 1, (Object) null);
+  }
+
+  private static Class<?> transformedClass(Class<?> cls, ClassBranchAdapter.Config config)
+      throws IOException, ClassNotFoundException {
+    byte[] bytes;
+    try (InputStream in = cls.getResourceAsStream(cls.getName().substring(cls.getName().lastIndexOf('.') + 1) +
+        ".class")) {
+      bytes = ClassBranchAdapter.transform(new ClassReader(in).b, config);
+    }
+    ClassLoader loader = new ClassLoader(ComparisonLogTest.class.getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        if (!cls.getName().equals(className)) return super.loadClass(className, resolve);
+        Class<?> loaded = findLoadedClass(className);
+        return loaded != null ? loaded : defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return loader.loadClass(cls.getName());
+  }
+
+  public static class Target {
+    public static String check(int magic, long longMagic) {
+      if (longMagic > 0xDEADBEEFL) return "too big";
+      if (magic != 0xCAFE) return "bad magic";
+      return longMagic == 0xDEADBEEFL ? "ok" : "bad long magic";
+    }
+  }
+
+  public static class TokenTarget {
+    private static final Map<String, String> VALUES = new HashMap<>();
+    static {
+      VALUES.put("key1", "value1");
+      VALUES.put("key2", "value2");
+    }
+
+    public static String check(String str, byte[] bytes) {
+      if (VALUES.get(str) != null) return "key";
+      if (str.startsWith("pre")) return "prefix";
+      boolean magic = "MAGIC".equals(str);
+      if (!Arrays.equals(bytes, new byte[] { (byte) 0xCA, (byte) 0xFE })) return "bad bytes";
+      return magic ? "ok" : "bad magic";
+    }
+  }
+}
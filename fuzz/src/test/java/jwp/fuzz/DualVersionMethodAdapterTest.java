@@ -0,0 +1,89 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class DualVersionMethodAdapterTest {
+
+  @Test
+  public void testOnlyTrackedCallsHitBranches() throws Exception {
+    Class<?> cls = transformedClass(Target.class, ClassBranchAdapter.Config.builder().dualVersionMethods(true).build());
+    Method run = cls.getMethod("run", int.class, String.class);
+    Assert.assertNotNull(cls.getDeclaredMethod("run" + DualVersionMethodAdapter.CLONE_SUFFIX, int.class, String.class));
+    Object instance = cls.newInstance();
+
+    // Untracked, runs the original
+    Assert.assertEquals(new Target().run(5, "foo"), run.invoke(instance, 5, "foo"));
+
+    // Tracked, runs the clone which must give the same result and hits
+    BranchTracker.BranchHits hits = new BranchTracker.BranchHits.MapBacked();
+    BranchTracker.beginTrackingForThread(Thread.currentThread(), hits);
+    Object result;
+    try {
+      result = run.invoke(instance, 5, "foo");
+    } finally {
+      BranchTracker.endTrackingForThread(Thread.currentThread());
+    }
+    Assert.assertEquals(new Target().run(5, "foo"), result);
+    Assert.assertNotEquals(0, hits.toBranchHits().length);
+
+    // Untracked again must not add hits
+    hits.reset();
+    run.invoke(instance, 7, "bar");
+    Assert.assertEquals(0, hits.toBranchHits().length);
+  }
+
+  @Test
+  public void testUnreachableMethodsNotCloned() throws Exception {
+    Map<String, Set<String>> reachable = new HashMap<>();
+    reachable.put(Type.getInternalName(Target.class),
+        Collections.singleton("run(ILjava/lang/String;)Ljava/lang/String;"));
+    Class<?> cls = transformedClass(Target.class, ClassBranchAdapter.Config.builder().
+        dualVersionMethods(true).reachableMethods(new ReachableMethods(reachable)).build());
+    Assert.assertNotNull(cls.getDeclaredMethod("run" + DualVersionMethodAdapter.CLONE_SUFFIX, int.class, String.class));
+    for (Method method : cls.getDeclaredMethods()) {
+      Assert.assertNotEquals("unused" + DualVersionMethodAdapter.CLONE_SUFFIX, method.getName());
+    }
+  }
+
+  private static Class<?> transformedClass(Class<?> cls, ClassBranchAdapter.Config config)
+      throws IOException, ClassNotFoundException {
+    byte[] bytes;
+    try (InputStream in = cls.getResourceAsStream(cls.getName().substring(cls.getName().lastIndexOf('.') + 1) +
+        ".class")) {
+      bytes = ClassBranchAdapter.transform(new ClassReader(in).b, config);
+    }
+    ClassLoader loader = new ClassLoader(DualVersionMethodAdapterTest.class.getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        if (!cls.getName().equals(className)) return super.loadClass(className, resolve);
+        Class<?> loaded = findLoadedClass(className);
+        return loaded != null ? loaded : defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return loader.loadClass(cls.getName());
+  }
+
+  public static class Target {
+    public synchronized String run(int count, String str) {
+      long total = 0;
+      for (int i = 0; i < count; i++) {
+        if (i % 2 == 0) total += str.length();
+        else total -= i;
+      }
+      return str + total;
+    }
+
+    public int unused(int value) { return value > 0 ? value : -value; }
+  }
+}
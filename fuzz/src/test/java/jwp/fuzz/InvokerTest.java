@@ -0,0 +1,236 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.WrongMethodTypeException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class InvokerTest {
+
+  @Test
+  public void testConfigInvoke() throws Throwable {
+    Invoker.Config add = new Invoker.Config(null, Target.class.getMethod("add", int.class, long.class));
+    Assert.assertEquals(7L, add.invoke(new Object[] { 3, 4L }));
+    Invoker.Config join = new Invoker.Config(null, Target.class.getMethod("join", String.class, String[].class));
+    Assert.assertEquals("a-b-c", join.invoke(new Object[] { "-", new String[] { "a", "b", "c" } }));
+    Invoker.Config length = new Invoker.Config(null, Target.class.getMethod("length"));
+    Assert.assertEquals(3, length.invoke(new Object[] { new Target("foo") }));
+    Invoker.Config nothing = new Invoker.Config(null, Target.class.getMethod("nothing"));
+    Assert.assertNull(nothing.invoke(new Object[0]));
+    // The first run check relies on these
+    try {
+      add.invoke(new Object[] { 3 });
+      Assert.fail();
+    } catch (WrongMethodTypeException ignored) { }
+    try {
+      add.invoke(new Object[] { "3", 4L });
+      Assert.fail();
+    } catch (ClassCastException ignored) { }
+    // Failures in the method are thrown as is
+    try {
+      join.invoke(new Object[] { null, null });
+      Assert.fail();
+    } catch (NullPointerException ignored) { }
+  }
+
+  @Test
+  public void testWatchdog() throws Throwable {
+    Invoker.WithWatchdog invoker = new Invoker.WithWatchdog(2, 100, 200, 10);
+    Tracer tracer = new Tracer.Instrumenting();
+    Invoker.Config add = new Invoker.Config(tracer, Target.class.getMethod("add", int.class, long.class));
+    Invoker.Config sleep = new Invoker.Config(tracer, Target.class.getMethod("sleep", long.class));
+    Invoker.Config spin = new Invoker.Config(tracer, Target.class.getMethod("spin"));
+    try {
+      // Fast executions are normal
+      ExecutionResult res = invoker.invoke(add, new Object[] { 3, 4L }).get(5, TimeUnit.SECONDS);
+      Assert.assertFalse(res.hang());
+      Assert.assertEquals(7L, res.result);
+      // Interruptible executions are stopped and keep their trace
+      res = invoker.invoke(sleep, new Object[] { 60000L }).get(5, TimeUnit.SECONDS);
+      Assert.assertTrue(res.hang());
+      Assert.assertArrayEquals(new Object[] { 60000L }, res.params);
+      Assert.assertTrue(res.exception.getCause() instanceof InterruptedException);
+      Assert.assertNotNull(res.trace);
+      Assert.assertEquals(0, invoker.replacedCount());
+      // Ones that ignore the interrupt get their worker replaced
+      res = invoker.invoke(spin, new Object[0]).get(5, TimeUnit.SECONDS);
+      Assert.assertTrue(res.hang());
+      Assert.assertNull(res.exception.getCause());
+      Assert.assertSame(TraceResult.EMPTY, res.trace);
+      Assert.assertEquals(1, invoker.replacedCount());
+      Assert.assertEquals(2, invoker.hangCount());
+      // And there are still workers to run things
+      for (int i = 0; i < 10; i++) {
+        Assert.assertEquals((long) i, invoker.invoke(add, new Object[] { i, 0L }).get(5, TimeUnit.SECONDS).result);
+      }
+      // Shutdown doesn't wait for the abandoned worker
+      Assert.assertTrue(invoker.shutdownAndWaitUntilComplete(5, TimeUnit.SECONDS));
+    } finally {
+      Target.stopSpinning = true;
+    }
+  }
+
+  @Test
+  public void testExecutionBudget() throws Throwable {
+    Class<?> cls = transformedClass(BudgetTarget.class,
+        ClassBranchAdapter.Config.builder().executionBudget(true).build());
+    Tracer tracer = new Tracer.Instrumenting(Tracer.Instrumenting.Config.builder().executionBudget(1000).build());
+    Invoker.Config count = new Invoker.Config(tracer, cls.getMethod("count", int.class));
+    // Within budget is normal
+    ExecutionResult res = count.execute(new Object[] { 100 });
+    Assert.assertFalse(res.hang());
+    Assert.assertEquals(100, res.result);
+    // Over budget is a hang, and the next one starts with the full budget again
+    res = count.execute(new Object[] { 100000 });
+    Assert.assertTrue(res.hang());
+    Assert.assertEquals(100, count.execute(new Object[] { 100 }).result);
+    // Recursion counts too
+    Assert.assertTrue(new Invoker.Config(tracer, cls.getMethod("recurse", int.class)).
+        execute(new Object[] { 100000 }).hang());
+    // Catching and wrapping or swallowing the error doesn't hide the hang
+    Assert.assertTrue(new Invoker.Config(tracer, cls.getMethod("wrap")).execute(new Object[0]).hang());
+    Assert.assertTrue(new Invoker.Config(tracer, cls.getMethod("swallow")).execute(new Object[0]).hang());
+    // Without a budget on the trace the checks do nothing
+    Tracer noBudgetTracer = new Tracer.Instrumenting();
+    Assert.assertEquals(100000,
+        new Invoker.Config(noBudgetTracer, count.method).execute(new Object[] { 100000 }).result);
+  }
+
+  @Test
+  public void testExecutionBudgetSwitchLoops() throws Throwable {
+    Tracer tracer = new Tracer.Instrumenting(Tracer.Instrumenting.Config.builder().executionBudget(1000).build());
+    for (MethodBranchAdapter.ProbeStrategy strategy : MethodBranchAdapter.ProbeStrategy.values()) {
+      Class<?> cls = transformedClass("jwp.fuzz.SwitchLoopTarget", switchLoopClass("jwp/fuzz/SwitchLoopTarget"),
+          ClassBranchAdapter.Config.builder().probeStrategy(strategy).executionBudget(true).build());
+      for (String name : Arrays.asList("tableLoop", "lookupLoop", "defaultLoop")) {
+        Invoker.Config loop = new Invoker.Config(tracer, cls.getMethod(name, int.class));
+        ExecutionResult res = loop.execute(new Object[] { 100 });
+        Assert.assertFalse(strategy + " " + name, res.hang());
+        Assert.assertEquals(strategy + " " + name, 100, res.result);
+        // Looping back through a switch label is checked like a backward jump
+        Assert.assertTrue(strategy + " " + name, loop.execute(new Object[] { 100000 }).hang());
+      }
+    }
+  }
+
+  // Javac only loops with jumps, so these count to the given value looping back through a switch instead
+  private static byte[] switchLoopClass(String internalName) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+    writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+    for (String name : Arrays.asList("tableLoop", "lookupLoop", "defaultLoop")) {
+      MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, "(I)I", null, null);
+      mv.visitCode();
+      Label loop = new Label();
+      Label end = new Label();
+      mv.visitInsn(Opcodes.ICONST_0);
+      mv.visitVarInsn(Opcodes.ISTORE, 1);
+      mv.visitLabel(loop);
+      mv.visitIincInsn(1, 1);
+      // The sign bit of count - n, so 1 while under n
+      mv.visitVarInsn(Opcodes.ILOAD, 1);
+      mv.visitVarInsn(Opcodes.ILOAD, 0);
+      mv.visitInsn(Opcodes.ISUB);
+      mv.visitIntInsn(Opcodes.BIPUSH, 31);
+      mv.visitInsn(Opcodes.IUSHR);
+      switch (name) {
+        case "tableLoop":
+          mv.visitTableSwitchInsn(1, 1, end, loop);
+          break;
+        case "lookupLoop":
+          mv.visitLookupSwitchInsn(end, new int[] { 1 }, new Label[] { loop });
+          break;
+        default:
+          mv.visitTableSwitchInsn(0, 0, loop, end);
+      }
+      mv.visitLabel(end);
+      mv.visitVarInsn(Opcodes.ILOAD, 1);
+      mv.visitInsn(Opcodes.IRETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static Class<?> transformedClass(Class<?> cls, ClassBranchAdapter.Config config)
+      throws IOException, ClassNotFoundException {
+    try (InputStream in = cls.getResourceAsStream(cls.getName().substring(cls.getName().lastIndexOf('.') + 1) +
+        ".class")) {
+      return transformedClass(cls.getName(), new ClassReader(in).b, config);
+    }
+  }
+
+  private static Class<?> transformedClass(String name, byte[] origBytes, ClassBranchAdapter.Config config)
+      throws ClassNotFoundException {
+    byte[] bytes = ClassBranchAdapter.transform(origBytes, config);
+    ClassLoader loader = new ClassLoader(InvokerTest.class.getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className)) return super.loadClass(className, resolve);
+        Class<?> loaded = findLoadedClass(className);
+        return loaded != null ? loaded : defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return loader.loadClass(name);
+  }
+
+  public static class BudgetTarget {
+    public static int count(int n) {
+      int ret = 0;
+      for (int i = 0; i < n; i++) ret++;
+      return ret;
+    }
+
+    public static int recurse(int n) { return n == 0 ? 0 : 1 + recurse(n - 1); }
+
+    public static void wrap() {
+      try {
+        count(Integer.MAX_VALUE);
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public static void swallow() {
+      while (true) {
+        try {
+          count(Integer.MAX_VALUE);
+        } catch (Throwable ignored) { }
+      }
+    }
+  }
+
+  public static class Target {
+    public static volatile boolean stopSpinning;
+
+    public static long add(int left, long right) { return left + right; }
+
+    public static void sleep(long ms) throws InterruptedException { Thread.sleep(ms); }
+
+    public static void spin() {
+      while (!stopSpinning) {
+        // Ignores interrupts
+        Thread.interrupted();
+      }
+    }
+
+    public static String join(String delim, String... strs) { return String.join(delim, strs); }
+
+    public static void nothing() { }
+
+    private final String str;
+
+    public Target(String str) { this.str = str; }
+
+    public int length() { return str.length(); }
+  }
+}
@@ -0,0 +1,93 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MethodBranchAdapterTest {
+
+  @Test
+  public void testEncodeSwitchKeys() {
+    // As many keys as a method can have, all chars taking 3 bytes of modified UTF-8
+    List<Integer> keys = new ArrayList<>();
+    for (int i = 0; i < 65535 / 8; i++) keys.add(0x08000800 + (i << 16) + i);
+    String encoded = MethodBranchAdapter.encodeSwitchKeys(keys);
+    // Must be loadable as a constant, the writer throws if it's too long
+    new ClassWriter(0).newConst(encoded);
+    for (int i = 0; i < keys.size(); i++)
+      Assert.assertEquals((int) keys.get(i), (encoded.charAt(i * 2) << 16) | encoded.charAt((i * 2) + 1));
+    keys.add(Integer.MAX_VALUE);
+    try {
+      MethodBranchAdapter.encodeSwitchKeys(keys);
+      Assert.fail();
+    } catch (IllegalArgumentException ignored) { }
+  }
+
+  @Test
+  public void testEdgeProbesRecordFallThrough() throws Exception {
+    // The jump in sign is only taken for values that aren't positive
+    Method checked = signMethod(ClassBranchAdapter.Config.builder().build());
+    Assert.assertEquals(0, trace(checked, 1).size());
+    Assert.assertEquals(1, trace(checked, 0).size());
+    Method edges = signMethod(ClassBranchAdapter.Config.builder().
+        probeStrategy(MethodBranchAdapter.ProbeStrategy.PROBE_ON_EDGES).build());
+    TraceResult fallThrough = trace(edges, 1);
+    TraceResult taken = trace(edges, 0);
+    Assert.assertEquals(1, fallThrough.size());
+    Assert.assertEquals(1, taken.size());
+    Assert.assertNotEquals(fallThrough.branchHash(0), taken.branchHash(0));
+    Assert.assertEquals(1, edges.invoke(null, 1));
+    Assert.assertEquals(0, edges.invoke(null, 0));
+
+    // Registered as a separate branch at the same jump
+    BranchRegistry registry = new BranchRegistry();
+    signMethod(ClassBranchAdapter.Config.builder().
+        probeStrategy(MethodBranchAdapter.ProbeStrategy.PROBE_ON_EDGES).branchRegistry(registry).build());
+    Assert.assertEquals(2, registry.size());
+    Assert.assertEquals(Opcodes.IFLE, registry.get(0).opcode);
+    Assert.assertEquals(Opcodes.GOTO, registry.get(1).opcode);
+    Assert.assertEquals(registry.get(0).insnIndex, registry.get(1).insnIndex);
+  }
+
+  private static TraceResult trace(Method method, int value) throws Exception {
+    Tracer tracer = new Tracer.Instrumenting();
+    tracer.startTrace(Thread.currentThread());
+    try {
+      method.invoke(null, value);
+    } finally {
+      return tracer.stopTraceResult(Thread.currentThread());
+    }
+  }
+
+  private static Method signMethod(ClassBranchAdapter.Config config) throws IOException, ReflectiveOperationException {
+    String name = EdgeTarget.class.getName();
+    byte[] bytes;
+    try (InputStream in = EdgeTarget.class.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+      bytes = ClassBranchAdapter.transform(new ClassReader(in).b, config);
+    }
+    ClassLoader loader = new ClassLoader(MethodBranchAdapterTest.class.getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className)) return super.loadClass(className, resolve);
+        Class<?> loaded = findLoadedClass(className);
+        return loaded != null ? loaded : defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return loader.loadClass(name).getMethod("sign", int.class);
+  }
+
+  public static class EdgeTarget {
+    public static int sign(int value) {
+      if (value > 0) return 1;
+      return 0;
+    }
+  }
+}
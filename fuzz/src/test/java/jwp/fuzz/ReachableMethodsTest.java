@@ -0,0 +1,93 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import java.io.InputStream;
+import java.util.function.Predicate;
+
+public class ReachableMethodsTest {
+
+  private static final Predicate<String> IS_LIBRARY_CLASS = name -> name.startsWith("java.");
+
+  @Test
+  public void testReachable() throws Exception {
+    ReachableMethods reachable = ReachableMethods.from(Root.class.getMethod("fuzz", String.class), IS_LIBRARY_CLASS);
+    String root = Type.getInternalName(Root.class);
+    Assert.assertTrue(reachable.contains(root, "fuzz", "(Ljava/lang/String;)V"));
+    Assert.assertTrue(reachable.contains(root, "helper", "(I)I"));
+    Assert.assertTrue(reachable.contains(root, "<clinit>", "()V"));
+    Assert.assertFalse(reachable.contains(root, "unused", "()V"));
+    // The virtual call reaches both implementations
+    Assert.assertTrue(reachable.contains(Type.getInternalName(FirstImpl.class), "apply", "(I)I"));
+    Assert.assertTrue(reachable.contains(Type.getInternalName(SecondImpl.class), "apply", "(I)I"));
+    Assert.assertTrue(reachable.contains(Type.getInternalName(FirstImpl.class), "<init>", "()V"));
+    // Overrides of library methods can be called by the library
+    Assert.assertTrue(reachable.contains(Type.getInternalName(FirstImpl.class), "toString", "()Ljava/lang/String;"));
+    Assert.assertFalse(reachable.contains(Type.getInternalName(FirstImpl.class), "other", "()V"));
+    // The lambda body is reached through its handle
+    boolean lambdaReached = false;
+    for (String method : reachable.methodsByClass.get(root)) if (method.startsWith("lambda$")) lambdaReached = true;
+    Assert.assertTrue(lambdaReached);
+    Assert.assertFalse(reachable.containsClass(Type.getInternalName(Unreachable.class)));
+    Assert.assertFalse(reachable.containsClass("java/lang/String"));
+  }
+
+  @Test
+  public void testUnreachableMethodsNotInstrumented() throws Exception {
+    ReachableMethods reachable = ReachableMethods.from(Root.class.getMethod("fuzz", String.class), IS_LIBRARY_CLASS);
+    BranchRegistry registry = new BranchRegistry();
+    try (InputStream in = Root.class.getResourceAsStream("ReachableMethodsTest$Root.class")) {
+      ClassBranchAdapter.transform(new ClassReader(in).b,
+          ClassBranchAdapter.Config.builder().branchRegistry(registry).reachableMethods(reachable).build());
+    }
+    Assert.assertTrue(registry.branches().stream().anyMatch(b -> b.methodName.equals("helper")));
+    Assert.assertFalse(registry.branches().stream().anyMatch(b -> b.methodName.equals("unused")));
+  }
+
+  public static class Root {
+    static final int SEED = Integer.getInteger("jwp.seed", 5);
+
+    public static void fuzz(String str) {
+      Function fn = str.isEmpty() ? new FirstImpl() : new SecondImpl();
+      Runnable run = () -> helper(fn.apply(str.length()));
+      run.run();
+    }
+
+    static int helper(int value) { return value > SEED ? value : -value; }
+
+    static void unused() {
+      if (SEED > 10) new Unreachable().toString();
+    }
+  }
+
+  public interface Function {
+    int apply(int value);
+  }
+
+  public static class FirstImpl implements Function {
+    @Override
+    public int apply(int value) { return value > 0 ? value : 0; }
+
+    @Override
+    public String toString() { return SEED_NAME.isEmpty() ? "first" : SEED_NAME; }
+
+    public void other() {
+      if (SEED_NAME.isEmpty()) System.out.println("other");
+    }
+
+    static final String SEED_NAME = System.getProperty("jwp.seedName", "");
+  }
+
+  public static class SecondImpl implements Function {
+    @Override
+    public int apply(int value) { return value < 0 ? value : 0; }
+  }
+
+  public static class Unreachable {
+    @Override
+    public String toString() { return "unreachable"; }
+  }
+}
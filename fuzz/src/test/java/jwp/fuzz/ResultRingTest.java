@@ -0,0 +1,57 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResultRingTest {
+
+  @Test
+  public void testWindowedDrain() throws Exception {
+    int window = 10;
+    int total = 10000;
+    ResultRing ring = new ResultRing(window);
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    List<Long> nanoTimes = new ArrayList<>();
+    AtomicInteger skipped = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    try {
+      int inFlight = 0;
+      for (int i = 0; i < total; i++) {
+        // Same as the fuzzer, never more in flight than the ring holds
+        inFlight -= ring.drain((res, ex) -> {
+          if (ex != null) failed.incrementAndGet();
+          else if (res == null) skipped.incrementAndGet();
+          else nanoTimes.add(res.nanoTime);
+        }, inFlight >= window);
+        long nanoTime = i;
+        exec.execute(() -> {
+          if (nanoTime % 100 == 0) ring.add(null, new RuntimeException());
+          else if (nanoTime % 100 == 1) ring.addSkipped();
+          else ring.add(new ExecutionResult(null, null, (TraceResult) null, nanoTime, (Object) null), null);
+        });
+        inFlight++;
+      }
+      while (inFlight > 0) inFlight -= ring.drain((res, ex) -> {
+        if (ex != null) failed.incrementAndGet();
+        else if (res == null) skipped.incrementAndGet();
+        else nanoTimes.add(res.nanoTime);
+      }, true);
+    } finally {
+      exec.shutdown();
+      Assert.assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    Assert.assertEquals(total / 100, failed.get());
+    Assert.assertEquals(total / 100, skipped.get());
+    Assert.assertEquals(total - (total / 50), nanoTimes.size());
+    Assert.assertEquals(total - (total / 50), nanoTimes.stream().distinct().count());
+    // Nothing is left
+    Assert.assertEquals(0, ring.drain((res, ex) -> Assert.fail(), false));
+  }
+}
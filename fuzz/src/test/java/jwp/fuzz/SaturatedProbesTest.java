@@ -0,0 +1,117 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.*;
+
+public class SaturatedProbesTest {
+
+  @Test
+  public void testStrippedProbesKeepHashes() throws Exception {
+    for (MethodBranchAdapter.ProbeStrategy strategy : MethodBranchAdapter.ProbeStrategy.values()) {
+      SaturatedProbes probes = new SaturatedProbes(1, 1);
+      Method full = checkMethod(ClassBranchAdapter.Config.builder().
+          probeStrategy(strategy).saturatedProbes(probes).build());
+      // Saturate the probes hit by one input
+      TraceResult saturatingTrace = trace(full, 3);
+      Assert.assertTrue(saturatingTrace.size() > 0);
+      probes.record(saturatingTrace);
+      Set<Integer> saturated = hashes(saturatingTrace);
+      Assert.assertEquals(saturated.size(), probes.saturatedCount());
+      Assert.assertTrue(probes.hasPending());
+      Assert.assertTrue(probes.probeCount() > saturated.size());
+
+      Method stripped = checkMethod(ClassBranchAdapter.Config.builder().
+          probeStrategy(strategy).saturatedProbes(probes).build());
+      for (int value = -2; value < 12; value++) {
+        Set<Integer> expected = hashes(trace(full, value));
+        expected.removeAll(saturated);
+        Assert.assertEquals(strategy + " with " + value, expected, hashes(trace(stripped, value)));
+        Assert.assertEquals(full.invoke(null, value), stripped.invoke(null, value));
+      }
+    }
+  }
+
+  @Test
+  public void testNeedsProbeHashTraces() throws Exception {
+    Method method = Target.class.getMethod("check", int.class);
+    ParamProvider params = new ParamProvider.Suggested(ParamGenerator.suggestedFinite(Integer.TYPE));
+    List<Tracer.Instrumenting.Config> badConfigs = Arrays.asList(
+        Tracer.Instrumenting.Config.builder().edgeCoverage(true).build(),
+        Tracer.Instrumenting.Config.builder().hitsCreator(BranchTracker.BranchHits.Bitmap::new).build());
+    for (Tracer.Instrumenting.Config tracerConfig : badConfigs) {
+      try {
+        Fuzzer.Config.builder().method(method).params(params).
+            tracer(new Tracer.Instrumenting(tracerConfig)).saturatedProbes(new SaturatedProbes()).build();
+        Assert.fail();
+      } catch (IllegalArgumentException ignored) { }
+      // Fine without saturated probes
+      Fuzzer.Config.builder().method(method).params(params).tracer(new Tracer.Instrumenting(tracerConfig)).build();
+    }
+    Fuzzer.Config.builder().method(method).params(params).saturatedProbes(new SaturatedProbes()).build();
+  }
+
+  private static Set<Integer> hashes(TraceResult trace) {
+    Set<Integer> ret = new HashSet<>();
+    for (int i = 0; i < trace.size(); i++) ret.add(trace.branchHash(i));
+    return ret;
+  }
+
+  private static TraceResult trace(Method method, int value) throws Exception {
+    Tracer tracer = new Tracer.Instrumenting();
+    tracer.startTrace(Thread.currentThread());
+    try {
+      method.invoke(null, value);
+    } finally {
+      return tracer.stopTraceResult(Thread.currentThread());
+    }
+  }
+
+  private static Method checkMethod(ClassBranchAdapter.Config config) throws Exception {
+    return transformedClass(Target.class, config).getMethod("check", int.class);
+  }
+
+  private static Class<?> transformedClass(Class<?> cls, ClassBranchAdapter.Config config)
+      throws IOException, ClassNotFoundException {
+    byte[] bytes;
+    try (InputStream in = cls.getResourceAsStream(cls.getName().substring(cls.getName().lastIndexOf('.') + 1) +
+        ".class")) {
+      bytes = ClassBranchAdapter.transform(new ClassReader(in).b, config);
+    }
+    ClassLoader loader = new ClassLoader(SaturatedProbesTest.class.getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        if (!cls.getName().equals(className)) return super.loadClass(className, resolve);
+        Class<?> loaded = findLoadedClass(className);
+        return loaded != null ? loaded : defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return loader.loadClass(cls.getName());
+  }
+
+  public static class Target {
+    public static int check(int value) {
+      int ret = 0;
+      for (int i = 0; i < value; i++) {
+        if (i % 2 == 0) ret++;
+      }
+      switch (value) {
+        case 1: ret += 10; break;
+        case 5: ret += 20; break;
+        case 9: ret += 30; break;
+      }
+      try {
+        if (value < 0) throw new IllegalArgumentException();
+        if (value > 7) ret *= 2;
+      } catch (IllegalArgumentException e) {
+        ret = -1;
+      }
+      return ret == 4 ? ret + 1 : ret;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.function.Supplier;
+
+public class StreamingBranchAdapterTest {
+
+  @Test
+  public void testSameAsTree() throws Exception {
+    byte[] orig;
+    try (InputStream in = Target.class.getResourceAsStream("StreamingBranchAdapterTest$Target.class")) {
+      orig = new ClassReader(in).b;
+    }
+    assertSameAsTree(orig, () -> ClassBranchAdapter.Config.builder());
+    assertSameAsTree(orig, () -> ClassBranchAdapter.Config.builder().comparisonLogging(true).tokenHooks(true));
+    assertSameAsTree(orig, () -> ClassBranchAdapter.Config.builder().dualVersionMethods(true));
+    assertSameAsTree(orig, () -> ClassBranchAdapter.Config.builder().executionBudget(true).comparisonLogging(true));
+    assertSameAsTree(orig, () -> ClassBranchAdapter.Config.builder().executionBudget(true).dualVersionMethods(true));
+    // Side effects have to be the same too
+    BranchRegistry treeRegistry = new BranchRegistry();
+    BranchRegistry streamRegistry = new BranchRegistry();
+    Assert.assertArrayEquals(transform(orig, ClassBranchAdapter.Config.builder().branchRegistry(treeRegistry), false),
+        transform(orig, ClassBranchAdapter.Config.builder().branchRegistry(streamRegistry), true));
+    Assert.assertEquals(treeRegistry.branches(), streamRegistry.branches());
+    AutoDictionary treeDictionary = new AutoDictionary();
+    AutoDictionary streamDictionary = new AutoDictionary();
+    transform(orig, ClassBranchAdapter.Config.builder().autoDictionary(treeDictionary), false);
+    transform(orig, ClassBranchAdapter.Config.builder().autoDictionary(streamDictionary), true);
+    assertSameEntries(treeDictionary.entries(), streamDictionary.entries());
+  }
+
+  @Test
+  public void testReferencesClass() throws Exception {
+    byte[] orig;
+    try (InputStream in = Target.class.getResourceAsStream("StreamingBranchAdapterTest$Target.class")) {
+      orig = new ClassReader(in).b;
+    }
+    String refsClass = BranchTracker.refs.commonClassSig;
+    Assert.assertFalse(ClassBranchAdapter.referencesClass(new ClassReader(orig), refsClass));
+    byte[] transformed = ClassBranchAdapter.transform(orig);
+    Assert.assertTrue(ClassBranchAdapter.referencesClass(new ClassReader(transformed), refsClass));
+    // Already transformed methods are left alone instead of being streamed again
+    int refsCallCount = callCount(transformed, refsClass);
+    Assert.assertNotEquals(0, refsCallCount);
+    Assert.assertEquals(refsCallCount, callCount(ClassBranchAdapter.transform(transformed), refsClass));
+  }
+
+  private static int callCount(byte[] bytes, String owner) {
+    ClassNode node = new ClassNode();
+    new ClassReader(bytes).accept(node, 0);
+    int count = 0;
+    for (MethodNode method : node.methods) {
+      for (AbstractInsnNode insn : method.instructions.toArray()) {
+        if (insn instanceof MethodInsnNode && owner.equals(((MethodInsnNode) insn).owner)) count++;
+      }
+    }
+    return count;
+  }
+
+  private static void assertSameAsTree(byte[] orig, Supplier<ClassBranchAdapter.Config.Builder> config) {
+    Assert.assertArrayEquals(transform(orig, config.get(), false), transform(orig, config.get(), true));
+  }
+
+  private static void assertSameEntries(List<byte[]> expected, List<byte[]> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) Assert.assertArrayEquals(expected.get(i), actual.get(i));
+  }
+
+  private static byte[] transform(byte[] orig, ClassBranchAdapter.Config.Builder builder, boolean streamMethods) {
+    ClassBranchAdapter.Config config = builder.build();
+    ClassReader reader = new ClassReader(orig);
+    ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+    reader.accept(new ClassBranchAdapter(BranchTracker.refs, config, writer, streamMethods), config.readerFlags());
+    return writer.toByteArray();
+  }
+
+  public static class Target {
+    public static int parse(String str, long limit) {
+      int ret = 0;
+      try {
+        switch (str) {
+          case "foo": ret = 1; break;
+          case "bar": ret = 2; break;
+        }
+        switch (str.length()) {
+          case 1: ret += 10; break;
+          case 2: ret += 20; break;
+          case 3: ret += 30; break;
+        }
+        if (str.length() > 1000 && str.startsWith("x")) ret = 4321;
+        if (str.length() < limit) ret++;
+        if (str.equals("baz") || str.contains("qux")) ret--;
+        for (int i = 0; i < str.length() && i < limit; i++) if (str.charAt(i) == 'z') ret++;
+        do { ret >>= 1; } while (ret > 100);
+        Integer.parseInt(str);
+      } catch (NumberFormatException e) {
+        if (e.getMessage() != null) ret = -ret;
+      }
+      return ret;
+    }
+
+    @Override
+    public int hashCode() { return 1234567; }
+  }
+}
@@ -0,0 +1,102 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TraceResultTest {
+
+  @Test
+  public void testSameAsBranchHits() {
+    Random random = new Random(1234);
+    for (int i = 0; i < 100; i++) {
+      BranchTracker.BranchHits hits = new BranchTracker.BranchHits.MapBacked();
+      int hitCount = random.nextInt(50);
+      for (int j = 0; j < hitCount; j++) hits.addHit(random.nextInt(20) - 10);
+      TraceResult trace = hits.toTraceResult();
+      BranchHit[] branchHits = trace.branchHits();
+      // Must be sorted and match the objects
+      BranchHit[] sorted = branchHits.clone();
+      Arrays.sort(sorted);
+      Assert.assertArrayEquals(sorted, branchHits);
+      Assert.assertEquals(trace, TraceResult.of(branchHits));
+      for (int j = 0; j < trace.size(); j++) {
+        Assert.assertEquals(branchHits[j].branchHash, trace.branchHash(j));
+        Assert.assertEquals(branchHits[j].hitCount, trace.hitCount(j));
+      }
+      // Hashing the trace directly must match hashing the objects
+      Assert.assertEquals(BranchHit.Hasher.WITH_HIT_COUNTS.hash(branchHits),
+          BranchHit.Hasher.WITH_HIT_COUNTS.hash(trace));
+      Assert.assertEquals(BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(branchHits),
+          BranchHit.Hasher.WITHOUT_HIT_COUNTS.hash(trace));
+      BranchHit.Hasher custom = hit -> hit.branchHash * 7;
+      Assert.assertEquals(custom.hash(branchHits), custom.hash(trace));
+    }
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testHitArrayTracer() {
+    BranchHit[] hits = { new BranchHit(1, 2), new BranchHit(3, 1) };
+    boolean[] tracing = { false };
+    // A tracer only implementing the older hit array method
+    Tracer tracer = new Tracer() {
+      @Override
+      public void startTrace(Thread thread) { tracing[0] = true; }
+
+      @Override
+      public BranchHit[] stopTrace(Thread thread) {
+        if (!tracing[0]) return null;
+        tracing[0] = false;
+        return hits;
+      }
+    };
+    Assert.assertNull(tracer.stopTraceResult(Thread.currentThread()));
+    tracer.startTrace(Thread.currentThread());
+    Assert.assertEquals(TraceResult.of(hits), tracer.stopTraceResult(Thread.currentThread()));
+    // And results from missing traces are just empty
+    Assert.assertSame(TraceResult.EMPTY, new ExecutionResult(null, null, (BranchHit[]) null, 0, null).trace);
+    // The other way around for the main tracer
+    Tracer.Instrumenting instrumenting = new Tracer.Instrumenting();
+    Assert.assertNull(instrumenting.stopTrace(Thread.currentThread()));
+    instrumenting.startTrace(Thread.currentThread());
+    Assert.assertArrayEquals(new BranchHit[0], instrumenting.stopTrace(Thread.currentThread()));
+  }
+
+  @Test
+  public void testRollingSignatures() {
+    Random random = new Random(5678);
+    for (int i = 0; i < 100; i++) {
+      BranchTracker.BranchHits mapHits = new BranchTracker.BranchHits.MapBacked();
+      BranchTracker.BranchHits bitmapHits = new BranchTracker.BranchHits.Bitmap(1 << 8);
+      int hitCount = random.nextInt(1000);
+      for (int j = 0; j < hitCount; j++) {
+        int branchHash = random.nextInt(30);
+        mapHits.addHit(branchHash);
+        bitmapHits.addHit(branchHash);
+      }
+      for (BranchTracker.BranchHits hits : Arrays.asList(mapHits, bitmapHits)) {
+        TraceResult trace = hits.toTraceResult();
+        Assert.assertTrue(trace.hasSignatures());
+        // The maintained signature must be the same as summing the hits afterwards
+        for (BranchHit.Hasher hasher : Arrays.asList(
+            BranchHit.Hasher.ROLLING_WITH_HIT_COUNTS, BranchHit.Hasher.ROLLING_WITHOUT_HIT_COUNTS)) {
+          Assert.assertEquals(hasher.hash(trace.branchHits()), hasher.hash(trace));
+          Assert.assertEquals(hasher.hash(trace.branchHits()), hasher.hash(TraceResult.of(trace.branchHits())));
+        }
+        hits.reset();
+        Assert.assertEquals(0, BranchHit.Hasher.ROLLING_WITH_HIT_COUNTS.hash(hits.toTraceResult()));
+      }
+    }
+    // Every bucket, including the highest ones, is kept as a single branch's count goes up
+    BranchTracker.BranchHits hits = new BranchTracker.BranchHits.MapBacked();
+    for (int i = 0; i < 300; i++) {
+      hits.addHit(7);
+      TraceResult trace = hits.toTraceResult();
+      Assert.assertEquals(BranchHit.Hasher.ROLLING_WITH_HIT_COUNTS.hash(trace.branchHits()),
+          BranchHit.Hasher.ROLLING_WITH_HIT_COUNTS.hash(trace));
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package jwp.fuzz;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class TransformCacheTest {
+
+  @Test
+  public void testCache() throws Exception {
+    Path dir = Files.createTempDirectory("jwp-cache");
+    try {
+      byte[] orig;
+      try (InputStream in = Target.class.getResourceAsStream("TransformCacheTest$Target.class")) {
+        orig = new ClassReader(in).b;
+      }
+      String className = "jwp/fuzz/TransformCacheTest$Target";
+      ClassBranchAdapter.Config config = ClassBranchAdapter.Config.builder().build();
+      byte[] expected = ClassBranchAdapter.transform(orig, config);
+      TransformCache cache = new TransformCache(dir);
+      Assert.assertArrayEquals(expected, cache.transform(className, orig, config));
+      Assert.assertEquals(0, cache.hits());
+      Assert.assertEquals(1, cache.misses());
+      // A new instance, like another JVM, gets it from disk
+      TransformCache other = new TransformCache(dir);
+      Assert.assertArrayEquals(expected, other.transform(className, orig, config));
+      Assert.assertEquals(1, other.hits());
+      // A different config is a different entry
+      ClassBranchAdapter.Config edgeConfig = ClassBranchAdapter.Config.builder().
+          probeStrategy(MethodBranchAdapter.ProbeStrategy.PROBE_ON_EDGES).build();
+      Assert.assertArrayEquals(ClassBranchAdapter.transform(orig, edgeConfig),
+          other.transform(className, orig, edgeConfig));
+      Assert.assertEquals(1, other.misses());
+      // Configs with side effects always transform
+      BranchRegistry registry = new BranchRegistry();
+      other.transform(className, orig, ClassBranchAdapter.Config.builder().branchRegistry(registry).build());
+      Assert.assertTrue(registry.size() > 0);
+      Assert.assertEquals(1, other.hits());
+      Assert.assertEquals(1, other.misses());
+      // No temp files are left behind
+      try (Stream<Path> paths = Files.walk(dir)) {
+        Assert.assertFalse(paths.anyMatch(p -> p.toString().endsWith(".tmp")));
+      }
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  private static void deleteRecursively(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(path);
+    }
+  }
+
+  public static class Target {
+    public static int check(int value) { return value > 5 ? 1 : 2; }
+  }
+}